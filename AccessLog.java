@@ -0,0 +1,310 @@
+package CSE471;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Request log on disk, written off the request path. Handlers publish entries into a bounded
+// lock-free queue; a single writer thread drains whatever has accumulated and appends it to
+// logs/access.log with one write per batch, so a burst of requests costs one system call rather
+// than one per request. The file is rotated to access-<timestamp>.log by size or age, and only
+// the newest rotated files are kept.
+//
+// One line per request, tab separated: epoch millis, client IP, domain, resource path, method,
+// status code, bytes sent (-1 if not measured). Tabs, line breaks and backslashes inside fields are escaped with a backslash.
+public class AccessLog implements Closeable {
+    public static final String POLICY_DROP = "drop";
+    public static final String POLICY_BLOCK = "block";
+
+    static final String CURRENT_NAME = "access.log";
+    private static final String ROTATED_PREFIX = "access-";
+    private static final DateTimeFormatter ROTATED_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+    private static final int MAX_BATCH = 4096;
+    private static final long IDLE_PARK_NANOS = 100_000_000L; // writer wakes up at least this often to check rotation
+
+    private final Path directory;
+    private final long maxFileBytes;
+    private final long rotateMillis;
+    private final int maxFiles;
+    private final boolean blockWhenFull;
+    private final EventLog eventLog;
+
+    private final BoundedMpscQueue<RequestLogEntry> queue;
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final Thread writer;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+
+    // Writer thread only
+    private FileChannel file;
+    private long fileBytes;
+    private long fileOpenedAt;
+
+    public AccessLog(Path directory, int queueSize, long maxFileBytes, long rotateMillis, int maxFiles,
+                     String fullPolicy, EventLog eventLog) {
+        this.directory = directory;
+        this.maxFileBytes = maxFileBytes;
+        this.rotateMillis = rotateMillis;
+        this.maxFiles = maxFiles;
+        this.blockWhenFull = POLICY_BLOCK.equalsIgnoreCase(fullPolicy);
+        this.eventLog = eventLog;
+        this.queue = new BoundedMpscQueue<>(queueSize);
+        this.writer = new Thread(this::writeLoop, "access-log-writer");
+        writer.setDaemon(true);
+    }
+
+    public void start() throws IOException {
+        Files.createDirectories(directory);
+        openCurrent();
+        writer.start();
+    }
+
+    // Queues the entry for the writer. When the queue is full the entry is dropped and counted,
+    // or with the block policy the caller waits until the writer has made room.
+    public void publish(RequestLogEntry entry) {
+        while (!queue.offer(entry)) {
+            if (!blockWhenFull || closed) {
+                dropped.increment();
+                return;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000L);
+        }
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        while (true) {
+            RequestLogEntry entry = queue.poll();
+            if (entry == null) {
+                if (closed && queue.isDrained()) {
+                    break;
+                }
+                writerParked = true;
+                if (!queue.hasNext() && !closed) { // re-check after announcing, or a publish could be missed
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    writerParked = false;
+                    rotateIfDue(0);
+                    continue;
+                }
+                writerParked = false;
+                continue;
+            }
+            batch.setLength(0);
+            int count = 0;
+            do {
+                appendLine(batch, entry);
+                count++;
+            } while (count < MAX_BATCH && (entry = queue.poll()) != null);
+            writeBatch(batch, count);
+        }
+        closeCurrent();
+    }
+
+    private void writeBatch(CharSequence batch, int count) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            rotateIfDue(bytes.length);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                file.write(buffer);
+            }
+            fileBytes += bytes.length;
+            written.add(count);
+        } catch (IOException e) {
+            dropped.add(count);
+            eventLog.append("Failed to write access log: " + e.getMessage() + "\n");
+        }
+    }
+
+    private void rotateIfDue(int incomingBytes) {
+        boolean full = fileBytes > 0 && fileBytes + incomingBytes > maxFileBytes;
+        boolean old = fileBytes > 0 && System.currentTimeMillis() - fileOpenedAt >= rotateMillis;
+        if (!full && !old) {
+            return;
+        }
+        try {
+            closeCurrent();
+            Path rotated = directory.resolve(ROTATED_PREFIX + LocalDateTime.now().format(ROTATED_FORMAT) + ".log");
+            Files.move(directory.resolve(CURRENT_NAME), rotated);
+            pruneRotated();
+            openCurrent();
+        } catch (IOException e) {
+            eventLog.append("Failed to rotate access log: " + e.getMessage() + "\n");
+            try {
+                if (file == null || !file.isOpen()) {
+                    openCurrent();
+                }
+            } catch (IOException reopen) {
+                // the next write fails and reports it
+            }
+        }
+    }
+
+    private void openCurrent() throws IOException {
+        file = FileChannel.open(directory.resolve(CURRENT_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = file.size();
+        fileOpenedAt = System.currentTimeMillis();
+    }
+
+    private void closeCurrent() {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.force(false);
+            file.close();
+        } catch (IOException e) {
+            eventLog.append("Failed to close access log: " + e.getMessage() + "\n");
+        }
+    }
+
+    private void pruneRotated() throws IOException {
+        List<Path> rotated = rotatedFiles(directory);
+        for (int i = 0; i < rotated.size() - maxFiles; i++) {
+            Files.deleteIfExists(rotated.get(i));
+        }
+    }
+
+    // Rotated files oldest first; the timestamp in the name sorts chronologically.
+    private static List<Path> rotatedFiles(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, ROTATED_PREFIX + "*.log")) {
+            for (Path path : stream) {
+                files.add(path);
+            }
+        } catch (NoSuchFileException e) {
+            return files;
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    // Every log file in the directory, oldest first, the current one last.
+    public static List<Path> logFiles(Path directory) throws IOException {
+        List<Path> files = rotatedFiles(directory);
+        Path current = directory.resolve(CURRENT_NAME);
+        if (Files.exists(current)) {
+            files.add(current);
+        }
+        return files;
+    }
+
+    // Streams the entries of one log file in order. Lines that do not parse, such as a line
+    // still being written, are skipped.
+    public static void read(Path file, Consumer<RequestLogEntry> consumer) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                RequestLogEntry entry = parseLine(line);
+                if (entry != null) {
+                    consumer.accept(entry);
+                }
+            }
+        }
+    }
+
+    private static void appendLine(StringBuilder out, RequestLogEntry entry) {
+        out.append(entry.getDate().getTime()).append('\t');
+        appendField(out, entry.getClientIP());
+        out.append('\t');
+        appendField(out, entry.getDomain());
+        out.append('\t');
+        appendField(out, entry.getResourcePath());
+        out.append('\t');
+        appendField(out, entry.getMethod());
+        out.append('\t').append(entry.getStatusCode());
+        out.append('\t').append(entry.getBytes()).append('\n');
+    }
+
+    private static void appendField(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\t': out.append("\\t"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\\': out.append("\\\\"); break;
+                default: out.append(c);
+            }
+        }
+    }
+
+    static RequestLogEntry parseLine(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 6 && fields.length != 7) { // files written before the bytes column have 6
+            return null;
+        }
+        try {
+            return new RequestLogEntry(new Date(Long.parseLong(fields[0])), unescape(fields[1]), unescape(fields[2]),
+                    unescape(fields[3]), unescape(fields[4]), Integer.parseInt(fields[5]),
+                    fields.length == 7 ? Long.parseLong(fields[6]) : -1);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String unescape(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder out = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                char next = field.charAt(++i);
+                out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    // Writes out everything queued so far, then stops the writer.
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package CSE471;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded queue for many producer threads and a single consumer thread, without locks. Producers
+// claim a ticket with one CAS and offer() fails instead of waiting when the queue is full, so the
+// caller decides whether to drop or retry. A slot is free for ticket t when its sequence equals t,
+// and holds the element for ticket t once its sequence is t + 1.
+public class BoundedMpscQueue<E> {
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // next ticket for producers
+    private long head;                                // next ticket for the consumer, consumer thread only
+
+    // The capacity is rounded up to a power of two.
+    public BoundedMpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+    }
+
+    // Any thread. Returns false if the queue is full.
+    public boolean offer(E element) {
+        while (true) {
+            long ticket = tail.get();
+            int index = (int) (ticket & mask);
+            long sequence = sequences.get(index);
+            if (sequence == ticket) {
+                if (tail.compareAndSet(ticket, ticket + 1)) {
+                    slots[index] = element;
+                    sequences.set(index, ticket + 1); // publishes the slot to the consumer
+                    return true;
+                }
+            } else if (sequence < ticket) {
+                return false; // the consumer has not freed this slot yet: full
+            }
+            // else another producer took the ticket, try the next one
+        }
+    }
+
+    // Consumer thread only. Whether poll() would return an element.
+    public boolean hasNext() {
+        return sequences.get((int) (head & mask)) == head + 1;
+    }
+
+    // Consumer thread only. Returns null if no element is ready.
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        if (!hasNext()) {
+            return null;
+        }
+        int index = (int) (head & mask);
+        E element = (E) slots[index];
+        slots[index] = null;
+        sequences.set(index, head + slots.length); // free for the ticket one lap later
+        head++;
+        return element;
+    }
+
+    // Consumer thread only. True if no producer holds a ticket that was not consumed yet, which
+    // includes elements still being published.
+    public boolean isDrained() {
+        return tail.get() == head;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+}
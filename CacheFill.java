@@ -0,0 +1,320 @@
+package CSE471;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+// A cache entry being written while its response streams to the client. The head is kept in
+// memory and the body goes to a temp file in the cache directory, hashed as it is written.
+// commit() publishes the body under its hash and then the entry file under the key (see
+// CacheStore), each in one rename, so readers see either the previous entry or the complete new
+// one, never a partial file.
+//
+// A fill told to compress() re-encodes the body with gzip at commit, when it is large enough and
+// shrinks by at least a tenth. Followers still get the response as it arrived.
+//
+// Fills started with tryLead() are registered per URL so concurrent misses do not each go to the
+// origin: the first handler leads the fetch and the others follow() it, streaming the same bytes
+// from the temp file as the leader writes them.
+public class CacheFill implements Closeable {
+    private static final ConcurrentHashMap<String, CacheFill> inFlight = new ConcurrentHashMap<>();
+    private static final byte[] NO_HEAD = new byte[0];
+    private static final double MAX_COMPRESSED_RATIO = 0.9;
+    // Fields of the received head that the compressed head replaces
+    private static final Set<String> REWRITTEN_FIELDS = Set.of("content-length", "transfer-encoding", "content-encoding", "vary");
+
+    private final CacheStore store;
+    private final String key;
+    private final boolean registered; // whether others can join this fill
+    private final Path tempFile;
+    private final FileChannel out;
+    private final MessageDigest digest = CacheStore.newDigest();
+    private volatile byte[] head = NO_HEAD;
+    private long size;          // body bytes readable from the temp file, guarded by this
+    private boolean finished;   // guarded by this
+    private boolean committed;  // guarded by this
+    private Path entryPath;
+    private Path bodyPath;      // holds a store reference from commit() until close()
+    private HttpResponseHead compressHead; // set by compress()
+    private HttpResponseHead storedHead;   // the head written to the entry, when it differs from the one received
+    private long identityLength = -1; // body length before compression, guarded by this
+    private volatile boolean delimited = true;
+    private volatile int statusCode;
+
+    public CacheFill(CacheStore store, String key) throws IOException {
+        this(store, key, false);
+    }
+
+    private CacheFill(CacheStore store, String key, boolean registered) throws IOException {
+        this.store = store;
+        this.key = key;
+        this.registered = registered;
+        this.tempFile = store.createTempFile();
+        this.out = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+    }
+
+    // Returns a registered fill if the caller is now the only one fetching key, or null if
+    // another handler already is; use inFlight(key) to follow it.
+    public static CacheFill tryLead(CacheStore store, String key) throws IOException {
+        if (inFlight.containsKey(key)) {
+            return null;
+        }
+        CacheFill fill = new CacheFill(store, key, true);
+        if (inFlight.putIfAbsent(key, fill) != null) {
+            fill.close();
+            return null;
+        }
+        return fill;
+    }
+
+    public static CacheFill inFlight(String key) {
+        return inFlight.get(key);
+    }
+
+    // The response head, set before the first body write.
+    public void writeHead(byte[] head) {
+        synchronized (this) {
+            this.head = head;
+            notifyAll();
+        }
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        digest.update(data, offset, length);
+        synchronized (this) {
+            size += length;
+            notifyAll();
+        }
+    }
+
+    // Whether the response being written ends by its own framing rather than by the connection
+    // closing, which tells followers whether their client connection can stay open.
+    public void setDelimited(boolean delimited) {
+        this.delimited = delimited;
+    }
+
+    public boolean isDelimited() {
+        return delimited;
+    }
+
+    // Status of the response being written, for followers' request logs.
+    public void setStatusCode(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    // Head and body bytes received so far.
+    public synchronized long getSize() {
+        return head.length + size;
+    }
+
+    // Stores the body gzip-compressed if that pays off; head is the response head, whose framing
+    // the body was written in.
+    public void compress(HttpResponseHead head) {
+        this.compressHead = head;
+    }
+
+    public void commit() throws IOException {
+        out.close();
+        Path body = compressHead != null && size >= ProxyConfig.CACHE_COMPRESSION_MIN_BYTES ? storeCompressed() : null;
+        if (body == null) {
+            body = store.storeBody(tempFile, CacheStore.hex(digest.digest()));
+            synchronized (this) {
+                bodyPath = body;
+            }
+        }
+        entryPath = store.writeEntry(key, body, storedHead != null ? storedHead.getRaw() : head);
+        synchronized (this) {
+            committed = true;
+            finished = true;
+            notifyAll();
+        }
+    }
+
+    // Decodes the framing of the body received, gzips it into a second temp file and stores that
+    // under a head rewritten to match. Returns null, leaving the received body as it is, when
+    // compression saves too little or fails.
+    private Path storeCompressed() throws IOException {
+        Path compressed = store.createTempFile();
+        MessageDigest compressedDigest = CacheStore.newDigest();
+        long decoded;
+        try {
+            try (InputStream in = HttpBodyInputStream.decoding(compressHead, Files.newInputStream(tempFile));
+                 OutputStream gzip = new GZIPOutputStream(new DigestOutputStream(Files.newOutputStream(compressed), compressedDigest), 8192) {
+                     {
+                         def.setLevel(ProxyConfig.CACHE_COMPRESSION_LEVEL);
+                     }
+                 }) {
+                decoded = in.transferTo(gzip);
+            }
+            long compressedSize = Files.size(compressed);
+            if (compressedSize > decoded * MAX_COMPRESSED_RATIO) {
+                Files.delete(compressed);
+                return null;
+            }
+            String vary = compressHead.getHeaderList("Vary");
+            List<String> added = new ArrayList<>();
+            added.add("Content-Encoding: gzip");
+            added.add("Content-Length: " + compressedSize);
+            added.add("Vary: " + (vary == null ? "Accept-Encoding"
+                    : HttpResponseHead.hasToken(vary, "accept-encoding") ? vary : vary + ", Accept-Encoding"));
+            storedHead = compressHead.withHeaders(REWRITTEN_FIELDS, added);
+        } catch (IOException e) {
+            Files.deleteIfExists(compressed);
+            return null; // a body whose framing does not decode is still stored as received
+        }
+        Path body = store.storeBody(compressed, CacheStore.hex(compressedDigest.digest()));
+        Files.deleteIfExists(tempFile);
+        synchronized (this) {
+            bodyPath = body;
+            identityLength = decoded;
+        }
+        return body;
+    }
+
+    // The head written to the entry and the body length before compression, or null and -1 when
+    // the response was stored as received.
+    public HttpResponseHead getStoredHead() {
+        return storedHead;
+    }
+
+    public long getIdentityLength() {
+        return identityLength;
+    }
+
+    // Paths of the committed entry, for its CachedResource.
+    public Path getEntryPath() {
+        return entryPath;
+    }
+
+    public Path getBodyPath() {
+        return bodyPath;
+    }
+
+    // Drops the partial entry unless it was committed and stops accepting followers. A committed
+    // fill hands back the reference on its body, which the cache index holds from then on.
+    // Safe to call more than once.
+    @Override
+    public void close() {
+        if (registered) {
+            inFlight.remove(key, this);
+        }
+        synchronized (this) {
+            if (committed) {
+                if (bodyPath != null) {
+                    store.release(bodyPath);
+                    bodyPath = null;
+                }
+                return;
+            }
+            finished = true;
+            notifyAll();
+        }
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // the temp file is deleted below either way
+        }
+        try {
+            Files.deleteIfExists(tempFile);
+        } catch (IOException ignored) {
+            // leftover temp files are never read as cache entries
+        }
+    }
+
+    // Streams the response this fill is receiving to target, waiting for the leader as needed.
+    // Returns true once the whole response was sent, or false if the leader failed or stalled
+    // for longer than timeoutMillis before anything was sent, so the caller can fetch itself.
+    // Failing after part of the response went out is an IOException.
+    public boolean follow(WritableByteChannel target, long timeoutMillis) throws IOException {
+        FileChannel in;
+        try {
+            in = FileChannel.open(tempFile, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            Path body;
+            synchronized (this) {
+                body = identityLength < 0 ? bodyPath : null; // a compressed body does not match the head sent
+            }
+            if (body == null) {
+                return false; // failed, or committed and closed, so the entry is in the cache now
+            }
+            try {
+                in = FileChannel.open(body, StandardOpenOption.READ);
+            } catch (NoSuchFileException replaced) {
+                return false;
+            }
+        }
+        try (FileChannel input = in) {
+            long sent = 0; // head and body bytes
+            while (true) {
+                byte[] currentHead;
+                long available;
+                boolean done;
+                boolean succeeded;
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + timeoutMillis;
+                    long remaining = timeoutMillis;
+                    while (head.length + size == sent && !finished && remaining > 0) {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                    currentHead = head;
+                    available = currentHead.length + size;
+                    done = finished;
+                    succeeded = committed;
+                }
+                if (done && !succeeded) {
+                    if (sent == 0) {
+                        return false;
+                    }
+                    throw new IOException("In-flight fetch failed after " + sent + " bytes");
+                }
+                if (available > sent) {
+                    if (sent < currentHead.length) {
+                        ByteBuffer headBuffer = ByteBuffer.wrap(currentHead, (int) sent, currentHead.length - (int) sent);
+                        while (headBuffer.hasRemaining()) {
+                            target.write(headBuffer);
+                        }
+                        sent = currentHead.length;
+                    }
+                    while (sent < available) {
+                        sent += input.transferTo(sent - currentHead.length, available - sent, target);
+                    }
+                } else if (done) {
+                    return true;
+                } else {
+                    if (sent == 0) {
+                        return false;
+                    }
+                    throw new IOException("Timed out waiting for in-flight fetch after " + sent + " bytes");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while following in-flight fetch");
+        }
+    }
+}
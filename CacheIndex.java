@@ -0,0 +1,508 @@
+package CSE471;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// The cache map, made durable. Every put and remove is appended to a journal in the cache
+// directory, and load() replays it at startup so the files on disk are served again after a
+// restart instead of being orphaned. Records carry a CRC, so a record torn by a crash ends the
+// replay instead of corrupting it. Once the journal holds more than twice as many records as
+// there are entries it is compacted: rewritten with one record per entry and swapped in with an
+// atomic rename.
+//
+// Replay only decodes keys; an entry's CachedResource is built from its record the first time
+// it is used, so a large index is available almost as soon as the journal is read.
+//
+// Each entry holds a reference on its body in the CacheStore, so a body shared by several keys
+// is deleted only when the last of them is replaced or removed. Entries put after load() take
+// theirs right away; replayed ones are counted by recover(), which then lets the store delete.
+public class CacheIndex extends AbstractMap<String, CachedResource> {
+    static final String JOURNAL_NAME = "index.journal";
+    private static final int MAGIC = 0x43494458; // "CIDX"
+    private static final int VERSION = 3; // 2 added the body path of the content-addressed store, 3 the identity length
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    // File times can trail the clock by a few ticks, so fills started just after load() may look older
+    private static final long MTIME_SLACK_MILLIS = 2000;
+
+    private final CacheStore store;
+    private final Path directory;
+    private final Path journalPath;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private OutputStream journal; // null until load(), guarded by this
+    private int journalRecords;   // guarded by this
+    private long loadedAt;
+
+    // Results of the last load() and recover(), for the log
+    private int tornRecords;
+    private int droppedEntries;
+    private int orphanFiles;
+
+    private static class Entry {
+        private CachedResource resource;
+        private long size;                // body size when the entry was published, checked by recover()
+        private volatile byte[] record;   // journal bytes to decode the entry from, null once decoded
+        private int offset;
+        private boolean broken;
+        private boolean counted;          // holds a reference on its body, guarded by the index
+        Entry(CachedResource resource, long size) {
+            this.resource = resource;
+            this.size = size;
+        }
+
+        Entry(byte[] record, int offset) {
+            this.record = record;
+            this.offset = offset;
+        }
+
+        // The entry's resource, or null if its record cannot be decoded. Clearing the volatile
+        // record publishes the decoded fields, so decoded entries are read without locking.
+        CachedResource resource() {
+            if (record != null) {
+                synchronized (this) {
+                    if (record != null) {
+                        ByteBuffer in = ByteBuffer.wrap(record);
+                        in.position(offset);
+                        try {
+                            decode(in);
+                        } catch (MalformedURLException | BufferUnderflowException e) {
+                            broken = true;
+                        }
+                        record = null;
+                    }
+                }
+            }
+            return resource;
+        }
+
+        long size() {
+            resource();
+            return size;
+        }
+
+        boolean isBroken() {
+            resource();
+            return broken;
+        }
+
+        private void decode(ByteBuffer in) throws MalformedURLException {
+            URL url = new URL(readString(in));
+            String filePath = readString(in);
+            String bodyPath = readString(in);
+            long requestTime = in.getLong();
+            long responseTime = in.getLong();
+            int statusCode = in.getInt();
+            int headerLength = in.getInt();
+            boolean delimited = in.get() != 0;
+            long identityLength = in.getLong();
+            size = in.getLong();
+            resource = new CachedResource(url, filePath, bodyPath, requestTime, responseTime, statusCode, headerLength,
+                    delimited, identityLength, readString(in), readString(in), readString(in), readString(in), readString(in),
+                    readString(in));
+        }
+    }
+
+    public CacheIndex(CacheStore store) {
+        this.store = store;
+        this.directory = store.getDirectory();
+        this.journalPath = directory.resolve(JOURNAL_NAME);
+    }
+
+    // Replays the journal so the entries are served right away. Entries put before load() are
+    // kept. Call recover() afterwards to check the entries against the files on disk.
+    public synchronized void load() throws IOException {
+        Files.createDirectories(directory);
+        loadedAt = System.currentTimeMillis();
+        tornRecords = 0;
+        int records = 0;
+        Map<String, Entry> replayed = Collections.emptyMap();
+        try {
+            byte[] bytes = Files.readAllBytes(journalPath);
+            replayed = new HashMap<>(bytes.length / 100); // records are ~150 bytes
+            records = replay(bytes, replayed);
+        } catch (NoSuchFileException e) {
+            // first start, nothing cached yet
+        }
+        replayed.forEach(entries::putIfAbsent);
+        if (tornRecords > 0 || !Files.exists(journalPath)) {
+            compact(); // appending after a torn record would leave the new records unreadable
+        } else {
+            journal = new BufferedOutputStream(Files.newOutputStream(journalPath, StandardOpenOption.APPEND), 8192);
+            journalRecords = records;
+        }
+    }
+
+    // Returns the number of intact records.
+    private int replay(byte[] bytes, Map<String, Entry> replayed) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (in.remaining() < 8) {
+            return 0;
+        }
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            tornRecords++; // not a journal this version can read; start over
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        int records = 0;
+        while (in.remaining() >= 8) {
+            int length = in.getInt();
+            long checksum = in.getInt() & 0xFFFFFFFFL;
+            int start = in.position();
+            if (length <= 0 || length > MAX_RECORD_SIZE || length > in.remaining()) {
+                tornRecords++; // a record cut short or garbled by a crash
+                return records;
+            }
+            crc.reset();
+            crc.update(bytes, start, length);
+            if (crc.getValue() != checksum) {
+                tornRecords++;
+                return records;
+            }
+            ByteBuffer record = ByteBuffer.wrap(bytes, start, length);
+            try {
+                byte type = record.get();
+                String key = readString(record);
+                if (type == REMOVE) {
+                    replayed.remove(key);
+                } else if (type == PUT) {
+                    replayed.put(key, new Entry(bytes, record.position()));
+                }
+            } catch (BufferUnderflowException e) {
+                tornRecords++;
+                return records;
+            }
+            in.position(start + length);
+            records++;
+        }
+        if (in.hasRemaining()) {
+            tornRecords++;
+        }
+        return records;
+    }
+
+    // Drops entries whose entry file is missing or whose body no longer has the recorded size,
+    // counts the remaining entries' references on their bodies, deletes entry files, bodies and
+    // leftover fill temp files from before load() that nothing refers to, and compacts the journal.
+    // Runs alongside requests: it only removes entries that were not replaced meanwhile, and files
+    // written since load() are left alone.
+    public void recover() throws IOException {
+        int dropped = 0;
+        Set<Path> referenced = new HashSet<>(); // entry files
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.isBroken()) {
+                if (removeIfCurrent(e.getKey(), entry)) {
+                    dropped++;
+                }
+                continue;
+            }
+            CachedResource resource = entry.resource();
+            Path file = Paths.get(resource.getFilePath());
+            long size;
+            try {
+                size = Files.size(Paths.get(resource.getBodyPath()));
+            } catch (IOException missing) {
+                size = -1;
+            }
+            if (size != entry.size() || !Files.isRegularFile(file)) {
+                if (removeIfCurrent(e.getKey(), entry)) {
+                    dropped++;
+                }
+            } else {
+                referenced.add(file.toAbsolutePath().normalize());
+            }
+        }
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                if (!entry.counted && !entry.isBroken()) {
+                    store.retain(Paths.get(entry.resource().getBodyPath()));
+                    entry.counted = true;
+                }
+            }
+            store.startCollecting();
+        }
+
+        long cutoff = loadedAt - MTIME_SLACK_MILLIS;
+        int orphans = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                // *.cache files are entries from before the content-addressed layout
+                boolean cacheFile = name.endsWith(".cache") || (name.startsWith("fill") && name.endsWith(".tmp"));
+                if (cacheFile && Files.getLastModifiedTime(file).toMillis() < cutoff) {
+                    Files.deleteIfExists(file);
+                    orphans++;
+                }
+            }
+        }
+        for (Path file : listTree(directory.resolve(CacheStore.ENTRIES))) {
+            if (!referenced.contains(file.toAbsolutePath().normalize())
+                    && Files.getLastModifiedTime(file).toMillis() < cutoff) {
+                Files.deleteIfExists(file);
+                orphans++;
+            }
+        }
+        for (Path file : listTree(directory.resolve(CacheStore.OBJECTS))) {
+            if (store.deleteIfUnreferenced(file, cutoff)) {
+                orphans++;
+            }
+        }
+        synchronized (this) {
+            droppedEntries = dropped;
+            orphanFiles = orphans;
+            if (journal != null) {
+                compact();
+            }
+        }
+    }
+
+    private static List<Path> listTree(Path root) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public CachedResource get(Object key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.resource();
+    }
+
+    // Entries whose record cannot be decoded count as absent, so containsKey() and get() agree.
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized CachedResource put(String key, CachedResource resource) {
+        Path body = Paths.get(resource.getBodyPath());
+        long size;
+        try {
+            size = Files.size(body);
+        } catch (IOException e) {
+            size = -1; // recorded as is; recover() drops it unless the file reappears with that size
+        }
+        Entry entry = new Entry(resource, size);
+        store.retain(body);
+        entry.counted = true;
+        Entry previous = entries.put(key, entry);
+        release(previous);
+        append(PUT, key, entry);
+        return previous == null ? null : previous.resource();
+    }
+
+    // Called with the lock held.
+    private void release(Entry entry) {
+        if (entry != null && entry.counted) {
+            entry.counted = false;
+            store.release(Paths.get(entry.resource().getBodyPath()));
+        }
+    }
+
+    @Override
+    public synchronized CachedResource remove(Object key) {
+        Entry previous = entries.remove(key);
+        if (previous == null) {
+            return null;
+        }
+        release(previous);
+        append(REMOVE, (String) key, null);
+        return previous.resource();
+    }
+
+    private synchronized boolean removeIfCurrent(String key, Entry entry) {
+        if (!entries.remove(key, entry)) {
+            return false;
+        }
+        release(entry);
+        append(REMOVE, key, null);
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.values().forEach(this::release);
+        entries.clear();
+        compact();
+    }
+
+    // A snapshot; changes go through put and remove so they reach the journal.
+    @Override
+    public Set<Map.Entry<String, CachedResource>> entrySet() {
+        Map<String, CachedResource> snapshot = new LinkedHashMap<>();
+        entries.forEach((key, entry) -> {
+            CachedResource resource = entry.resource();
+            if (resource != null) {
+                snapshot.put(key, resource);
+            }
+        });
+        return Collections.unmodifiableMap(snapshot).entrySet();
+    }
+
+    // Forces the journal to disk and stops writing it. The map stays usable in memory.
+    public synchronized void close() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ignored) {
+                // the records were flushed as they were written
+            }
+            journal = null;
+        }
+    }
+
+    public int getTornRecords() {
+        return tornRecords;
+    }
+
+    public int getDroppedEntries() {
+        return droppedEntries;
+    }
+
+    public int getOrphanFiles() {
+        return orphanFiles;
+    }
+
+    // Called with the lock held. A failed write stops journaling rather than failing the request;
+    // the next load() then starts from the records written so far.
+    private void append(byte type, String key, Entry entry) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            writeRecord(journal, type, key, entry);
+            journal.flush();
+            journalRecords++;
+            if (journalRecords > MIN_COMPACTION_RECORDS && journalRecords > 2 * entries.size()) {
+                compact();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    // Called with the lock held.
+    private void compact() {
+        close();
+        Path temp = directory.resolve(JOURNAL_NAME + ".tmp");
+        try {
+            int records = 0;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 65536);
+                DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    if (!e.getValue().isBroken()) {
+                        writeRecord(out, PUT, e.getKey(), e.getValue());
+                        records++;
+                    }
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            journal = new BufferedOutputStream(Files.newOutputStream(journalPath, StandardOpenOption.APPEND), 8192);
+            journalRecords = records;
+        } catch (IOException e) {
+            journal = null; // keep serving from memory; the old journal is still intact
+        }
+    }
+
+    private static void writeRecord(OutputStream out, byte type, String key, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(type);
+        writeString(record, key);
+        if (type == PUT) {
+            CachedResource resource = entry.resource();
+            writeString(record, resource.getUrl().toString());
+            writeString(record, resource.getFilePath());
+            writeString(record, resource.getBodyPath());
+            record.writeLong(resource.getRequestTime());
+            record.writeLong(resource.getTimestamp());
+            record.writeInt(resource.getStatusCode());
+            record.writeInt(resource.getHeaderLength());
+            record.writeBoolean(resource.isDelimited());
+            record.writeLong(resource.getIdentityLength());
+            record.writeLong(entry.size());
+            writeString(record, resource.getDate());
+            writeString(record, resource.getAge());
+            writeString(record, resource.getCacheControl());
+            writeString(record, resource.getExpires());
+            writeString(record, resource.getETag());
+            writeString(record, resource.getLastModified());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        ByteBuffer frame = ByteBuffer.allocate(8);
+        frame.putInt(bytes.size()).putInt((int) crc.getValue());
+        out.write(frame.array());
+        bytes.writeTo(out);
+    }
+
+    // Length-prefixed UTF-8, with -1 for null; unlike writeUTF this has no 64 KB limit.
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,215 @@
+package CSE471;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Layout of the cache directory. A response is stored as two files:
+//
+//   entries/ab/cd/<sha256 of the key>   header with the key and the body's name, then the response head
+//   objects/ab/cd/<sha256 of the body>  the body, shared by every entry with the same bytes
+//
+// Names are fixed-length hex digests, so any URL maps to a valid name and no two keys share a file
+// unless their hashes collide; the key in the entry header catches that case and a stale pairing
+// of entry and body. The first two bytes of each digest pick the directories, which keeps each one
+// small with millions of files.
+//
+// Bodies are reference counted by the entries in the CacheIndex that point at them. Counting only
+// starts once recover() has seen every entry, so until then no body is deleted and the ones left
+// unreferenced are swept at the next start instead.
+public class CacheStore {
+    static final String ENTRIES = "entries";
+    static final String OBJECTS = "objects";
+    private static final int MAGIC = 0x43454e54; // "CENT"
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(CacheStore::newDigest);
+
+    private final Path directory;
+    private final Map<Path, Integer> references = new HashMap<>(); // guarded by this
+    private boolean collecting; // guarded by this
+    private long deduplicated;  // guarded by this
+
+    public CacheStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required of every JVM", e);
+        }
+    }
+
+    static String hex(byte[] digest) {
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    public Path entryPath(String key) {
+        MessageDigest digest = SHA_256.get();
+        return shard(ENTRIES, hex(digest.digest(key.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    public Path objectPath(String contentHash) {
+        return shard(OBJECTS, contentHash);
+    }
+
+    private Path shard(String tree, String name) {
+        return directory.resolve(tree).resolve(name.substring(0, 2)).resolve(name.substring(2, 4)).resolve(name);
+    }
+
+    // Temp files live in the cache directory itself, so publishing them is a rename on one file system.
+    public Path createTempFile() throws IOException {
+        Files.createDirectories(directory);
+        return Files.createTempFile(directory, "fill", ".tmp");
+    }
+
+    // Publishes a body written to temp whose SHA-256 is contentHash. If the same bytes are already
+    // stored, temp is deleted and the stored copy is used. Returns the body's path with a reference
+    // taken for the caller, to be handed back with release() once the entry is in the index.
+    public synchronized Path storeBody(Path temp, String contentHash) throws IOException {
+        Path target = objectPath(contentHash);
+        if (Files.exists(target)) {
+            Files.deleteIfExists(temp);
+            deduplicated++;
+        } else {
+            Files.createDirectories(target.getParent());
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        references.merge(target, 1, Integer::sum);
+        return target;
+    }
+
+    // Stores body under its hash, for entries that are not streamed through a CacheFill.
+    public Path storeBody(byte[] body) throws IOException {
+        Path temp = createTempFile();
+        try {
+            Files.write(temp, body);
+            return storeBody(temp, hex(SHA_256.get().digest(body)));
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Writes the entry file for key, replacing any earlier one in a single rename.
+    public Path writeEntry(String key, Path body, byte[] head) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(head.length + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] bodyName = body.getFileName().toString().getBytes(StandardCharsets.US_ASCII);
+        out.writeInt(MAGIC);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+        out.writeInt(bodyName.length);
+        out.write(bodyName);
+        out.writeInt(head.length);
+        out.write(head);
+
+        Path target = entryPath(key);
+        Files.createDirectories(target.getParent());
+        Path temp = createTempFile();
+        try {
+            Files.write(temp, bytes.toByteArray());
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return target;
+    }
+
+    // The response head stored in entry, after checking that the entry belongs to key and still
+    // points at body. A mismatch means a hash collision or an entry replaced since it was indexed.
+    static byte[] readHead(Path entry, String key, Path body) throws IOException {
+        ByteBuffer in;
+        try {
+            in = ByteBuffer.wrap(Files.readAllBytes(entry));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("Cache entry not found: " + entry);
+        }
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a cache entry: " + entry);
+            }
+            String storedKey = readString(in, StandardCharsets.UTF_8);
+            String bodyName = readString(in, StandardCharsets.US_ASCII);
+            if (!storedKey.equals(key) || !bodyName.equals(body.getFileName().toString())) {
+                throw new IOException("Cache entry " + entry + " does not belong to " + key);
+            }
+            byte[] head = new byte[in.getInt()];
+            in.get(head);
+            return head;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt cache entry: " + entry, e);
+        }
+    }
+
+    private static String readString(ByteBuffer in, Charset charset) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, charset);
+    }
+
+    public synchronized void retain(Path body) {
+        references.merge(body, 1, Integer::sum);
+    }
+
+    // Drops a reference; a body no entry refers to any more is deleted once counting has started.
+    public synchronized void release(Path body) {
+        Integer count = references.get(body);
+        if (count == null) {
+            return; // taken before counting started
+        }
+        if (count > 1) {
+            references.put(body, count - 1);
+            return;
+        }
+        references.remove(body);
+        if (collecting) {
+            try {
+                Files.deleteIfExists(body);
+            } catch (IOException ignored) {
+                // left for the sweep at the next start
+            }
+        }
+    }
+
+    // Deletes a body no entry refers to that was last written before cutoff; newer ones may belong
+    // to a fill that has not reached the index yet. Returns whether it was deleted.
+    public synchronized boolean deleteIfUnreferenced(Path body, long cutoff) throws IOException {
+        if (!collecting || references.containsKey(body) || Files.getLastModifiedTime(body).toMillis() >= cutoff) {
+            return false;
+        }
+        return Files.deleteIfExists(body);
+    }
+
+    // Called by CacheIndex.recover() once every entry holds a reference.
+    public synchronized void startCollecting() {
+        collecting = true;
+    }
+
+    // Stores that found their body already on disk.
+    public synchronized long getDeduplicatedCount() {
+        return deduplicated;
+    }
+}
@@ -1,18 +1,210 @@
 package CSE471;
 
 import java.io.*;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.*;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 public class CachedResource {
+    private static final long DEFAULT_TTL = 300000; // 5 minutes, for entries stored without response headers
+    private static final long MAX_HEURISTIC_TTL = 86400000; // 1 day
+    // Status codes that may be cached without explicit freshness information (RFC 9110, 15.1)
+    private static final Set<Integer> HEURISTICALLY_CACHEABLE = Set.of(200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501);
+    // Media types worth compressing besides text/*; +json and +xml types are matched by suffix
+    private static final Set<String> COMPRESSIBLE_TYPES = Set.of("application/javascript", "application/x-javascript",
+            "application/ecmascript", "application/json", "application/xml", "application/xhtml+xml",
+            "application/wasm", "image/svg+xml", "image/x-icon", "font/ttf", "font/otf");
+    // Fields that describe the compressed body and are replaced in the head sent uncompressed
+    private static final Set<String> COMPRESSION_FIELDS = Set.of("content-encoding", "content-length");
+
+    // Thrown once sending an entry to the client has begun. The client may hold part of the
+    // response, so nothing else can be sent on its connection.
+    public static class PartialResponseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public PartialResponseException(IOException cause) {
+            super("Cache entry only partly sent: " + cause.getMessage(), cause);
+        }
+    }
+
     private URL url;
-    private String filePath;
-    private long timestamp;
+    private String filePath;  // entry file holding the response head, see CacheStore
+    private String bodyPath;  // content-addressed body, possibly shared with other entries
+    private long timestamp;   // when the response head arrived
+    private long requestTime; // when the request that produced it was sent
+    private int statusCode;
+    private int headerLength; // bytes of status line and headers at the start of the file, -1 if unknown
+    private boolean delimited; // whether the stored body ends by its own framing rather than at connection close
+    private long identityLength; // body length before the proxy gzip-compressed it, -1 if stored as received
+    // Stored response fields that freshness and revalidation depend on
+    private String date;
+    private String age;
+    private String cacheControl;
+    private String expires;
+    private String etag;
+    private String lastModified;
+    private long freshnessLifetime;
+
+    public CachedResource(URL url, String filePath, String bodyPath, long timestamp) {
+        this(url, filePath, bodyPath, timestamp, timestamp, 200, -1, false, -1, null, null, null, null, null, null);
+    }
 
-    public CachedResource(URL url, String filePath, long timestamp) {
+    public CachedResource(URL url, String filePath, String bodyPath, long requestTime, long responseTime, HttpResponseHead head) {
+        this(url, filePath, bodyPath, requestTime, responseTime, head, -1);
+    }
+
+    // head is the stored one; identityLength is the body length before compression, or -1.
+    public CachedResource(URL url, String filePath, String bodyPath, long requestTime, long responseTime, HttpResponseHead head,
+                          long identityLength) {
+        this(url, filePath, bodyPath, requestTime, responseTime, head.getStatusCode(), head.getRaw().length,
+                HttpBodyInputStream.isDelimited(head, HttpMethods.GET), identityLength, head.getHeader("Date"), head.getHeader("Age"),
+                head.getHeaderList("Cache-Control"), head.getHeader("Expires"), head.getHeader("ETag"),
+                head.getHeader("Last-Modified"));
+    }
+
+    CachedResource(URL url, String filePath, String bodyPath, long requestTime, long responseTime, int statusCode,
+                   int headerLength, boolean delimited, long identityLength, String date, String age, String cacheControl,
+                   String expires, String etag, String lastModified) {
         this.url = url;
         this.filePath = filePath;
-        this.timestamp = timestamp;
+        this.bodyPath = bodyPath;
+        this.requestTime = requestTime;
+        this.timestamp = responseTime;
+        this.statusCode = statusCode;
+        this.headerLength = headerLength;
+        this.delimited = delimited;
+        this.identityLength = identityLength;
+        this.date = date;
+        this.age = age;
+        this.cacheControl = cacheControl;
+        this.expires = expires;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.freshnessLifetime = computeFreshnessLifetime();
+    }
+
+    // Whether a shared cache may store this response (RFC 9111, section 3). A response that would be
+    // stale as soon as it is stored is only kept when it has a validator to revalidate it with.
+    public static boolean isStorable(HttpResponseHead head) {
+        String cacheControl = head.getHeaderList("Cache-Control");
+        if (directive(cacheControl, "no-store") != null || directive(cacheControl, "private") != null) {
+            return false;
+        }
+        if ("*".equals(head.getHeader("Vary"))) {
+            return false;
+        }
+        int status = head.getStatusCode();
+        if (status == 206 || status == 304 || status < 200) {
+            return false;
+        }
+        if (directive(cacheControl, "max-age") == null && directive(cacheControl, "s-maxage") == null
+                && directive(cacheControl, "public") == null && head.getHeader("Expires") == null
+                && !HEURISTICALLY_CACHEABLE.contains(status)) {
+            return false;
+        }
+        String lastModified = head.getHeader("Last-Modified");
+        if (head.getHeader("ETag") != null || lastModified != null) {
+            return true;
+        }
+        return directive(cacheControl, "no-cache") == null && freshnessLifetime(status, cacheControl,
+                head.getHeader("Expires"), head.getHeader("Date"), lastModified, System.currentTimeMillis()) > 0;
+    }
+
+    // Whether a response to a POST may be stored as the entry for url (RFC 9110, 9.3.3): only with
+    // explicit freshness and a Content-Location naming the request target, which marks the body
+    // as what a GET of that URL would return.
+    public static boolean isStorableForPost(HttpResponseHead head, URL url) {
+        String cacheControl = head.getHeaderList("Cache-Control");
+        if (!isStorable(head) || (directive(cacheControl, "max-age") == null
+                && directive(cacheControl, "s-maxage") == null && head.getHeader("Expires") == null)) {
+            return false;
+        }
+        String contentLocation = head.getHeader("Content-Location");
+        if (contentLocation == null) {
+            return false;
+        }
+        try {
+            return new URL(url, contentLocation).toString().equals(url.toString());
+        } catch (MalformedURLException e) {
+            return false;
+        }
+    }
+
+    // Whether the proxy may store the body gzip-compressed and serve it decompressed to clients that
+    // do not accept gzip: a text-like, unencoded body that the origin allows to be transformed
+    // (RFC 9110, 8.4; RFC 9111, 5.2.2.6).
+    public static boolean isCompressible(HttpResponseHead head) {
+        if (head.getStatusCode() != 200 || directive(head.getHeaderList("Cache-Control"), "no-transform") != null) {
+            return false;
+        }
+        String contentEncoding = head.getHeaderList("Content-Encoding");
+        if (contentEncoding != null && !contentEncoding.trim().equalsIgnoreCase("identity")) {
+            return false;
+        }
+        String transferEncoding = head.getHeaderList("Transfer-Encoding");
+        if (transferEncoding != null && !transferEncoding.trim().equalsIgnoreCase("chunked")) {
+            return false;
+        }
+        String contentType = head.getHeader("Content-Type");
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+        return type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml") || COMPRESSIBLE_TYPES.contains(type);
+    }
+
+    // Whether an Accept-Encoding field value allows a gzip response (RFC 9110, 12.5.3). A missing
+    // field allows any coding, but clients that omit it rarely expect one, so it counts as no.
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double gzip = -1;
+        double any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String[] parameters = part.split(";");
+            String coding = parameters[0].trim().toLowerCase();
+            double quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.length() > 2 && (parameter.charAt(0) == 'q' || parameter.charAt(0) == 'Q') && parameter.charAt(1) == '=') {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = Math.max(gzip, quality);
+            } else if (coding.equals("*")) {
+                any = quality;
+            }
+        }
+        return gzip >= 0 ? gzip > 0 : any > 0;
+    }
+
+    // The same entry with the fields a 304 Not Modified carried, freshened as of its arrival.
+    public CachedResource revalidated(HttpResponseHead notModified, long requestTime, long responseTime) {
+        return new CachedResource(url, filePath, bodyPath, requestTime, responseTime, statusCode, headerLength, delimited,
+                identityLength, orElse(notModified.getHeader("Date"), date),
+                notModified.getHeader("Age"),
+                orElse(notModified.getHeaderList("Cache-Control"), cacheControl),
+                orElse(notModified.getHeader("Expires"), expires),
+                orElse(notModified.getHeader("ETag"), etag),
+                orElse(notModified.getHeader("Last-Modified"), lastModified));
     }
 
     public URL getUrl() {
@@ -23,22 +215,255 @@ public class CachedResource {
         return filePath;
     }
 
+    public String getBodyPath() {
+        return bodyPath;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getRequestTime() {
+        return requestTime;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    public boolean isDelimited() {
+        return delimited;
+    }
+
+    // Whether the proxy stored the body gzip-compressed; the stored head then says so.
+    public boolean isCompressed() {
+        return identityLength >= 0;
+    }
+
+    public long getIdentityLength() {
+        return identityLength;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public String getAge() {
+        return age;
+    }
+
+    public String getCacheControl() {
+        return cacheControl;
+    }
+
+    public String getExpires() {
+        return expires;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+
     public boolean isExpired() {
-        long duration = System.currentTimeMillis() - timestamp;
-        return duration > 300000; // 5 minutes expiration
+        if (directive(cacheControl, "no-cache") != null) {
+            return true; // may be stored, but every use must be revalidated
+        }
+        return getCurrentAge() >= freshnessLifetime;
+    }
+
+    public long getFreshnessLifetime() {
+        return freshnessLifetime;
+    }
+
+    // RFC 9111, section 4.2.3
+    public long getCurrentAge() {
+        long dateValue = parseHttpDate(date);
+        long apparentAge = dateValue < 0 ? 0 : Math.max(0, timestamp - dateValue);
+        long responseDelay = timestamp - requestTime;
+        long correctedAgeValue = parseSeconds(age) * 1000 + responseDelay;
+        long correctedInitialAge = Math.max(apparentAge, correctedAgeValue);
+        long residentTime = System.currentTimeMillis() - timestamp;
+        return correctedInitialAge + residentTime;
+    }
+
+    // RFC 9111, sections 4.2.1 and 4.2.2
+    private long computeFreshnessLifetime() {
+        if (headerLength < 0) {
+            return DEFAULT_TTL;
+        }
+        return freshnessLifetime(statusCode, cacheControl, expires, date, lastModified, timestamp);
+    }
+
+    private static long freshnessLifetime(int statusCode, String cacheControl, String expires, String date,
+                                          String lastModified, long timestamp) {
+        String sharedMaxAge = directive(cacheControl, "s-maxage");
+        if (sharedMaxAge != null) {
+            return parseSeconds(sharedMaxAge) * 1000;
+        }
+        String maxAge = directive(cacheControl, "max-age");
+        if (maxAge != null) {
+            return parseSeconds(maxAge) * 1000;
+        }
+        if (expires != null) {
+            long expiresValue = parseHttpDate(expires);
+            long dateValue = parseHttpDate(date);
+            if (expiresValue < 0) {
+                return 0; // an invalid Expires means already expired
+            }
+            return Math.max(0, expiresValue - (dateValue < 0 ? timestamp : dateValue));
+        }
+        long lastModifiedValue = parseHttpDate(lastModified);
+        if (lastModifiedValue >= 0 && HEURISTICALLY_CACHEABLE.contains(statusCode)) {
+            long dateValue = parseHttpDate(date);
+            long sinceModified = (dateValue < 0 ? timestamp : dateValue) - lastModifiedValue;
+            return Math.min(MAX_HEURISTIC_TTL, Math.max(0, sinceModified / 10));
+        }
+        return 0;
+    }
+
+    // Value of a Cache-Control directive: "" when present without an argument, null when absent.
+    static String directive(String cacheControl, String name) {
+        if (cacheControl == null) {
+            return null;
+        }
+        for (String part : cacheControl.split(",")) {
+            String directive = part.trim();
+            int equals = directive.indexOf('=');
+            String directiveName = equals < 0 ? directive : directive.substring(0, equals).trim();
+            if (directiveName.equalsIgnoreCase(name)) {
+                return equals < 0 ? "" : directive.substring(equals + 1).trim().replace("\"", "");
+            }
+        }
+        return null;
+    }
+
+    static long parseHttpDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String orElse(String value, String fallback) {
+        return value != null ? value : fallback;
     }
 
+    // Status line and headers, read from the entry file after checking it still belongs to this
+    // resource. Entries stored without response headers keep the whole response here.
+    public byte[] getHead() throws IOException {
+        return CacheStore.readHead(Paths.get(filePath), url.toString(), Paths.get(bodyPath));
+    }
+
+    // Head and body in one array; the body is read straight into place behind the head.
     public byte[] getData() throws IOException {
-        Path path = Paths.get(filePath);
-        if (!Files.exists(path)) {
-            throw new FileNotFoundException("Cache file not found: " + filePath);
+        try (FileChannel body = openBody()) {
+            byte[] head = getHead();
+            long size = body.size();
+            if (head.length + size > Integer.MAX_VALUE) {
+                throw new IOException("Cache entry too large to load: " + filePath);
+            }
+            byte[] data = Arrays.copyOf(head, head.length + (int) size);
+            ByteBuffer buffer = ByteBuffer.wrap(data, head.length, (int) size);
+            while (buffer.hasRemaining()) {
+                if (body.read(buffer) == -1) {
+                    throw new IOException("Cache file truncated: " + bodyPath);
+                }
+            }
+            return data;
         }
-        return Files.readAllBytes(path);
     }
 
-    public void setData(byte[] data) throws IOException {
-        Files.createDirectories(Paths.get(filePath).getParent());
-        Files.write(Paths.get(filePath), data);
+    // Head and body together, as sent to a client.
+    public long getSize() throws IOException {
+        long head = headerLength >= 0 ? headerLength : getHead().length;
+        return head + Files.size(Paths.get(bodyPath));
+    }
+
+    // Streams the head and then the body file without loading the body into the heap. For a socket
+    // channel target the JDK uses sendfile, so the body bytes never leave the kernel.
+    public long transferTo(WritableByteChannel target) throws IOException {
+        try (FileChannel body = openBody()) {
+            ByteBuffer head = ByteBuffer.wrap(getHead());
+            try {
+                while (head.hasRemaining()) {
+                    target.write(head);
+                }
+                long size = body.size();
+                long position = 0;
+                while (position < size) {
+                    position += body.transferTo(position, size - position, target);
+                }
+                return head.capacity() + size;
+            } catch (IOException e) {
+                throw new PartialResponseException(e);
+            }
+        }
+    }
+
+    public long transferTo(OutputStream out) throws IOException {
+        long size = transferTo(Channels.newChannel(out));
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new PartialResponseException(e);
+        }
+        return size;
+    }
+
+    // The stored head of a compressed entry as it reads for the uncompressed body.
+    public byte[] getIdentityHead() throws IOException {
+        HttpResponseHead head = HttpResponseHead.read(new ByteArrayInputStream(getHead()));
+        return head.withHeaders(COMPRESSION_FIELDS, List.of("Content-Length: " + identityLength)).getRaw();
+    }
+
+    // Sends a compressed entry to a client that does not accept gzip, inflating the body as it goes.
+    public long transferDecompressedTo(OutputStream out) throws IOException {
+        try (InputStream body = new GZIPInputStream(Channels.newInputStream(openBody()), 8192)) {
+            byte[] head = getIdentityHead();
+            try {
+                out.write(head);
+                long size = head.length + body.transferTo(out);
+                out.flush();
+                return size;
+            } catch (IOException e) {
+                throw new PartialResponseException(e);
+            }
+        }
+    }
+
+    public FileChannel openBody() throws IOException {
+        try {
+            return FileChannel.open(Paths.get(bodyPath), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("Cache file not found: " + bodyPath);
+        }
     }
 }
 
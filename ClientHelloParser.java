@@ -0,0 +1,291 @@
+package CSE471;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Reads the TLS ClientHello at the start of a tunnel to find the server name (SNI) and the
+// application protocols offered (ALPN). Bytes are fed in as they arrive: the parser strips the
+// record layer, collects the handshake message across records and reads, and once the whole
+// message is in walks its structure (version, random, session ID, cipher suites, compression
+// methods, extensions) and validates every length on the way. Feeding copies bytes and allocates
+// nothing; the message buffer is allocated once, sized from the handshake header and bounded by
+// MAX_HELLO_BYTES, and kept across reset().
+public class ClientHelloParser {
+    public static final int MAX_HELLO_BYTES = 16384;
+
+    private static final int CONTENT_TYPE_HANDSHAKE = 22;
+    private static final int HANDSHAKE_CLIENT_HELLO = 1;
+    private static final int MAX_RECORD_BYTES = 16384 + 256; // plaintext limit plus slack for lenient clients
+    private static final int EXTENSION_SERVER_NAME = 0;
+    private static final int EXTENSION_ALPN = 16;
+    private static final int NAME_TYPE_HOST = 0;
+    private static final int MAX_HOST_NAME_BYTES = 255;
+
+    public enum Status {
+        NEED_MORE, // the ClientHello is not complete yet
+        COMPLETE,  // parsed; the server name and protocols are available
+        INVALID    // not a TLS ClientHello, malformed, or larger than MAX_HELLO_BYTES
+    }
+
+    private Status status = Status.NEED_MORE;
+
+    // Record layer
+    private int recordHeaderRead; // bytes of the 5 byte record header seen
+    private int recordLength;
+    private int recordRemaining;  // payload bytes of the current record still to come
+
+    // Handshake message
+    private int messageHeaderRead; // bytes of the 4 byte handshake header seen
+    private int messageLength;
+    private byte[] message = new byte[0];
+    private int messageRead;
+
+    // Results, as offsets into message; -1 if absent
+    private int serverNameOffset;
+    private int serverNameLength;
+    private int alpnOffset;
+    private int alpnLength;
+
+    public ClientHelloParser() {
+        reset();
+    }
+
+    public void reset() {
+        status = Status.NEED_MORE;
+        recordHeaderRead = 0;
+        recordLength = 0;
+        recordRemaining = 0;
+        messageHeaderRead = 0;
+        messageLength = 0;
+        messageRead = 0;
+        serverNameOffset = -1;
+        serverNameLength = 0;
+        alpnOffset = -1;
+        alpnLength = 0;
+    }
+
+    // Feeds the next bytes from the client. Bytes after the end of the ClientHello are ignored.
+    public Status feed(byte[] data, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        while (status == Status.NEED_MORE && i < end) {
+            if (recordRemaining == 0) {
+                readRecordHeader(data[i++] & 0xFF);
+            } else if (messageHeaderRead < 4) {
+                readMessageHeader(data[i++] & 0xFF);
+                recordRemaining--;
+            } else {
+                int n = Math.min(end - i, Math.min(recordRemaining, messageLength - messageRead));
+                System.arraycopy(data, i, message, messageRead, n);
+                i += n;
+                messageRead += n;
+                recordRemaining -= n;
+            }
+            if (status == Status.NEED_MORE && messageHeaderRead == 4 && messageRead == messageLength) {
+                status = parseMessage() ? Status.COMPLETE : Status.INVALID;
+            }
+        }
+        return status;
+    }
+
+    private void readRecordHeader(int b) {
+        switch (recordHeaderRead++) {
+            case 0:
+                if (b != CONTENT_TYPE_HANDSHAKE) {
+                    status = Status.INVALID;
+                }
+                break;
+            case 1:
+                if (b != 3) { // SSL 3.0 and every TLS version
+                    status = Status.INVALID;
+                }
+                break;
+            case 2:
+                break;
+            case 3:
+                recordLength = b << 8;
+                break;
+            default:
+                recordLength |= b;
+                if (recordLength == 0 || recordLength > MAX_RECORD_BYTES) {
+                    status = Status.INVALID;
+                }
+                recordRemaining = recordLength;
+                recordHeaderRead = 0;
+        }
+    }
+
+    private void readMessageHeader(int b) {
+        if (messageHeaderRead++ == 0) {
+            if (b != HANDSHAKE_CLIENT_HELLO) {
+                status = Status.INVALID;
+            }
+            return;
+        }
+        messageLength = messageLength << 8 | b;
+        if (messageHeaderRead == 4) {
+            if (messageLength > MAX_HELLO_BYTES) {
+                status = Status.INVALID;
+            } else if (message.length < messageLength) {
+                message = new byte[messageLength];
+            }
+        }
+    }
+
+    // Walks the ClientHello body; false if any length runs past its enclosing structure.
+    private boolean parseMessage() {
+        int p = 2 + 32; // legacy_version, random
+        if (p + 1 > messageLength) {
+            return false;
+        }
+        int sessionIdLength = u8(p);
+        if (sessionIdLength > 32) {
+            return false;
+        }
+        p += 1 + sessionIdLength;
+        if (p + 2 > messageLength) {
+            return false;
+        }
+        int cipherSuitesLength = u16(p);
+        if (cipherSuitesLength == 0 || (cipherSuitesLength & 1) != 0) {
+            return false;
+        }
+        p += 2 + cipherSuitesLength;
+        if (p + 1 > messageLength) {
+            return false;
+        }
+        int compressionLength = u8(p);
+        if (compressionLength == 0) {
+            return false;
+        }
+        p += 1 + compressionLength;
+        if (p > messageLength) {
+            return false;
+        }
+        if (p == messageLength) {
+            return true; // no extensions
+        }
+        if (p + 2 > messageLength) {
+            return false;
+        }
+        int extensionsEnd = p + 2 + u16(p);
+        if (extensionsEnd != messageLength) {
+            return false;
+        }
+        p += 2;
+        while (p < extensionsEnd) {
+            if (p + 4 > extensionsEnd) {
+                return false;
+            }
+            int type = u16(p);
+            int length = u16(p + 2);
+            p += 4;
+            if (p + length > extensionsEnd) {
+                return false;
+            }
+            if (type == EXTENSION_SERVER_NAME && !parseServerName(p, length)) {
+                return false;
+            }
+            if (type == EXTENSION_ALPN && !parseAlpn(p, length)) {
+                return false;
+            }
+            p += length;
+        }
+        return true;
+    }
+
+    // server_name_list: 2 byte length, then entries of name type, 2 byte length, name.
+    private boolean parseServerName(int start, int length) {
+        if (length < 2 || u16(start) != length - 2) {
+            return false;
+        }
+        int p = start + 2;
+        int end = start + length;
+        while (p < end) {
+            if (p + 3 > end) {
+                return false;
+            }
+            int nameType = u8(p);
+            int nameLength = u16(p + 1);
+            p += 3;
+            if (p + nameLength > end) {
+                return false;
+            }
+            if (nameType == NAME_TYPE_HOST && serverNameOffset < 0) {
+                if (nameLength == 0 || nameLength > MAX_HOST_NAME_BYTES || !isHostName(p, nameLength)) {
+                    return false;
+                }
+                serverNameOffset = p;
+                serverNameLength = nameLength;
+            }
+            p += nameLength;
+        }
+        return true;
+    }
+
+    // protocol_name_list: 2 byte length, then entries of 1 byte length, name.
+    private boolean parseAlpn(int start, int length) {
+        if (length < 2 || u16(start) != length - 2) {
+            return false;
+        }
+        int p = start + 2;
+        int end = start + length;
+        while (p < end) {
+            int nameLength = u8(p);
+            if (nameLength == 0 || p + 1 + nameLength > end) {
+                return false;
+            }
+            p += 1 + nameLength;
+        }
+        alpnOffset = start + 2;
+        alpnLength = length - 2;
+        return true;
+    }
+
+    private boolean isHostName(int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            int c = message[i] & 0xFF;
+            if (c <= ' ' || c >= 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int u8(int p) {
+        return message[p] & 0xFF;
+    }
+
+    private int u16(int p) {
+        return (message[p] & 0xFF) << 8 | (message[p + 1] & 0xFF);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    // The host name the client asked for, or null if the ClientHello had none.
+    public String getServerName() {
+        if (status != Status.COMPLETE || serverNameOffset < 0) {
+            return null;
+        }
+        return new String(message, serverNameOffset, serverNameLength, StandardCharsets.US_ASCII);
+    }
+
+    // The application protocols offered, in the client's order of preference; empty if none.
+    public List<String> getAlpnProtocols() {
+        if (status != Status.COMPLETE || alpnOffset < 0) {
+            return Collections.emptyList();
+        }
+        List<String> protocols = new ArrayList<>();
+        int p = alpnOffset;
+        while (p < alpnOffset + alpnLength) {
+            int length = u8(p);
+            protocols.add(new String(message, p + 1, length, StandardCharsets.ISO_8859_1));
+            p += 1 + length;
+        }
+        return protocols;
+    }
+}
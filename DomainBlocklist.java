@@ -0,0 +1,288 @@
+package CSE471;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Hosts blocked by the filter. A rule is either an exact host ("example.com") or a wildcard
+// ("*.example.com") that blocks every subdomain of example.com but not example.com itself.
+//
+// Handlers read the current compiled snapshot without locking. Changes from the GUI build a new
+// snapshot from a copy of the rules and swap it in, so a lookup always sees one consistent set of
+// rules and never waits for an update, however large the list is.
+public class DomainBlocklist {
+    private static final String WILDCARD_PREFIX = "*.";
+
+    private final AtomicReference<Snapshot> current = new AtomicReference<>(new Snapshot(new HashSet<>()));
+
+    public boolean isBlocked(String host) {
+        return host != null && current.get().matches(host);
+    }
+
+    // Returns false if the rule is not a valid host or is already in the list.
+    public boolean add(String rule) {
+        String normalized = normalize(rule);
+        if (normalized == null) {
+            return false;
+        }
+        while (true) {
+            Snapshot snapshot = current.get();
+            if (snapshot.rules.contains(normalized)) {
+                return false;
+            }
+            Set<String> rules = new HashSet<>(snapshot.rules);
+            rules.add(normalized);
+            if (current.compareAndSet(snapshot, new Snapshot(rules))) {
+                return true;
+            }
+        }
+    }
+
+    public boolean remove(String rule) {
+        String normalized = normalize(rule);
+        if (normalized == null) {
+            return false;
+        }
+        while (true) {
+            Snapshot snapshot = current.get();
+            if (!snapshot.rules.contains(normalized)) {
+                return false;
+            }
+            Set<String> rules = new HashSet<>(snapshot.rules);
+            rules.remove(normalized);
+            if (current.compareAndSet(snapshot, new Snapshot(rules))) {
+                return true;
+            }
+        }
+    }
+
+    // Adds every valid rule with a single snapshot rebuild. Returns how many were new.
+    public int addAll(Collection<String> newRules) {
+        List<String> normalized = new ArrayList<>(newRules.size());
+        for (String rule : newRules) {
+            String n = normalize(rule);
+            if (n != null) {
+                normalized.add(n);
+            }
+        }
+        while (true) {
+            Snapshot snapshot = current.get();
+            Set<String> rules = new HashSet<>(snapshot.rules);
+            rules.addAll(normalized);
+            int added = rules.size() - snapshot.rules.size();
+            if (added == 0 || current.compareAndSet(snapshot, new Snapshot(rules))) {
+                return added;
+            }
+        }
+    }
+
+    // Loads a blocklist file: one rule per line, blank lines and '#' comments ignored. Lines in
+    // hosts file form ("0.0.0.0 example.com") use the last field. Returns how many rules were new.
+    public int load(Path file) throws IOException {
+        List<String> rules = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int space = Math.max(line.lastIndexOf(' '), line.lastIndexOf('\t'));
+                rules.add(space >= 0 ? line.substring(space + 1) : line);
+            }
+        }
+        return addAll(rules);
+    }
+
+    // The current rules, unordered and read-only.
+    public Set<String> getRules() {
+        return current.get().rules;
+    }
+
+    public int size() {
+        return current.get().rules.size();
+    }
+
+    // Lowercases, strips a trailing dot and checks the characters; null if the rule is not usable.
+    static String normalize(String rule) {
+        if (rule == null) {
+            return null;
+        }
+        String r = rule.trim().toLowerCase();
+        if (r.endsWith(".")) {
+            r = r.substring(0, r.length() - 1);
+        }
+        String domain = r.startsWith(WILDCARD_PREFIX) ? r.substring(WILDCARD_PREFIX.length()) : r;
+        if (domain.isEmpty() || domain.startsWith(".") || domain.contains("..")) {
+            return null;
+        }
+        for (int i = 0; i < domain.length(); i++) {
+            char c = domain.charAt(i);
+            if (c <= ' ' || c == '*' || c == '/' || c == ':') {
+                return null;
+            }
+        }
+        return r;
+    }
+
+    // Compiled, immutable form of one set of rules: a reversed-label trie stored as an open
+    // addressing hash table. Each rule's domain has a slot marking it as blocked exactly, by
+    // wildcard, or both, and every shorter suffix of it ("example.com" and "com" for
+    // "www.example.com") has a slot marking that longer rules continue from there. A lookup walks
+    // the host from its last character to its first, hashing as it goes, probes once per label,
+    // and stops at the first suffix that no rule continues from, so most misses cost one or two
+    // probes and nothing is allocated. Matches are confirmed by comparing the characters.
+    static class Snapshot {
+        private static final byte EXACT = 1;
+        private static final byte WILDCARD = 2;
+        private static final byte CONTINUES = 4;
+        private static final long HASH_BASE = 0x100000001B3L;
+        private static final long EMPTY = 0; // no domain hashes to 0, see finish()
+
+        final Set<String> rules;
+        private long[] hashes;
+        private String[] domains;
+        private byte[] kinds;
+        private int mask;
+        private int used;
+
+        Snapshot(Set<String> rules) {
+            this.rules = Collections.unmodifiableSet(rules);
+            allocate(Integer.highestOneBit(Math.max(4, rules.size() * 2 - 1)) << 1);
+            for (String rule : rules) {
+                boolean wildcard = rule.startsWith(WILDCARD_PREFIX);
+                String domain = wildcard ? rule.substring(WILDCARD_PREFIX.length()) : rule;
+                insert(domain, wildcard ? WILDCARD : EXACT);
+                for (int dot = domain.indexOf('.'); dot >= 0; dot = domain.indexOf('.', dot + 1)) {
+                    insert(domain.substring(dot + 1), CONTINUES);
+                }
+            }
+        }
+
+        private void allocate(int size) {
+            hashes = new long[size];
+            domains = new String[size];
+            kinds = new byte[size];
+            mask = size - 1;
+            used = 0;
+        }
+
+        private void insert(String domain, byte kind) {
+            if (used * 2 >= hashes.length) {
+                grow();
+            }
+            long hash = finish(hash(domain));
+            int slot = slot(hash);
+            while (hashes[slot] != EMPTY) {
+                if (hashes[slot] == hash && domains[slot].equals(domain)) {
+                    kinds[slot] |= kind;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = hash;
+            domains[slot] = domain;
+            kinds[slot] = kind;
+            used++;
+        }
+
+        private void grow() {
+            String[] oldDomains = domains;
+            byte[] oldKinds = kinds;
+            allocate(hashes.length * 2);
+            for (int i = 0; i < oldDomains.length; i++) {
+                if (oldDomains[i] != null) {
+                    insert(oldDomains[i], oldKinds[i]);
+                }
+            }
+        }
+
+        boolean matches(String host) {
+            int end = host.length();
+            if (end > 0 && host.charAt(end - 1) == '.') {
+                end--;
+            }
+            long hash = 0;
+            for (int i = end - 1; i >= 0; i--) {
+                char c = host.charAt(i);
+                if (c == '.') {
+                    int kind = lookup(finish(hash), host, i + 1, end);
+                    if ((kind & WILDCARD) != 0) {
+                        return true;
+                    }
+                    if ((kind & CONTINUES) == 0) {
+                        return false;
+                    }
+                }
+                hash = hash * HASH_BASE + lower(c);
+            }
+            return (lookup(finish(hash), host, 0, end) & EXACT) != 0;
+        }
+        // Kinds of rule for host[start, end), or 0 if there is none.
+        private int lookup(long hash, String host, int start, int end) {
+            int length = end - start;
+            int slot = slot(hash);
+            long probe;
+            while ((probe = hashes[slot]) != EMPTY) {
+                if (probe == hash) {
+                    String domain = domains[slot];
+                    if (domain.length() == length && sameDomain(host, start, domain)) {
+                        return kinds[slot];
+                    }
+                }
+                slot = (slot + 1) & mask;
+            }
+            return 0;
+        }
+
+        // Mixes the hash so its low bits can index the table, and keeps 0 free to mark
+        // empty slots.
+        private static long finish(long hash) {
+            hash ^= hash >>> 33;
+            hash *= 0xFF51AFD7ED558CCDL;
+            hash ^= hash >>> 33;
+            return hash == EMPTY ? 1 : hash;
+        }
+
+        private int slot(long hash) {
+            return (int) hash & mask;
+        }
+
+        // Rules are already lowercase; hosts are compared ignoring ASCII case.
+        private static boolean sameDomain(String host, int start, String domain) {
+            for (int i = 0; i < domain.length(); i++) {
+                if (lower(host.charAt(start + i)) != domain.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Same value that matches() computes for the whole of s: the characters are hashed from
+        // last to first, so a suffix hashes the same whatever precedes it.
+        private static long hash(String s) {
+            long hash = 0;
+            for (int i = s.length() - 1; i >= 0; i--) {
+                hash = hash * HASH_BASE + lower(s.charAt(i));
+            }
+            return hash;
+        }
+
+        private static long lower(char c) {
+            return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+        }
+    }
+}
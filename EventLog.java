@@ -0,0 +1,103 @@
+package CSE471;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+
+// Activity log shown in the GUI. Any thread can append() an event; it goes into a bounded
+// lock-free queue and the caller never touches Swing. A Swing timer drains the queue on the event
+// dispatch thread a few times per second and appends everything that arrived as one block, then
+// trims the text area to the scrollback limit. When the queue is full new events are dropped, and
+// when more arrive in one frame than are shown only the most recent are kept; both are counted
+// and reported in the log.
+public class EventLog {
+    private static final int FRAME_MILLIS = 100;
+    private static final int MAX_EVENTS_PER_FRAME = 500;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final JTextArea displayArea;
+    private final int maxLines;
+    private final BoundedMpscQueue<Event> queue;
+    private final LongAdder dropped = new LongAdder();
+    private final Timer timer;
+    private long droppedShown; // EDT only
+
+    private static class Event {
+        final long time;
+        final String message;
+
+        Event(long time, String message) {
+            this.time = time;
+            this.message = message;
+        }
+    }
+
+    public EventLog(JTextArea displayArea, int queueSize, int maxLines) {
+        this.displayArea = displayArea;
+        this.maxLines = Math.max(1, maxLines);
+        this.queue = new BoundedMpscQueue<>(queueSize);
+        this.timer = new Timer(FRAME_MILLIS, e -> drain());
+        timer.start();
+    }
+
+    // Stops the timer so the log no longer keeps the event dispatch thread busy. Events appended
+    // afterwards are queued but not shown.
+    public void close() {
+        timer.stop();
+    }
+
+    // Any thread, never blocks. A trailing line break is optional.
+    public void append(String message) {
+        int end = message.length();
+        while (end > 0 && message.charAt(end - 1) == '\n') {
+            end--;
+        }
+        if (!queue.offer(new Event(System.currentTimeMillis(), message.substring(0, end)))) {
+            dropped.increment();
+        }
+    }
+
+    // Events lost to a full queue or to more events in one frame than are shown.
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    // Runs on the EDT, the queue's only consumer.
+    private void drain() {
+        ArrayDeque<Event> frame = new ArrayDeque<>();
+        Event event;
+        while ((event = queue.poll()) != null) {
+            if (frame.size() == MAX_EVENTS_PER_FRAME) {
+                frame.removeFirst();
+                dropped.increment();
+            }
+            frame.addLast(event);
+        }
+        long droppedNow = dropped.sum();
+        if (frame.isEmpty() && droppedNow == droppedShown) {
+            return;
+        }
+        StringBuilder text = new StringBuilder(frame.size() * 80);
+        if (droppedNow != droppedShown) {
+            text.append("(").append(droppedNow - droppedShown).append(" log events dropped under load)\n");
+            droppedShown = droppedNow;
+        }
+        for (Event e : frame) {
+            text.append('[').append(TIME_FORMAT.format(Instant.ofEpochMilli(e.time))).append("] ").append(e.message).append('\n');
+        }
+        displayArea.append(text.toString());
+        int excess = displayArea.getLineCount() - 1 - maxLines; // the text ends with a line break
+        if (excess > 0) {
+            try {
+                displayArea.replaceRange("", 0, displayArea.getLineEndOffset(excess - 1));
+            } catch (BadLocationException e) {
+                displayArea.setText("");
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package CSE471;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+// Starts connection handlers and tunnel relays either on platform threads or, on JDK 21+, on
+// virtual threads. The blocking socket code is the same in both modes.
+public class HandlerExecutor implements Executor {
+    public static final String MODE_PLATFORM = "platform";
+    public static final String MODE_VIRTUAL = "virtual";
+
+    private final ThreadFactory threadFactory;
+    private final String mode;
+
+    private HandlerExecutor(ThreadFactory threadFactory, String mode) {
+        this.threadFactory = threadFactory;
+        this.mode = mode;
+    }
+
+    // Falls back to platform threads when the running JDK has no virtual threads.
+    public static HandlerExecutor create(String mode) {
+        if (MODE_VIRTUAL.equals(mode)) {
+            ThreadFactory virtualFactory = virtualThreadFactory();
+            if (virtualFactory != null) {
+                return new HandlerExecutor(virtualFactory, MODE_VIRTUAL);
+            }
+        }
+        return new HandlerExecutor(Thread::new, MODE_PLATFORM);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        start(task);
+    }
+
+    // Like execute, but hands back the thread so callers can join it.
+    public Thread start(Runnable task) {
+        Thread thread = threadFactory.newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    // Thread.ofVirtual().name("proxy-virtual-", 0).factory(), looked up reflectively so the
+    // project still compiles and runs on JDK 17.
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "proxy-virtual-", 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package CSE471;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// The body of one HTTP/1.1 message, framed by Content-Length, chunked transfer coding or the end
+// of the connection. Bytes are passed through exactly as received (chunk size lines and trailers
+// included) unless chunks are decoded, and end of stream is reported where the message ends, so
+// the connection underneath can carry the next message.
+public class HttpBodyInputStream extends InputStream {
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private enum Framing { LENGTH, CHUNKED, UNTIL_CLOSE }
+
+    private enum ChunkState { SIZE_LINE, DATA, DATA_END, TRAILER, DONE }
+
+    private final InputStream in;
+    private final Framing framing;
+    private final boolean decodeChunks; // return only chunk data, without size lines and trailers
+    private long remaining; // bytes left in the body (LENGTH) or in the current chunk (CHUNKED)
+    private ChunkState chunkState = ChunkState.SIZE_LINE;
+    private final byte[] line;
+    private int linePosition;
+    private int lineLength;
+    private boolean complete;
+
+    private HttpBodyInputStream(InputStream in, Framing framing, long length) {
+        this(in, framing, length, false);
+    }
+
+    private HttpBodyInputStream(InputStream in, Framing framing, long length, boolean decodeChunks) {
+        this.in = in;
+        this.framing = framing;
+        this.decodeChunks = decodeChunks;
+        this.remaining = length;
+        this.line = framing == Framing.CHUNKED ? new byte[MAX_LINE_LENGTH] : null;
+        this.complete = framing == Framing.LENGTH && length == 0;
+    }
+
+    // RFC 9112, section 6.3
+    public static HttpBodyInputStream forResponse(HttpResponseHead head, String requestMethod, InputStream in) throws IOException {
+        int status = head.getStatusCode();
+        if (HttpMethods.HEAD.equalsIgnoreCase(requestMethod) || status < 200 || status == 204 || status == 304) {
+            return new HttpBodyInputStream(in, Framing.LENGTH, 0);
+        }
+        return forMessage(head.getHeaderList("Transfer-Encoding"), head.getHeader("Content-Length"), in, true);
+    }
+
+    // The content of a response body kept with its framing as received, with chunk size lines
+    // and trailers removed.
+    public static HttpBodyInputStream decoding(HttpResponseHead head, InputStream in) throws IOException {
+        HttpBodyInputStream framed = forResponse(head, HttpMethods.GET, in);
+        return new HttpBodyInputStream(in, framed.framing, framed.remaining, true);
+    }
+
+    // The head's framing was checked when it was parsed, so a request body is always delimited.
+    // Decoded bodies are for the proxy's own use; forwarded ones keep their chunk framing.
+    public static HttpBodyInputStream forRequest(HttpRequestHead head, InputStream in, boolean decodeChunks) throws IOException {
+        if (head.getHeader("Transfer-Encoding") != null) {
+            return new HttpBodyInputStream(in, Framing.CHUNKED, 0, decodeChunks);
+        }
+        String contentLength = head.getHeader("Content-Length");
+        return forMessage(null, contentLength == null ? null : contentLength.split(",")[0], in, false);
+    }
+
+    // Whether a response with this head ends by its own framing rather than by the connection closing.
+    public static boolean isDelimited(HttpResponseHead head, String requestMethod) {
+        try {
+            return forResponse(head, requestMethod, InputStream.nullInputStream()).isDelimited();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Request bodies without framing headers are empty rather than delimited by the connection.
+    public static HttpBodyInputStream forMessage(String transferEncoding, String contentLength, InputStream in,
+                                                 boolean untilCloseIfUnframed) throws IOException {
+        if (transferEncoding != null) {
+            String[] codings = transferEncoding.split(",");
+            if (codings[codings.length - 1].trim().equalsIgnoreCase("chunked")) {
+                return new HttpBodyInputStream(in, Framing.CHUNKED, 0);
+            }
+            return new HttpBodyInputStream(in, Framing.UNTIL_CLOSE, 0);
+        }
+        if (contentLength != null) {
+            try {
+                long length = Long.parseLong(contentLength.trim());
+                if (length < 0) {
+                    throw new NumberFormatException();
+                }
+                return new HttpBodyInputStream(in, Framing.LENGTH, length);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + contentLength);
+            }
+        }
+        return new HttpBodyInputStream(in, untilCloseIfUnframed ? Framing.UNTIL_CLOSE : Framing.LENGTH, 0);
+    }
+
+    // True once the whole message was read.
+    public boolean isComplete() {
+        return complete;
+    }
+
+    // True if the end of the message was found without the connection closing, so it can be reused.
+    public boolean isDelimited() {
+        return framing != Framing.UNTIL_CLOSE;
+    }
+
+    // Body length announced by Content-Length, or -1 when it is only known at the end.
+    public long getDeclaredLength() {
+        return framing == Framing.LENGTH ? remaining : -1;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        switch (framing) {
+            case LENGTH:
+                return readLength(buffer, offset, length);
+            case CHUNKED:
+                return readChunked(buffer, offset, length);
+            default:
+                int n = in.read(buffer, offset, length);
+                if (n == -1) {
+                    complete = true;
+                }
+                return n;
+        }
+    }
+
+    private int readLength(byte[] buffer, int offset, int length) throws IOException {
+        if (remaining == 0) {
+            complete = true;
+            return -1;
+        }
+        int n = in.read(buffer, offset, (int) Math.min(length, remaining));
+        if (n == -1) {
+            throw new EOFException("Connection closed with " + remaining + " body bytes outstanding");
+        }
+        remaining -= n;
+        if (remaining == 0) {
+            complete = true;
+        }
+        return n;
+    }
+
+    private int readChunked(byte[] buffer, int offset, int length) throws IOException {
+        while (true) {
+            if (linePosition < lineLength) {
+                int n = Math.min(length, lineLength - linePosition);
+                System.arraycopy(line, linePosition, buffer, offset, n);
+                linePosition += n;
+                return n;
+            }
+            switch (chunkState) {
+                case SIZE_LINE:
+                    readLine();
+                    remaining = parseChunkSize();
+                    chunkState = remaining == 0 ? ChunkState.TRAILER : ChunkState.DATA;
+                    break;
+                case DATA:
+                    int n = in.read(buffer, offset, (int) Math.min(length, remaining));
+                    if (n == -1) {
+                        throw new EOFException("Connection closed inside a chunk");
+                    }
+                    remaining -= n;
+                    if (remaining == 0) {
+                        chunkState = ChunkState.DATA_END;
+                    }
+                    return n;
+                case DATA_END:
+                    readLine();
+                    chunkState = ChunkState.SIZE_LINE;
+                    break;
+                case TRAILER:
+                    readLine();
+                    if (lineLength <= 2 && (lineLength == 1 || line[0] == '\r')) {
+                        chunkState = ChunkState.DONE; // empty line ends the trailer section
+                    }
+                    break;
+                default:
+                    complete = true;
+                    return -1;
+            }
+        }
+    }
+
+    private void readLine() throws IOException {
+        lineLength = 0;
+        linePosition = 0;
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Connection closed inside chunk framing");
+            }
+            if (lineLength == line.length) {
+                throw new IOException("Chunk framing line exceeds " + MAX_LINE_LENGTH + " bytes");
+            }
+            line[lineLength++] = (byte) b;
+            if (b == '\n') {
+                if (decodeChunks) {
+                    linePosition = lineLength; // parsed by the caller but not returned
+                }
+                return;
+            }
+        }
+    }
+
+    private long parseChunkSize() throws IOException {
+        long size = 0;
+        int digits = 0;
+        for (int i = 0; i < lineLength; i++) {
+            int digit = Character.digit(line[i], 16);
+            if (digit < 0) {
+                break; // end of the hex size, extensions and CRLF follow
+            }
+            if (++digits > 15) {
+                throw new IOException("Chunk size too large");
+            }
+            size = size * 16 + digit;
+        }
+        if (digits == 0) {
+            throw new IOException("Malformed chunk size line");
+        }
+        return size;
+    }
+}
@@ -5,6 +5,9 @@ public class HttpMethods {
     public static final String HEAD = "HEAD";
     public static final String POST = "POST";
     public static final String OPTIONS = "OPTIONS";
+    public static final String PUT = "PUT";
+    public static final String PATCH = "PATCH";
+    public static final String DELETE = "DELETE";
     public static final String GET1 = "CONNECT";
 }
 
@@ -0,0 +1,374 @@
+package CSE471;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Request line and header fields of a client request, parsed from bytes. Lines may end in CRLF
+// or a bare LF. The parser is strict where a lenient one would let a request mean different
+// things to the proxy and the origin (RFC 9112, 11.2): folded header lines, whitespace before a
+// colon, conflicting Content-Length values and transfer codings other than chunked are refused.
+//
+// The head keeps one copy of its bytes and the offsets of each field's name and value. Lookups
+// compare bytes, and a String is only made for a value that is asked for, so a typical request
+// allocates the copy, the target and little else.
+public class HttpRequestHead {
+    static final int MAX_REQUEST_LINE = 8192;  // 8 KB
+    static final int MAX_HEAD_SIZE = 65536;    // 64 KB
+    static final int MAX_HEADER_FIELDS = 100;
+
+    static final String HTTP_1_0 = "HTTP/1.0";
+    static final String HTTP_1_1 = "HTTP/1.1";
+    // Returned as these constants so the common methods do not allocate a String per request
+    private static final String[] KNOWN_METHODS = {HttpMethods.GET, HttpMethods.HEAD, HttpMethods.POST,
+            HttpMethods.PUT, HttpMethods.PATCH, HttpMethods.DELETE, HttpMethods.OPTIONS, HttpMethods.GET1};
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    // tchar from RFC 9110, section 5.6.2
+    private static final boolean[] TOKEN_CHARS = new boolean[256];
+
+    static {
+        for (int c = '0'; c <= '9'; c++) {
+            TOKEN_CHARS[c] = true;
+        }
+        for (int c = 'a'; c <= 'z'; c++) {
+            TOKEN_CHARS[c] = true;
+            TOKEN_CHARS[c - 'a' + 'A'] = true;
+        }
+        for (char c : "!#$%&'*+-.^_`|~".toCharArray()) {
+            TOKEN_CHARS[c] = true;
+        }
+    }
+
+    private final byte[] raw;
+    private final String method;
+    private final String target;
+    private final String version;
+    // Per field: name start, name end, value start, value end, as offsets into raw
+    private final int[] fields;
+    private final int fieldCount;
+
+    // Refused request, with the status code to answer it with.
+    public static class BadRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+
+        public BadRequestException(int statusCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+
+    private HttpRequestHead(byte[] raw, String method, String target, String version, int[] fields, int fieldCount) {
+        this.raw = raw;
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.fields = fields;
+        this.fieldCount = fieldCount;
+    }
+
+    // Index just past the empty line that ends a head starting at or before from, or -1 if
+    // data[from, end) does not contain it yet. A caller scanning a growing buffer can resume three
+    // bytes before where the last scan stopped.
+    static int indexOfHeadEnd(byte[] data, int from, int end) {
+        for (int i = indexOf(data, from, end, (byte) '\n'); i < end; i = indexOf(data, i + 1, end, (byte) '\n')) {
+            if (i + 1 < end && data[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < end && data[i + 1] == '\r' && data[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    // Parses the head in data[start, end), which must end with the empty line.
+    public static HttpRequestHead parse(byte[] data, int start, int end) throws BadRequestException {
+        byte[] raw = Arrays.copyOfRange(data, start, end);
+        int length = raw.length;
+        int lineEnd = indexOf(raw, 0, length, (byte) '\n');
+        if (lineEnd > MAX_REQUEST_LINE) {
+            throw new BadRequestException(414, "Request line exceeds " + MAX_REQUEST_LINE + " bytes");
+        }
+        int firstSpace = indexOf(raw, 0, lineEnd, (byte) ' ');
+        int secondSpace = indexOf(raw, firstSpace + 1, lineEnd, (byte) ' ');
+        int versionEnd = trimCr(raw, secondSpace + 1, lineEnd);
+        if (firstSpace == 0 || secondSpace == lineEnd || secondSpace == firstSpace + 1
+                || !isToken(raw, 0, firstSpace) || !isTarget(raw, firstSpace + 1, secondSpace)) {
+            throw new BadRequestException(400, "Malformed request line");
+        }
+        String version = version(raw, secondSpace + 1, versionEnd);
+        String method = method(raw, 0, firstSpace);
+        String target = new String(raw, firstSpace + 1, secondSpace - firstSpace - 1, StandardCharsets.ISO_8859_1);
+
+        int[] fields = new int[4 * 16];
+        int count = 0;
+        int p = lineEnd + 1;
+        while (true) {
+            int next = indexOf(raw, p, length, (byte) '\n');
+            int contentEnd = trimCr(raw, p, next);
+            if (contentEnd == p) {
+                break; // the empty line
+            }
+            if (next == length) {
+                throw new BadRequestException(400, "Request head is not terminated");
+            }
+            if (raw[p] == ' ' || raw[p] == '\t') {
+                throw new BadRequestException(400, "Folded header lines are not accepted");
+            }
+            int colon = p;
+            while (colon < contentEnd && TOKEN_CHARS[raw[colon] & 0xFF]) {
+                colon++;
+            }
+            if (colon == contentEnd || colon == p || raw[colon] != ':') {
+                throw new BadRequestException(400, "Malformed header field");
+            }
+            if (count == MAX_HEADER_FIELDS) {
+                throw new BadRequestException(431, "More than " + MAX_HEADER_FIELDS + " header fields");
+            }
+            int valueStart = colon + 1;
+            int valueEnd = contentEnd;
+            while (valueStart < valueEnd && (raw[valueStart] == ' ' || raw[valueStart] == '\t')) {
+                valueStart++;
+            }
+            while (valueEnd > valueStart && (raw[valueEnd - 1] == ' ' || raw[valueEnd - 1] == '\t')) {
+                valueEnd--;
+            }
+            if (4 * count == fields.length) {
+                fields = Arrays.copyOf(fields, fields.length * 2);
+            }
+            fields[4 * count] = p;
+            fields[4 * count + 1] = colon;
+            fields[4 * count + 2] = valueStart;
+            fields[4 * count + 3] = valueEnd;
+            count++;
+            p = next + 1;
+        }
+        HttpRequestHead head = new HttpRequestHead(raw, method, target, version, fields, count);
+        head.checkFraming();
+        return head;
+    }
+
+    // RFC 9112, section 6.3: the body length must be unambiguous.
+    private void checkFraming() throws BadRequestException {
+        String transferEncoding = getHeaderList("Transfer-Encoding");
+        if (transferEncoding != null) {
+            String[] codings = transferEncoding.split(",");
+            if (!codings[codings.length - 1].trim().equalsIgnoreCase("chunked")) {
+                throw new BadRequestException(400, "Request body without chunked framing: " + transferEncoding);
+            }
+            return; // chunked overrides any Content-Length; isPersistent() then closes the connection
+        }
+        String contentLength = getHeaderList("Content-Length");
+        if (contentLength == null) {
+            return;
+        }
+        long length = -1;
+        for (String value : contentLength.split(",")) {
+            long parsed;
+            try {
+                parsed = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                throw new BadRequestException(400, "Invalid Content-Length: " + contentLength);
+            }
+            if (parsed < 0 || (length != -1 && parsed != length)) {
+                throw new BadRequestException(400, "Invalid Content-Length: " + contentLength);
+            }
+            length = parsed;
+        }
+    }
+
+    // Index of the first b in data[from, end), or end. Compares eight bytes at a time: after the
+    // XOR a matching byte is zero, and (x - 0x01..) & ~x & 0x80.. flags the lowest zero byte.
+    private static int indexOf(byte[] data, int from, int end, byte b) {
+        long pattern = (b & 0xFFL) * ONES;
+        int i = from;
+        for (; i + 8 <= end; i += 8) {
+            long x = (long) LONGS.get(data, i) ^ pattern;
+            long found = (x - ONES) & ~x & HIGH_BITS;
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < end; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int trimCr(byte[] data, int start, int end) {
+        return end > start && data[end - 1] == '\r' ? end - 1 : end;
+    }
+
+    private static boolean isToken(byte[] data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!TOKEN_CHARS[data[i] & 0xFF]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isTarget(byte[] data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            int c = data[i] & 0xFF;
+            if (c <= ' ' || c == 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String method(byte[] data, int start, int end) {
+        for (String known : KNOWN_METHODS) {
+            if (matches(data, start, end, known)) {
+                return known;
+            }
+        }
+        return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String version(byte[] data, int start, int end) throws BadRequestException {
+        if (matches(data, start, end, HTTP_1_1)) {
+            return HTTP_1_1;
+        }
+        if (matches(data, start, end, HTTP_1_0)) {
+            return HTTP_1_0;
+        }
+        if (end - start > 5 && matches(data, start, start + 5, "HTTP/")) {
+            throw new BadRequestException(505, "Unsupported HTTP version");
+        }
+        throw new BadRequestException(400, "Malformed request line");
+    }
+
+    private static boolean matches(byte[] data, int start, int end, String s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (data[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Field names are compared ignoring ASCII case without making a String of them.
+    private boolean nameEquals(int field, String name) {
+        int start = fields[4 * field];
+        if (fields[4 * field + 1] - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (lower(raw[start + i]) != lower(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int lower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private String value(int field) {
+        int start = fields[4 * field + 2];
+        return new String(raw, start, fields[4 * field + 3] - start, StandardCharsets.ISO_8859_1);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    // HTTP/1.1 connections persist unless either side sends "close"; HTTP/1.0 ones only on request.
+    // A chunked body that also carried Content-Length may have been meant differently by someone
+    // on the way, so the connection is not reused after it.
+    public boolean isPersistent() {
+        if (hasHeader("Transfer-Encoding") && hasHeader("Content-Length")) {
+            return false;
+        }
+        String connection = getHeaderList("Connection");
+        String proxyConnection = getHeaderList("Proxy-Connection");
+        if (HTTP_1_1.equals(version)) {
+            return !HttpResponseHead.hasToken(connection, "close") && !HttpResponseHead.hasToken(proxyConnection, "close");
+        }
+        return HttpResponseHead.hasToken(connection, "keep-alive") || HttpResponseHead.hasToken(proxyConnection, "keep-alive");
+    }
+
+    // Whether a body follows the head.
+    public boolean hasBody() {
+        if (hasHeader("Transfer-Encoding")) {
+            return true;
+        }
+        String contentLength = getHeader("Content-Length");
+        return contentLength != null && Long.parseLong(contentLength.split(",")[0].trim()) > 0;
+    }
+
+    public boolean hasHeader(String name) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (nameEquals(i, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // First value of the field, or null if absent.
+    public String getHeader(String name) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (nameEquals(i, name)) {
+                return value(i);
+            }
+        }
+        return null;
+    }
+
+    // All values of a list-valued field joined with commas, or null if absent.
+    public String getHeaderList(String name) {
+        String joined = null;
+        for (int i = 0; i < fieldCount; i++) {
+            if (nameEquals(i, name)) {
+                joined = joined == null ? value(i) : joined + ", " + value(i);
+            }
+        }
+        return joined;
+    }
+
+    // Name and value of each field in the order received, made on each call.
+    public List<String[]> getHeaders() {
+        List<String[]> headers = new ArrayList<>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            int start = fields[4 * i];
+            headers.add(new String[]{new String(raw, start, fields[4 * i + 1] - start, StandardCharsets.ISO_8859_1), value(i)});
+        }
+        return headers;
+    }
+
+    public int getHeaderCount() {
+        return fieldCount;
+    }
+}
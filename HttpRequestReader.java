@@ -0,0 +1,137 @@
+package CSE471;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reads requests from a client connection. Heads are parsed straight from one reusable byte
+// buffer, and the bytes received past the end of a head stay in that buffer: reads from this
+// stream return them first, so a request body, the next pipelined request or the start of a
+// tunnel is never lost to read-ahead. The buffer starts at 8 KB and grows only for a head that
+// does not fit, up to HttpRequestHead.MAX_HEAD_SIZE.
+public class HttpRequestReader extends InputStream {
+    private static final int INITIAL_BUFFER_SIZE = 8192; // 8 KB
+
+    private final InputStream in;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int position; // next byte not consumed yet
+    private int limit;    // end of the bytes received
+
+    public HttpRequestReader(InputStream in) {
+        this.in = in;
+    }
+
+    // Reads the next request head. Empty lines before it are skipped (RFC 9112, 2.2). Returns
+    // null if the connection closed cleanly before another request began.
+    public HttpRequestHead readHead() throws IOException {
+        int scanned = position;
+        while (true) {
+            while (position < limit && (buffer[position] == '\r' || buffer[position] == '\n')) {
+                position++;
+            }
+            scanned = Math.max(scanned, position);
+            int end = HttpRequestHead.indexOfHeadEnd(buffer, Math.max(position, scanned - 3), limit);
+            if (end != -1) {
+                HttpRequestHead head = HttpRequestHead.parse(buffer, position, end);
+                position = end;
+                return head;
+            }
+            checkLimits();
+            scanned = limit - position; // offsets move when fill() compacts the buffer
+            if (!fill()) {
+                if (position == limit) {
+                    return null;
+                }
+                throw new EOFException("Connection closed before the end of the request head");
+            }
+            scanned += position;
+        }
+    }
+
+    private void checkLimits() throws HttpRequestHead.BadRequestException {
+        int received = limit - position;
+        if (received >= HttpRequestHead.MAX_HEAD_SIZE) {
+            throw new HttpRequestHead.BadRequestException(431, "Request head exceeds " + HttpRequestHead.MAX_HEAD_SIZE + " bytes");
+        }
+        if (received > HttpRequestHead.MAX_REQUEST_LINE) {
+            for (int i = position; i < position + HttpRequestHead.MAX_REQUEST_LINE; i++) {
+                if (buffer[i] == '\n') {
+                    return;
+                }
+            }
+            throw new HttpRequestHead.BadRequestException(414, "Request line exceeds " + HttpRequestHead.MAX_REQUEST_LINE + " bytes");
+        }
+    }
+
+    // Moves the unconsumed bytes to the front, growing the buffer if they fill it, and reads more.
+    // Returns false at end of stream.
+    private boolean fill() throws IOException {
+        int unconsumed = limit - position;
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, unconsumed);
+            position = 0;
+            limit = unconsumed;
+        }
+        if (limit == buffer.length) {
+            byte[] grown = new byte[Math.min(buffer.length * 2, HttpRequestHead.MAX_HEAD_SIZE)];
+            System.arraycopy(buffer, 0, grown, 0, limit);
+            buffer = grown;
+        }
+        int n = in.read(buffer, limit, buffer.length - limit);
+        if (n == -1) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    // Bytes received from the client and not consumed yet; reading them never blocks.
+    public int buffered() {
+        return limit - position;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit) {
+            position = 0;
+            limit = 0;
+            if (!fill()) {
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    // Buffered bytes first; once they are used up, large reads go straight to the socket and
+    // small ones refill the buffer, so body framing read a byte at a time stays cheap.
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == limit) {
+            if (length >= buffer.length) {
+                return in.read(b, offset, length);
+            }
+            position = 0;
+            limit = 0;
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int n = Math.min(length, limit - position);
+        System.arraycopy(buffer, position, b, offset, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return limit - position + in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,177 @@
+package CSE471;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+// Status line and header fields of an upstream response. The raw bytes are kept so the head can
+// be forwarded and cached exactly as received.
+public class HttpResponseHead {
+    static final int MAX_HEAD_SIZE = 65536; // 64 KB
+
+    private final byte[] raw;
+    private final String version;
+    private final int statusCode;
+    private final List<String[]> headers;
+
+    private HttpResponseHead(byte[] raw, String version, int statusCode, List<String[]> headers) {
+        this.raw = raw;
+        this.version = version;
+        this.statusCode = statusCode;
+        this.headers = headers;
+    }
+
+    // Reads up to and including the empty line that ends the head. The stream should be buffered,
+    // since the head is consumed one byte at a time and the body must stay in the stream.
+    public static HttpResponseHead read(InputStream in) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(1024);
+        List<String> lines = new ArrayList<>();
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Connection closed before the end of the response head");
+            }
+            raw.write(b);
+            if (raw.size() > MAX_HEAD_SIZE) {
+                throw new IOException("Response head exceeds " + MAX_HEAD_SIZE + " bytes");
+            }
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                if (line.length() == 0) {
+                    break;
+                }
+                lines.add(line.toString());
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+        }
+        if (lines.isEmpty()) {
+            throw new IOException("Empty response head");
+        }
+
+        String[] statusLine = lines.get(0).split(" ", 3);
+        int statusCode;
+        try {
+            statusCode = Integer.parseInt(statusLine[1]);
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IOException("Malformed status line: " + lines.get(0));
+        }
+        List<String[]> headers = new ArrayList<>();
+        for (int i = 1; i < lines.size(); i++) {
+            int colon = lines.get(i).indexOf(':');
+            if (colon > 0) {
+                headers.add(new String[]{lines.get(i).substring(0, colon).trim(), lines.get(i).substring(colon + 1).trim()});
+            }
+        }
+        return new HttpResponseHead(raw.toByteArray(), statusLine[0], statusCode, headers);
+    }
+
+    // A copy with the named fields (lower case) removed and the given "Name: value" fields added at
+    // the end. The status line and the other fields are kept byte for byte.
+    public HttpResponseHead withHeaders(Set<String> removed, List<String> added) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length + 64);
+        int start = 0;
+        boolean statusLine = true;
+        boolean keep = true; // obsolete folded lines go with the field they continue
+        while (start < raw.length) {
+            int end = start;
+            while (raw[end] != '\n') {
+                end++;
+            }
+            int contentEnd = end > start && raw[end - 1] == '\r' ? end - 1 : end;
+            if (contentEnd == start) {
+                break; // the empty line that ends the head
+            }
+            if (statusLine) {
+                statusLine = false;
+            } else if (raw[start] != ' ' && raw[start] != '\t') {
+                int colon = start;
+                while (colon < contentEnd && raw[colon] != ':') {
+                    colon++;
+                }
+                String name = new String(raw, start, colon - start, StandardCharsets.ISO_8859_1).trim();
+                keep = !removed.contains(name.toLowerCase());
+            }
+            if (keep) {
+                out.write(raw, start, end + 1 - start);
+            }
+            start = end + 1;
+        }
+        for (String field : added) {
+            out.write((field + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        }
+        out.write('\r');
+        out.write('\n');
+        return read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    public byte[] getRaw() {
+        return raw;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    // Whether the origin is willing to keep the connection open after this response.
+    public boolean isKeepAlive() {
+        String connection = getHeaderList("Connection");
+        if ("HTTP/1.0".equals(version)) {
+            return hasToken(connection, "keep-alive");
+        }
+        return !hasToken(connection, "close");
+    }
+
+    static boolean hasToken(String list, String token) {
+        if (list == null) {
+            return false;
+        }
+        for (String part : list.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // First value of the field, or null if absent.
+    public String getHeader(String name) {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(name)) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+
+    // All values of a list-valued field (such as Cache-Control) joined with commas, or null if absent.
+    public String getHeaderList(String name) {
+        String joined = null;
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(name)) {
+                joined = joined == null ? header[1] : joined + ", " + header[1];
+            }
+        }
+        return joined;
+    }
+
+    public List<String[]> getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public String toString() {
+        return new String(raw, StandardCharsets.ISO_8859_1);
+    }
+}
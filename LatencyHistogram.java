@@ -0,0 +1,98 @@
+package CSE471;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency distribution in microseconds with bounded relative error, in the style of an HDR
+// histogram. Values below 64 us each have their own bucket; above that every power of two is split
+// into 32 buckets, so a recorded value is off by at most 1/32 (about 3%) of itself. The buckets
+// cover up to 2^36 us (about 19 hours) in 1024 counters; longer values land in the last bucket.
+// Recording is one array increment plus two striped adders and never allocates or locks, so it can
+// sit on every request path. Reads walk the counters without stopping writers, so a percentile
+// taken under load may mix values recorded during the walk.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;          // 32 per power of two
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;              // 64 us, one bucket per value below
+    private static final int LINEAR_BITS = SUB_BUCKET_BITS + 1;
+    private static final int MAX_EXPONENT = 35;                           // values up to 2^36 - 1 us
+    private static final int BUCKETS = LINEAR_LIMIT + (MAX_EXPONENT - LINEAR_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+    public void recordNanos(long nanos) {
+        recordMicros(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts.incrementAndGet(bucket(micros));
+        count.increment();
+        sumMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumMicros() {
+        return sumMicros.sum();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    // Upper bound of the bucket holding the value at quantile q (0..1), capped at the largest value
+    // recorded; 0 if nothing was recorded.
+    public long percentileMicros(double q) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    static int bucket(long micros) {
+        if (micros < LINEAR_LIMIT) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int exponent = LINEAR_BITS + (bucket - LINEAR_LIMIT) / SUB_BUCKETS;
+        int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + subBucket + 1) * width - 1;
+    }
+}
@@ -0,0 +1,149 @@
+package CSE471;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// In-memory hot tier in front of the disk cache, keyed like the cache map. Bodies live in direct
+// buffers so they stay out of the Java heap. Eviction is segmented LRU: new entries start in the
+// probation segment and only a second hit promotes them to the protected segment (80% of the
+// budget), so a burst of one-off downloads cannot flush the objects that are actually popular.
+public class MemoryCache {
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+    private final int maxEntryBytes;
+    // Both maps are in LRU order: the first entry is the next to be demoted or evicted
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static class Entry {
+        final CachedResource resource;
+        final ByteBuffer data;
+
+        Entry(CachedResource resource, ByteBuffer data) {
+            this.resource = resource;
+            this.data = data;
+        }
+    }
+
+    public MemoryCache(long maxBytes, int maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = (long) (maxBytes * PROTECTED_SHARE);
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    // Returns a read-only view of the cached bytes, or null when the entry is missing or was
+    // loaded for a different (older) CachedResource than the one now in the cache map.
+    public synchronized ByteBuffer get(String key, CachedResource resource) {
+        Entry entry = protectedSegment.get(key);
+        if (entry == null) {
+            entry = probation.remove(key);
+            if (entry != null) {
+                probationBytes -= entry.data.capacity();
+                if (entry.resource == resource) {
+                    promote(key, entry);
+                }
+            }
+        }
+        if (entry == null || entry.resource != resource) {
+            if (entry != null) {
+                remove(key);
+            }
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.data.asReadOnlyBuffer();
+    }
+
+    public boolean admits(long size) {
+        return size <= maxEntryBytes && size <= maxBytes;
+    }
+
+    public void put(String key, CachedResource resource, byte[] data) {
+        if (!admits(data.length)) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        synchronized (this) {
+            remove(key);
+            probation.put(key, new Entry(resource, buffer));
+            probationBytes += data.length;
+            evict();
+        }
+    }
+
+    public synchronized void invalidate(String key) {
+        remove(key);
+    }
+
+    private void promote(String key, Entry entry) {
+        protectedSegment.put(key, entry);
+        protectedBytes += entry.data.capacity();
+        // Overflowing protected entries get one more chance in probation
+        Iterator<Map.Entry<String, Entry>> it = protectedSegment.entrySet().iterator();
+        while (protectedBytes > maxProtectedBytes && it.hasNext()) {
+            Map.Entry<String, Entry> demoted = it.next();
+            it.remove();
+            protectedBytes -= demoted.getValue().data.capacity();
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationBytes += demoted.getValue().data.capacity();
+        }
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = probation.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+            probationBytes -= it.next().getValue().data.capacity();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = probation.remove(key);
+        if (entry != null) {
+            probationBytes -= entry.data.capacity();
+        }
+        entry = protectedSegment.remove(key);
+        if (entry != null) {
+            protectedBytes -= entry.data.capacity();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long getSizeBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+}
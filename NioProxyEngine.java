@@ -0,0 +1,868 @@
+package CSE471;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Selector based alternative to the thread-per-connection ServerHandler. A fixed set of event loops
+// drives every client and upstream socket through non-blocking state machines: request parsing,
+// upstream connect and a bidirectional relay with half-close propagation.
+public class NioProxyEngine {
+    private static final int BUFFER_SIZE = 16384; // 16 KB per direction, also the request header limit
+    private static final long IDLE_CHECK_MILLIS = 1000; // how often each loop looks for idle connections
+    private static final byte[] CONNECTION_ESTABLISHED =
+            "HTTP/1.1 200 Connection Established\r\nProxy-Agent: CustomProxy/1.0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final EventLog eventLog;
+    private final DomainBlocklist blockedHosts;
+    private final Map<String, CachedResource> cache;
+    private final MemoryCache memoryCache;
+    private final RequestLog requestLogs;
+    private final ProxyMetrics metrics;
+    private final EventLoop[] loops;
+    private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+    // Host name resolution and cache file reads block, so they are kept off the event loops
+    private final ExecutorService blockingPool = Executors.newFixedThreadPool(ProxyConfig.NIO_BLOCKING_THREADS, r -> {
+        Thread t = new Thread(r, "nio-blocking");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean running = true;
+    private int nextLoop;
+
+    public NioProxyEngine(EventLog eventLog, DomainBlocklist blockedHosts, Map<String, CachedResource> cache,
+                          MemoryCache memoryCache, RequestLog requestLogs, ProxyMetrics metrics,
+                          int eventLoops) throws IOException {
+        this.eventLog = eventLog;
+        this.blockedHosts = blockedHosts;
+        this.cache = cache;
+        this.memoryCache = memoryCache;
+        this.requestLogs = requestLogs;
+        this.metrics = metrics;
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    public void start(int... ports) throws IOException {
+        for (int port : ports) {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            serverChannels.add(server);
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(loops[0].selector, SelectionKey.OP_ACCEPT, server);
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        for (EventLoop loop : loops) {
+            loop.thread.join();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        for (ServerSocketChannel server : serverChannels) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                eventLog.append("Error closing server socket: " + e.getMessage() + "\n");
+            }
+        }
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        blockingPool.shutdownNow();
+    }
+
+    public int getEventLoopCount() {
+        return loops.length;
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            SocketChannel accepted = channel;
+            metrics.connectionAccepted();
+            EventLoop loop = loops[nextLoop++ % loops.length];
+            loop.execute(() -> new Connection(loop, accepted));
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-event-loop-" + index);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long nextIdleCheck = System.nanoTime();
+            while (running) {
+                try {
+                    selector.select(IDLE_CHECK_MILLIS);
+                    long now = System.nanoTime();
+                    if (now - nextIdleCheck >= 0) {
+                        closeIdle(now);
+                        nextIdleCheck = now + TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_MILLIS);
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        runTask(task);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.attachment() instanceof ServerSocketChannel) {
+                            accept((ServerSocketChannel) key.attachment());
+                        } else {
+                            ((Connection) key.attachment()).onReady(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        eventLog.append("Error in event loop: " + e.getMessage() + "\n");
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                eventLog.append("Error closing selector: " + e.getMessage() + "\n");
+            }
+        }
+
+        private void closeIdle(long now) {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).checkIdle(now);
+                }
+            }
+        }
+
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                eventLog.append("Error in event loop task: " + e.getMessage() + "\n");
+            }
+        }
+    }
+
+    private enum State {
+        READ_REQUEST, // accumulating the request head
+        READ_TOKEN,   // accumulating the body of a login form submission
+        CONNECTING,   // waiting for name resolution and the upstream connect
+        READ_CACHE,   // waiting for a cache entry to be read off the event loop
+        READ_SNI,     // CONNECT accepted, waiting for the ClientHello
+        RELAY,        // bytes flow in both directions
+        RESPONDING    // writing a locally generated response, then closing
+    }
+
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel client;
+        private final SelectionKey clientKey;
+        private final String clientIP;
+        private SocketChannel remote;
+        private SelectionKey remoteKey;
+        private ByteBuffer fromClient = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer toClient = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer response; // locally generated response, written before toClient
+        private FileChannel responseFile; // body of a cache hit too large for the memory tier, sent with transferTo after response
+        private long responseFilePosition;
+        private State state = State.READ_REQUEST;
+        private boolean tunnel;
+        private boolean tunnelOpen;         // counted in the active tunnels until close()
+        private long connectStart;          // System.nanoTime() when the upstream connect began
+        private long requestStart;          // and when a plain HTTP request could start to go out
+        private boolean awaitingFirstByte;  // plain HTTP request forwarded, no response byte seen yet
+        private boolean closePending;       // final response head not marked with Connection: close yet
+        private int releasable;             // bytes of toClient that may go to the client while closePending
+        private boolean filteringEnabled;
+        private int tokenRequestLength;
+        private ClientHelloParser helloParser; // READ_SNI only
+        private int helloFed;                  // bytes of fromClient already fed to helloParser
+        private boolean clientEof;
+        private boolean remoteEof;
+        private boolean clientOutputShut;
+        private boolean remoteOutputShut;
+        private boolean closed;
+        private long lastActivity = System.nanoTime();
+        private String loggedMethod;        // request logged on close, null for tunnels and login exchanges
+        private String loggedDomain;
+        private String loggedPath;
+        private int responseStatus;         // stays 0 if no response status reaches the client
+        private long responseBytes;
+
+        Connection(EventLoop loop, SocketChannel client) {
+            this.loop = loop;
+            this.client = client;
+            SelectionKey key = null;
+            String ip = "unknown";
+            try {
+                client.configureBlocking(false);
+                ip = ((InetSocketAddress) client.getRemoteAddress()).getAddress().getHostAddress();
+                key = client.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                closed = true;
+                closeQuietly(client);
+            }
+            this.clientKey = key;
+            this.clientIP = ip;
+        }
+
+        void onReady(SelectionKey key) {
+            try {
+                if (key == remoteKey) {
+                    if (key.isConnectable()) {
+                        finishConnect();
+                    } else {
+                        if (key.isReadable()) {
+                            readRemote();
+                        }
+                        if (!closed && key.isValid() && key.isWritable()) {
+                            writeRemote();
+                        }
+                    }
+                } else {
+                    if (key.isReadable()) {
+                        readClient();
+                    }
+                    if (!closed && key.isValid() && key.isWritable()) {
+                        writeClient();
+                    }
+                }
+                updateInterest();
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        private void readClient() throws IOException {
+            int read = client.read(fromClient);
+            if (read == -1) {
+                clientEof = true;
+                if (state != State.RELAY && state != State.RESPONDING) {
+                    close();
+                } else {
+                    propagateClientEof();
+                }
+                return;
+            }
+            switch (state) {
+                case READ_REQUEST:
+                    parseRequest();
+                    break;
+                case READ_TOKEN:
+                    if (fromClient.position() >= tokenRequestLength || !fromClient.hasRemaining()) {
+                        handleTokenSubmission();
+                    }
+                    break;
+                case READ_SNI:
+                    checkSni();
+                    break;
+                case RELAY:
+                    writeRemote();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void readRemote() throws IOException {
+            if (closePending) {
+                toClient.limit(toClient.capacity() - CONNECTION_CLOSE.length); // room for the inserted field
+            }
+            int read = remote.read(toClient);
+            toClient.limit(toClient.capacity());
+            if (closePending && read > 0) {
+                markClose();
+            }
+            if (read == -1) {
+                remoteEof = true;
+                closePending = false; // whatever arrived is relayed as it is
+                propagateRemoteEof();
+                return;
+            }
+            if (awaitingFirstByte && read > 0) {
+                awaitingFirstByte = false;
+                metrics.upstreamFirstByte(System.nanoTime() - requestStart);
+            }
+            writeClient();
+        }
+
+        private void writeRemote() throws IOException {
+            if (state != State.RELAY || closed) {
+                return;
+            }
+            fromClient.flip();
+            int written = remote.write(fromClient);
+            fromClient.compact();
+            if (tunnel) {
+                metrics.tunnelBytesClientToRemote().add(written);
+            }
+            propagateClientEof();
+        }
+
+        private void writeClient() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (response != null) {
+                responseBytes += client.write(response);
+                if (response.hasRemaining()) {
+                    return;
+                }
+                response = null;
+                if (state == State.RESPONDING && responseFile == null) {
+                    close();
+                    return;
+                }
+            }
+            if (responseFile != null) {
+                long sent = responseFile.transferTo(responseFilePosition, responseFile.size() - responseFilePosition, client);
+                responseFilePosition += sent;
+                responseBytes += sent;
+                if (responseFilePosition >= responseFile.size()) {
+                    close();
+                }
+                return;
+            }
+            toClient.flip();
+            int available = toClient.limit();
+            if (closePending) {
+                toClient.limit(releasable);
+            }
+            int written = client.write(toClient);
+            toClient.limit(available);
+            toClient.compact();
+            releasable -= written;
+            responseBytes += written;
+            if (tunnel) {
+                metrics.tunnelBytesRemoteToClient().add(written);
+            }
+            propagateRemoteEof();
+        }
+
+        // The client connection is closed once a plain HTTP response has been relayed, so the final
+        // response head gets Connection: close after its status line (RFC 9112, 9.6) and the client
+        // does not send its next request into a closing socket. Interim 1xx responses, such as the
+        // 100 Continue a client waits for before sending its body, are let through as they are.
+        private void markClose() {
+            byte[] data = toClient.array();
+            int end = toClient.position();
+            while (closePending) {
+                int lineEnd = releasable;
+                while (lineEnd < end && data[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                if (lineEnd == end) {
+                    if (end >= toClient.capacity() - CONNECTION_CLOSE.length) {
+                        closePending = false; // no status line in a full buffer; relayed unchanged
+                    }
+                    return;
+                }
+                if (lineEnd - releasable > 9 && data[releasable + 9] == '1') {
+                    int headEnd = HttpRequestHead.indexOfHeadEnd(data, releasable, end);
+                    if (headEnd == -1) {
+                        return;
+                    }
+                    releasable = headEnd;
+                    continue;
+                }
+                responseStatus = statusCode(data, releasable, lineEnd);
+                int insertAt = lineEnd + 1;
+                System.arraycopy(data, insertAt, data, insertAt + CONNECTION_CLOSE.length, end - insertAt);
+                System.arraycopy(CONNECTION_CLOSE, 0, data, insertAt, CONNECTION_CLOSE.length);
+                toClient.position(end + CONNECTION_CLOSE.length);
+                closePending = false;
+            }
+        }
+
+        // Once the client stopped sending and everything it sent reached the origin, pass the FIN on.
+        private void propagateClientEof() throws IOException {
+            if (clientEof && state == State.RELAY && fromClient.position() == 0 && !remoteOutputShut) {
+                remoteOutputShut = true;
+                remote.shutdownOutput();
+                closeIfDone();
+            }
+        }
+
+        private void propagateRemoteEof() throws IOException {
+            if (remoteEof && toClient.position() == 0 && response == null && !clientOutputShut) {
+                if (!tunnel) {
+                    close(); // plain HTTP is forwarded with Connection: close
+                    return;
+                }
+                clientOutputShut = true;
+                client.shutdownOutput();
+                closeIfDone();
+            }
+        }
+
+        private void closeIfDone() {
+            if (clientOutputShut && remoteOutputShut) {
+                close();
+            }
+        }
+
+        private void parseRequest() throws IOException {
+            // Empty lines before a request are ignored (RFC 9112, 2.2)
+            int skipped = 0;
+            while (skipped < fromClient.position()
+                    && (fromClient.get(skipped) == '\r' || fromClient.get(skipped) == '\n')) {
+                skipped++;
+            }
+            if (skipped > 0) {
+                fromClient.flip().position(skipped);
+                fromClient.compact();
+            }
+            int headerEnd = HttpRequestHead.indexOfHeadEnd(fromClient.array(), 0, fromClient.position());
+            if (headerEnd == -1) {
+                if (!fromClient.hasRemaining()) {
+                    respond("HTTP/1.1 431 Request Header Fields Too Large\r\n\r\n");
+                }
+                return;
+            }
+            HttpRequestHead head;
+            try {
+                head = HttpRequestHead.parse(fromClient.array(), 0, headerEnd);
+            } catch (HttpRequestHead.BadRequestException e) {
+                eventLog.append("Rejected request from IP: " + clientIP + ": " + e.getMessage() + "\n");
+                respond("HTTP/1.1 " + e.getStatusCode() + " " + ServerHandler.reasonPhrase(e.getStatusCode()) + "\r\n\r\n");
+                return;
+            }
+            String method = head.getMethod();
+            String target = head.getTarget();
+
+            Boolean filtering = ServerHandler.clientTokens.get(clientIP);
+            if (filtering == null) {
+                if (HttpMethods.POST.equalsIgnoreCase(method)) {
+                    tokenRequestLength = (int) Math.min(headerEnd + contentLength(head), fromClient.capacity());
+                    state = State.READ_TOKEN;
+                    if (fromClient.position() >= tokenRequestLength) {
+                        handleTokenSubmission();
+                    }
+                } else {
+                    respondPage(ServerHandler.LOGIN_PAGE);
+                }
+                return;
+            }
+            filteringEnabled = filtering;
+            eventLog.append("Connection from: " + clientIP + ", Port: " + client.socket().getPort() + "\n");
+            metrics.request(method);
+
+            if (HttpMethods.GET1.equalsIgnoreCase(method)) {
+                eventLog.append("Processing HTTP request for " + target + " from IP: " + clientIP + "\n");
+                String[] parts = target.split(":");
+                String host = parts[0];
+                int port = (parts.length > 1) ? Integer.parseInt(parts[1]) : 443;
+                if (filteringEnabled && blockedHosts.isBlocked(host)) {
+                    metrics.blocked();
+                    respond("HTTP/1.1 403 Forbidden\r\n\r\nHost is blocked.");
+                    return;
+                }
+                tunnel = true;
+                // A client may send its ClientHello right behind the CONNECT head; it stays for the tunnel
+                fromClient.flip().position(headerEnd);
+                fromClient.compact();
+                connect(host, port);
+                return;
+            }
+
+            eventLog.append("Processing HTTP request: " + method + " " + target + " from IP: " + clientIP + "\n");
+            URL url;
+            try {
+                url = new URL(target);
+            } catch (MalformedURLException e) {
+                respond("HTTP/1.1 400 Bad Request\r\n\r\n");
+                return;
+            }
+            if (filteringEnabled && blockedHosts.isBlocked(url.getHost())) {
+                metrics.blocked();
+                respond("HTTP/1.1 403 Forbidden\r\n\r\nHost is blocked.");
+                return;
+            }
+            loggedMethod = method;
+            loggedDomain = url.getHost();
+            loggedPath = url.getFile();
+
+            if (HttpMethods.GET.equalsIgnoreCase(method) && serveFromCache(url, head, headerEnd)) {
+                return;
+            }
+            forward(head, url, headerEnd);
+        }
+
+        private void forward(HttpRequestHead head, URL url, int headerEnd) {
+            String method = head.getMethod();
+            if (invalidatesCache(method) && cache.remove(url.toString()) != null) {
+                // The response is relayed without being read, so the entry goes before it rather than after a success
+                memoryCache.invalidate(url.toString());
+                eventLog.append("Cache entry invalidated by " + method + " for URL: " + url + "\n");
+            }
+
+            // Rewrite the request to origin form and forward whatever body bytes already arrived
+            StringBuilder request = new StringBuilder();
+            request.append(method).append(' ').append(url.getFile().isEmpty() ? "/" : url.getFile()).append(" HTTP/1.1\r\n");
+            boolean hasHost = false;
+            boolean chunked = head.hasHeader("Transfer-Encoding");
+            for (String[] header : head.getHeaders()) {
+                String name = header[0];
+                if (name.equalsIgnoreCase("Connection") || name.equalsIgnoreCase("Proxy-Connection")
+                        || name.equalsIgnoreCase("Keep-Alive") || (chunked && name.equalsIgnoreCase("Content-Length"))) {
+                    continue;
+                }
+                hasHost |= name.equalsIgnoreCase("Host");
+                request.append(name).append(": ").append(header[1]).append("\r\n");
+            }
+            if (!hasHost) {
+                request.append("Host: ").append(url.getHost()).append("\r\n");
+            }
+            request.append("Connection: close\r\n\r\n");
+
+            byte[] rewritten = request.toString().getBytes(StandardCharsets.ISO_8859_1);
+            int bodyBytes = fromClient.position() - headerEnd;
+            ByteBuffer forward = ByteBuffer.allocate(Math.max(BUFFER_SIZE, rewritten.length + bodyBytes));
+            forward.put(rewritten);
+            forward.put(fromClient.array(), headerEnd, bodyBytes);
+            fromClient = forward;
+            connect(url.getHost(), url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+        }
+
+        // Entries the blocking engine stored gzip-compressed are only served here to clients that
+        // accept gzip; inflating on the event loop would stall it, so other clients go to the origin.
+        // Hits outside the memory tier are read on the blocking pool and the request is forwarded to
+        // the origin if that read fails.
+        private boolean serveFromCache(URL url, HttpRequestHead head, int headerEnd) {
+            String urlString = url.toString();
+            CachedResource resource = cache.get(urlString);
+            if (resource == null || resource.isExpired()
+                    || (resource.isCompressed() && !CachedResource.acceptsGzip(head.getHeaderList("Accept-Encoding")))) {
+                metrics.cacheLookup(resource != null && resource.isExpired() ? ProxyMetrics.CacheResult.EXPIRED
+                        : ProxyMetrics.CacheResult.MISS);
+                return false;
+            }
+            metrics.cacheLookup(ProxyMetrics.CacheResult.HIT);
+            ByteBuffer hot = memoryCache.get(urlString, resource);
+            if (hot != null) {
+                cacheHit(urlString, resource, hot, null);
+                return true;
+            }
+            state = State.READ_CACHE;
+            blockingPool.execute(() -> {
+                FileChannel body = null;
+                ByteBuffer data;
+                try {
+                    if (!memoryCache.admits(resource.getSize())) {
+                        body = resource.openBody(); // opened first, so the head read next matches it
+                        data = ByteBuffer.wrap(resource.getHead());
+                    } else {
+                        byte[] bytes = resource.getData();
+                        memoryCache.put(urlString, resource, bytes);
+                        data = ByteBuffer.wrap(bytes);
+                    }
+                } catch (IOException e) {
+                    closeQuietly(body);
+                    eventLog.append("Failed to read cache for URL: " + urlString + "\n");
+                    loop.execute(() -> {
+                        if (!closed) {
+                            forward(head, url, headerEnd);
+                            updateInterest();
+                        }
+                    });
+                    return;
+                }
+                FileChannel file = body;
+                loop.execute(() -> cacheHit(urlString, resource, data, file));
+            });
+            return true;
+        }
+
+        private void cacheHit(String urlString, CachedResource resource, ByteBuffer data, FileChannel file) {
+            if (closed) {
+                closeQuietly(file);
+                return;
+            }
+            response = data;
+            responseFile = file;
+            responseStatus = resource.getStatusCode();
+            state = State.RESPONDING;
+            eventLog.append("Cache hit for URL: " + urlString + "\n");
+            updateInterest();
+        }
+
+        private void handleTokenSubmission() {
+            int headerEnd = HttpRequestHead.indexOfHeadEnd(fromClient.array(), 0, fromClient.position());
+            String body = new String(fromClient.array(), headerEnd, fromClient.position() - headerEnd, StandardCharsets.ISO_8859_1);
+            String token = ServerHandler.extractTokenFromRequestBody(body);
+            if (ServerHandler.validateToken(token)) {
+                ServerHandler.clientTokens.put(clientIP, "51e2cba401".equals(token));
+                eventLog.append("Token validated for IP: " + clientIP + "\n");
+                respondPage(ServerHandler.SUCCESS_PAGE);
+            } else {
+                eventLog.append("Invalid token for IP: " + clientIP + "\n");
+                respondPage(ServerHandler.LOGIN_PAGE);
+            }
+        }
+
+        // The ClientHello stays in fromClient until it is complete, so it can span several reads;
+        // if it does not fit in the buffer it is relayed without a server name. Once the state is
+        // RELAY, updateInterest has the buffered bytes written to the origin.
+        private void checkSni() {
+            if (helloParser == null) {
+                helloParser = new ClientHelloParser();
+            }
+            ClientHelloParser.Status status = helloParser.feed(fromClient.array(), helloFed, fromClient.position() - helloFed);
+            helloFed = fromClient.position();
+            if (status == ClientHelloParser.Status.NEED_MORE && fromClient.hasRemaining()) {
+                return;
+            }
+            String sniHost = helloParser.getServerName();
+            if (sniHost != null) {
+                List<String> protocols = helloParser.getAlpnProtocols();
+                eventLog.append("Extracted SNI host: " + sniHost + (protocols.isEmpty() ? "" : ", ALPN: " + String.join(", ", protocols)) + "\n");
+                if (filteringEnabled && blockedHosts.isBlocked(sniHost)) {
+                    metrics.blocked();
+                    closeQuietly(remote);
+                    ByteBuffer established = response; // not sent yet if the ClientHello came with the CONNECT
+                    respond("HTTP/1.1 403 Forbidden\r\n\r\nHost is blocked.");
+                    if (established != null) {
+                        ByteBuffer both = ByteBuffer.allocate(established.remaining() + response.remaining());
+                        response = both.put(established).put(response).flip();
+                    }
+                    return;
+                }
+            }
+            helloParser = null;
+            state = State.RELAY;
+        }
+
+        private void connect(String host, int port) {
+            state = State.CONNECTING;
+            connectStart = System.nanoTime();
+            blockingPool.execute(() -> {
+                InetSocketAddress address = new InetSocketAddress(host, port);
+                loop.execute(() -> startConnect(address));
+            });
+        }
+
+        private void startConnect(InetSocketAddress address) {
+            if (closed || state != State.CONNECTING) { // closed or timed out while resolving
+                return;
+            }
+            try {
+                if (address.isUnresolved()) {
+                    throw new IOException("Unknown host: " + address.getHostString());
+                }
+                remote = SocketChannel.open();
+                remote.configureBlocking(false);
+                remoteKey = remote.register(loop.selector, SelectionKey.OP_CONNECT, this);
+                if (remote.connect(address)) {
+                    connected();
+                }
+                updateInterest();
+            } catch (IOException e) {
+                connectFailed(e);
+            }
+        }
+
+        private void finishConnect() {
+            try {
+                if (remote.finishConnect()) {
+                    connected();
+                }
+            } catch (IOException e) {
+                connectFailed(e);
+            }
+        }
+
+        private void connected() {
+            long now = System.nanoTime();
+            metrics.upstreamConnected(now - connectStart);
+            if (tunnel) {
+                // Sent as a local response so it is not counted as bytes relayed from the origin
+                response = ByteBuffer.wrap(CONNECTION_ESTABLISHED);
+                state = State.READ_SNI;
+                tunnelOpen = true;
+                metrics.tunnelOpened();
+                if (fromClient.position() > 0) {
+                    checkSni();
+                }
+            } else {
+                state = State.RELAY;
+                awaitingFirstByte = true;
+                closePending = true;
+                requestStart = now;
+            }
+        }
+
+        private void connectFailed(IOException e) {
+            eventLog.append("Error setting up upstream connection: " + e.getMessage() + "\n");
+            closeQuietly(remote);
+            respond("HTTP/1.1 400 Bad Request\r\n\r\n");
+            updateInterest();
+        }
+
+        private void respondPage(String page) {
+            respond("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: " + page.length() + "\r\n\r\n" + page);
+        }
+
+        private void respond(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+            response = ByteBuffer.wrap(bytes);
+            responseStatus = statusCode(bytes, 0, bytes.length);
+            state = State.RESPONDING;
+        }
+
+        // Called by the event loop every IDLE_CHECK_MILLIS. A connect that takes too long is answered
+        // with 504; any other connection without progress for its state's timeout is closed.
+        void checkIdle(long now) {
+            if (closed || now - lastActivity < TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis())) {
+                return;
+            }
+            if (state == State.CONNECTING) {
+                eventLog.append("Upstream connect timed out for IP: " + clientIP + "\n");
+                closeQuietly(remote);
+                remoteKey = null;
+                respond("HTTP/1.1 504 Gateway Timeout\r\n\r\n");
+                updateInterest();
+                return;
+            }
+            eventLog.append("Closing idle connection from IP: " + clientIP + "\n");
+            close();
+        }
+
+        private long idleTimeoutMillis() {
+            switch (state) {
+                case READ_REQUEST:
+                case READ_TOKEN:
+                    return ProxyConfig.CLIENT_IDLE_TIMEOUT_MILLIS;
+                case CONNECTING:
+                    return ProxyConfig.UPSTREAM_CONNECT_TIMEOUT_MILLIS;
+                case RELAY:
+                    return tunnel ? ProxyConfig.TUNNEL_IDLE_TIMEOUT_MILLIS : ProxyConfig.UPSTREAM_READ_TIMEOUT_MILLIS;
+                default:
+                    return ProxyConfig.UPSTREAM_READ_TIMEOUT_MILLIS;
+            }
+        }
+
+        private void updateInterest() {
+            if (closed) {
+                return;
+            }
+            lastActivity = System.nanoTime();
+            boolean relaying = state == State.RELAY || state == State.READ_SNI;
+            int clientOps = 0;
+            if (!clientEof && fromClient.hasRemaining()
+                    && (relaying || state == State.READ_REQUEST || state == State.READ_TOKEN)) {
+                clientOps |= SelectionKey.OP_READ;
+            }
+            if (response != null || responseFile != null || (closePending ? releasable : toClient.position()) > 0) {
+                clientOps |= SelectionKey.OP_WRITE;
+            }
+            clientKey.interestOps(clientOps);
+
+            if (remoteKey != null && remoteKey.isValid() && state != State.CONNECTING) {
+                int remoteOps = 0;
+                if (relaying && !remoteEof && toClient.hasRemaining()) {
+                    remoteOps |= SelectionKey.OP_READ;
+                }
+                if (state == State.RELAY && fromClient.position() > 0) {
+                    remoteOps |= SelectionKey.OP_WRITE;
+                }
+                remoteKey.interestOps(remoteOps);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (loggedMethod != null) {
+                requestLogs.add(System.currentTimeMillis(), clientIP, loggedDomain, loggedPath, loggedMethod, responseStatus, responseBytes);
+                eventLog.append("Logged request: " + loggedMethod + " " + loggedDomain + loggedPath + "\n");
+            }
+            if (tunnelOpen) {
+                metrics.tunnelClosed();
+            }
+            closeQuietly(client);
+            closeQuietly(remote);
+            closeQuietly(responseFile);
+        }
+    }
+
+    private static boolean invalidatesCache(String method) {
+        return HttpMethods.POST.equalsIgnoreCase(method) || HttpMethods.PUT.equalsIgnoreCase(method)
+                || HttpMethods.PATCH.equalsIgnoreCase(method) || HttpMethods.DELETE.equalsIgnoreCase(method);
+    }
+
+    // Checked by HttpRequestHead.parse, so the first value is a valid length.
+    private static long contentLength(HttpRequestHead head) {
+        String contentLength = head.getHeader("Content-Length");
+        return contentLength == null ? 0 : Long.parseLong(contentLength.split(",")[0].trim());
+    }
+
+    // Three digit status code after "HTTP/1.1 " on the status line starting at offset, 0 if there is none
+    private static int statusCode(byte[] data, int offset, int end) {
+        int code = 0;
+        for (int i = offset + 9; i < offset + 12; i++) {
+            if (i >= end || data[i] < '0' || data[i] > '9') {
+                return 0;
+            }
+            code = code * 10 + (data[i] - '0');
+        }
+        return code;
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // nothing left to release; cache files are opened read-only
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package CSE471;
+
+public class ProxyConfig {
+    public static final String ENGINE_BLOCKING = "blocking";
+    public static final String ENGINE_NIO = "nio";
+
+    // Connection engine, chosen at startup with -Dproxy.engine=blocking|nio
+    public static final String ENGINE = System.getProperty("proxy.engine", ENGINE_BLOCKING).toLowerCase();
+    // Ports the proxy listens on; both accept any request, 443 is where HTTPS clients send CONNECT
+    public static final int HTTP_PORT = Integer.getInteger("proxy.httpPort", 80);
+    public static final int HTTPS_PORT = Integer.getInteger("proxy.httpsPort", 443);
+    // Threads used by the blocking engine for handlers and CONNECT relays: -Dproxy.threads=platform|virtual
+    public static final String THREADS = System.getProperty("proxy.threads", HandlerExecutor.MODE_PLATFORM).toLowerCase();
+    // Number of selector threads used by the NIO engine (one per core by default)
+    public static final int EVENT_LOOPS = Math.max(1, Integer.getInteger("proxy.eventLoops", Runtime.getRuntime().availableProcessors()));
+    // Threads the NIO engine hands blocking work to: host name resolution and cache file reads
+    public static final int NIO_BLOCKING_THREADS = Math.max(1, Integer.getInteger("proxy.nioBlockingThreads", 16));
+    // Byte budget of the in-memory hot tier in front of the disk cache, and the largest body it admits
+    public static final long MEMORY_CACHE_BYTES = Long.getLong("proxy.memoryCacheBytes", 64L * 1024 * 1024);
+    public static final int MEMORY_CACHE_MAX_ENTRY_BYTES = Integer.getInteger("proxy.memoryCacheMaxEntryBytes", 4 * 1024 * 1024);
+    // Whether text-like responses are stored gzip-compressed, at which Deflater level (1-9), and the smallest
+    // body worth compressing
+    public static final boolean CACHE_COMPRESSION = Boolean.parseBoolean(System.getProperty("proxy.cacheCompression", "true"));
+    public static final int CACHE_COMPRESSION_LEVEL = Integer.getInteger("proxy.cacheCompressionLevel", 6);
+    public static final int CACHE_COMPRESSION_MIN_BYTES = Integer.getInteger("proxy.cacheCompressionMinBytes", 1024);
+    // How long a request waits for progress on another handler's fetch of the same URL before fetching itself
+    public static final long COALESCE_TIMEOUT_MILLIS = Long.getLong("proxy.coalesceTimeoutMillis", 30000L);
+    // How long a persistent client connection may sit idle between requests before it is closed
+    public static final int CLIENT_IDLE_TIMEOUT_MILLIS = Integer.getInteger("proxy.clientIdleTimeoutMillis", 15000);
+    // How long connecting to an origin may take, and how long an origin may keep a request waiting for the next bytes
+    public static final int UPSTREAM_CONNECT_TIMEOUT_MILLIS = Integer.getInteger("proxy.upstreamConnectTimeoutMillis", 10000);
+    public static final int UPSTREAM_READ_TIMEOUT_MILLIS = Integer.getInteger("proxy.upstreamReadTimeoutMillis", 60000);
+    // How long an NIO CONNECT tunnel may carry no bytes in either direction before it is closed
+    public static final int TUNNEL_IDLE_TIMEOUT_MILLIS = Integer.getInteger("proxy.tunnelIdleTimeoutMillis", 300000);
+    // Keep-alive connections to origins: in use per host, kept idle per host, and how long an idle one is kept
+    public static final int UPSTREAM_MAX_PER_HOST = Integer.getInteger("proxy.upstreamMaxPerHost", 32);
+    public static final int UPSTREAM_MAX_IDLE_PER_HOST = Integer.getInteger("proxy.upstreamMaxIdlePerHost", 8);
+    public static final long UPSTREAM_IDLE_TIMEOUT_MILLIS = Long.getLong("proxy.upstreamIdleTimeoutMillis", 30000L);
+    // Retention of the in-memory request log used for reports: most recent requests kept, and bytes of resource paths kept
+    public static final int REQUEST_LOG_CAPACITY = Integer.getInteger("proxy.requestLogCapacity", 1000000);
+    public static final int REQUEST_LOG_PATH_BYTES = Integer.getInteger("proxy.requestLogPathBytes", 64 * 1024 * 1024);
+    // Access log files under logs/: queue between handlers and the writer thread, what to do when it is full (drop|block),
+    // size and age at which the file is rotated, and how many rotated files are kept
+    public static final int ACCESS_LOG_QUEUE_SIZE = Integer.getInteger("proxy.accessLogQueueSize", 65536);
+    public static final String ACCESS_LOG_FULL_POLICY = System.getProperty("proxy.accessLogFullPolicy", AccessLog.POLICY_DROP).toLowerCase();
+    public static final long ACCESS_LOG_MAX_FILE_BYTES = Long.getLong("proxy.accessLogMaxFileBytes", 64L * 1024 * 1024);
+    public static final long ACCESS_LOG_ROTATE_MILLIS = Long.getLong("proxy.accessLogRotateMillis", 24L * 60 * 60 * 1000);
+    public static final int ACCESS_LOG_MAX_FILES = Integer.getInteger("proxy.accessLogMaxFiles", 30);
+    // Activity log in the GUI: events queued between handlers and the display, and lines of scrollback kept
+    public static final int EVENT_LOG_QUEUE_SIZE = Integer.getInteger("proxy.eventLogQueueSize", 8192);
+    public static final int EVENT_LOG_MAX_LINES = Integer.getInteger("proxy.eventLogMaxLines", 5000);
+    // Loopback port serving /metrics in Prometheus text format; 0 turns the endpoint off (JMX stays on)
+    public static final int METRICS_PORT = Integer.getInteger("proxy.metricsPort", 9464);
+}
@@ -0,0 +1,281 @@
+package CSE471;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Counters and latency histograms for one running proxy, shared by every handler. Updates go to
+// striped LongAdders and LatencyHistograms, so handlers on different cores do not contend on a
+// single cache line, and nothing on the request path allocates. The values are read through JMX
+// (register()) and as Prometheus text from MetricsEndpoint.
+public class ProxyMetrics implements ProxyMetricsMXBean {
+    public static final String OBJECT_NAME = "CSE471:type=ProxyMetrics";
+
+    // Methods counted by name; anything else is counted as OTHER so clients cannot create labels
+    private static final String[] METHODS = {HttpMethods.GET, HttpMethods.HEAD, HttpMethods.POST,
+            HttpMethods.PUT, HttpMethods.PATCH, HttpMethods.DELETE, HttpMethods.OPTIONS, HttpMethods.GET1};
+    private static final String OTHER_METHOD = "OTHER";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    public enum CacheResult {
+        HIT,     // fresh entry served from the cache
+        MISS,    // no entry, fetched from the origin
+        EXPIRED  // stale entry, revalidated or fetched again
+    }
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder[] requests = new LongAdder[METHODS.length + 1];
+    private final LongAdder[] cacheResults = new LongAdder[CacheResult.values().length];
+    private final LongAdder blocked = new LongAdder();
+    private final LatencyHistogram upstreamConnect = new LatencyHistogram();
+    private final LatencyHistogram upstreamFirstByte = new LatencyHistogram();
+    private final LongAdder tunnelsOpened = new LongAdder();
+    private final LongAdder tunnelsClosed = new LongAdder();
+    private final LongAdder tunnelBytesClientToRemote = new LongAdder();
+    private final LongAdder tunnelBytesRemoteToClient = new LongAdder();
+    private ObjectName registeredName;
+
+    public ProxyMetrics() {
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new LongAdder();
+        }
+        for (int i = 0; i < cacheResults.length; i++) {
+            cacheResults[i] = new LongAdder();
+        }
+    }
+
+    public void connectionAccepted() {
+        accepted.increment();
+    }
+
+    public void request(String method) {
+        requests[methodIndex(method)].increment();
+    }
+
+    public void cacheLookup(CacheResult result) {
+        cacheResults[result.ordinal()].increment();
+    }
+
+    public void blocked() {
+        blocked.increment();
+    }
+
+    // Time to resolve the origin's name and open the TCP connection.
+    public void upstreamConnected(long nanos) {
+        upstreamConnect.recordNanos(nanos);
+    }
+
+    // Time from sending a request upstream to the first byte of the response.
+    public void upstreamFirstByte(long nanos) {
+        upstreamFirstByte.recordNanos(nanos);
+    }
+
+    public void tunnelOpened() {
+        tunnelsOpened.increment();
+    }
+
+    public void tunnelClosed() {
+        tunnelsClosed.increment();
+    }
+
+    // Adders the tunnel relays count their bytes into, one per direction.
+    public LongAdder tunnelBytesClientToRemote() {
+        return tunnelBytesClientToRemote;
+    }
+
+    public LongAdder tunnelBytesRemoteToClient() {
+        return tunnelBytesRemoteToClient;
+    }
+
+    private static int methodIndex(String method) {
+        for (int i = 0; i < METHODS.length; i++) {
+            if (METHODS[i].equalsIgnoreCase(method)) {
+                return i;
+            }
+        }
+        return METHODS.length;
+    }
+
+    // Registers with the platform MBean server, replacing the metrics of an earlier proxy run.
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+        registeredName = name;
+    }
+
+    public void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException ignored) {
+            // already replaced by a newer proxy run
+        }
+        registeredName = null;
+    }
+
+    // Prometheus text exposition format, version 0.0.4. Latencies are exported as summaries in seconds.
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        header(out, "proxy_accepted_connections_total", "counter", "Client connections accepted.");
+        sample(out, "proxy_accepted_connections_total", null, accepted.sum());
+
+        header(out, "proxy_requests_total", "counter", "Requests received from clients, by method.");
+        for (int i = 0; i < requests.length; i++) {
+            String method = i < METHODS.length ? METHODS[i] : OTHER_METHOD;
+            sample(out, "proxy_requests_total", "method=\"" + method + "\"", requests[i].sum());
+        }
+
+        header(out, "proxy_cache_lookups_total", "counter", "Cache lookups for GET and HEAD requests, by result.");
+        for (CacheResult result : CacheResult.values()) {
+            sample(out, "proxy_cache_lookups_total", "result=\"" + result.name().toLowerCase(Locale.ROOT) + "\"",
+                    cacheResults[result.ordinal()].sum());
+        }
+
+        header(out, "proxy_blocked_requests_total", "counter", "Requests and tunnels refused by the host filter.");
+        sample(out, "proxy_blocked_requests_total", null, blocked.sum());
+
+        summary(out, "proxy_upstream_connect_seconds", "Name resolution and TCP connect to origin servers.", upstreamConnect);
+        summary(out, "proxy_upstream_first_byte_seconds", "Time from sending a request upstream to the first response byte.",
+                upstreamFirstByte);
+
+        header(out, "proxy_tunnels_opened_total", "counter", "CONNECT tunnels established.");
+        sample(out, "proxy_tunnels_opened_total", null, tunnelsOpened.sum());
+        header(out, "proxy_tunnels_active", "gauge", "CONNECT tunnels currently open.");
+        sample(out, "proxy_tunnels_active", null, getActiveTunnels());
+        header(out, "proxy_tunnel_bytes_total", "counter", "Bytes relayed through CONNECT tunnels, by direction.");
+        sample(out, "proxy_tunnel_bytes_total", "direction=\"client_to_remote\"", tunnelBytesClientToRemote.sum());
+        sample(out, "proxy_tunnel_bytes_total", "direction=\"remote_to_client\"", tunnelBytesRemoteToClient.sum());
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        header(out, name, "summary", help);
+        for (double q : QUANTILES) {
+            out.append(name).append("{quantile=\"").append(q).append("\"} ")
+                    .append(seconds(histogram.percentileMicros(q))).append('\n');
+        }
+        out.append(name).append("_sum ").append(seconds(histogram.getSumMicros())).append('\n');
+        out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRequestsByMethod() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < requests.length; i++) {
+            counts.put(i < METHODS.length ? METHODS[i] : OTHER_METHOD, requests[i].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheResults[CacheResult.HIT.ordinal()].sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheResults[CacheResult.MISS.ordinal()].sum();
+    }
+
+    @Override
+    public long getCacheExpired() {
+        return cacheResults[CacheResult.EXPIRED.ordinal()].sum();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = getCacheHits();
+        long total = hits + getCacheMisses() + getCacheExpired();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getBlockedRequests() {
+        return blocked.sum();
+    }
+
+    @Override
+    public long getUpstreamConnects() {
+        return upstreamConnect.getCount();
+    }
+
+    @Override
+    public long getUpstreamConnectP50Micros() {
+        return upstreamConnect.percentileMicros(0.5);
+    }
+
+    @Override
+    public long getUpstreamConnectP99Micros() {
+        return upstreamConnect.percentileMicros(0.99);
+    }
+
+    @Override
+    public long getUpstreamFirstBytes() {
+        return upstreamFirstByte.getCount();
+    }
+
+    @Override
+    public long getUpstreamFirstByteP50Micros() {
+        return upstreamFirstByte.percentileMicros(0.5);
+    }
+
+    @Override
+    public long getUpstreamFirstByteP99Micros() {
+        return upstreamFirstByte.percentileMicros(0.99);
+    }
+
+    @Override
+    public long getTunnelsOpened() {
+        return tunnelsOpened.sum();
+    }
+
+    // Closed is read first, so a tunnel that closes during the read is never counted below zero.
+    @Override
+    public long getActiveTunnels() {
+        long closed = tunnelsClosed.sum();
+        return Math.max(0, tunnelsOpened.sum() - closed);
+    }
+
+    @Override
+    public long getTunnelBytesClientToRemote() {
+        return tunnelBytesClientToRemote.sum();
+    }
+
+    @Override
+    public long getTunnelBytesRemoteToClient() {
+        return tunnelBytesRemoteToClient.sum();
+    }
+}
@@ -0,0 +1,41 @@
+package CSE471;
+
+import java.util.Map;
+
+// Read-only view of ProxyMetrics registered with the platform MBean server, so jconsole and other
+// JMX clients can watch a running proxy. Latencies are in microseconds.
+public interface ProxyMetricsMXBean {
+    long getAcceptedConnections();
+
+    Map<String, Long> getRequestsByMethod();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheExpired();
+
+    double getCacheHitRatio();
+
+    long getBlockedRequests();
+
+    long getUpstreamConnects();
+
+    long getUpstreamConnectP50Micros();
+
+    long getUpstreamConnectP99Micros();
+
+    long getUpstreamFirstBytes();
+
+    long getUpstreamFirstByteP50Micros();
+
+    long getUpstreamFirstByteP99Micros();
+
+    long getTunnelsOpened();
+
+    long getActiveTunnels();
+
+    long getTunnelBytesClientToRemote();
+
+    long getTunnelBytesRemoteToClient();
+}
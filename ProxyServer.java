@@ -2,53 +2,84 @@ package CSE471;
 
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
+import javax.management.JMException;
 import javax.swing.JOptionPane;
-import javax.swing.JTextArea;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 
 public class ProxyServer extends Thread {
+    private static final DateTimeFormatter REPORT_RUN_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneId.systemDefault());
+
     private ServerSocket httpServerSocket;
     private ServerSocket httpsServerSocket;
     private boolean running = true;
-    private JTextArea displayArea;
-    private Set<String> blockedHosts;
-    private Map<String, CachedResource> cache;
-    private ConcurrentLinkedQueue<RequestLogEntry> allRequestLogs = new ConcurrentLinkedQueue<>();
+    private EventLog eventLog;
+    private DomainBlocklist blockedHosts;
+    private CacheIndex cache;
+    private CacheStore cacheStore;
+    private MemoryCache memoryCache = new MemoryCache(ProxyConfig.MEMORY_CACHE_BYTES, ProxyConfig.MEMORY_CACHE_MAX_ENTRY_BYTES);
+    private ProxyMetrics metrics = new ProxyMetrics();
+    private MetricsEndpoint metricsEndpoint;
+    private UpstreamPool upstreamPool = new UpstreamPool(ProxyConfig.UPSTREAM_MAX_PER_HOST,
+            ProxyConfig.UPSTREAM_MAX_IDLE_PER_HOST, ProxyConfig.UPSTREAM_IDLE_TIMEOUT_MILLIS,
+            ProxyConfig.UPSTREAM_CONNECT_TIMEOUT_MILLIS, ProxyConfig.UPSTREAM_READ_TIMEOUT_MILLIS, metrics);
+    private AccessLog accessLog;
+    private RequestLog allRequestLogs;
     private Thread httpProxyThread;
     private Thread httpsProxyThread;
+    private NioProxyEngine nioEngine;
+    private HandlerExecutor handlerExecutor;
 
-    public ProxyServer(JTextArea displayArea, Set<String> blockedHosts, Map<String, CachedResource> cache) {
-        this.displayArea = displayArea;
+    public ProxyServer(EventLog eventLog, DomainBlocklist blockedHosts, Map<String, CachedResource> cache) {
+        this.eventLog = eventLog;
         this.blockedHosts = blockedHosts;
-        this.cache = new ConcurrentHashMap<>(cache); // Ensure thread-safety
+        this.cacheStore = new CacheStore(Paths.get("cache"));
+        this.cache = new CacheIndex(cacheStore);
+        this.cache.putAll(cache);
+        this.accessLog = new AccessLog(Paths.get("logs"), ProxyConfig.ACCESS_LOG_QUEUE_SIZE, ProxyConfig.ACCESS_LOG_MAX_FILE_BYTES,
+                ProxyConfig.ACCESS_LOG_ROTATE_MILLIS, ProxyConfig.ACCESS_LOG_MAX_FILES, ProxyConfig.ACCESS_LOG_FULL_POLICY, eventLog);
+        this.allRequestLogs = new RequestLog(ProxyConfig.REQUEST_LOG_CAPACITY, ProxyConfig.REQUEST_LOG_PATH_BYTES, accessLog);
         System.setProperty("java.net.preferIPv4Stack", "true");
     }
 
     @Override
     public void run() {
+        loadCacheIndex();
+        try {
+            accessLog.start();
+        } catch (IOException e) {
+            eventLog.append("Could not open the access log, requests are logged in memory only: " + e.getMessage() + "\n");
+        }
+        startMetrics();
+        if (ProxyConfig.ENGINE_NIO.equals(ProxyConfig.ENGINE)) {
+            runNioEngine();
+            return;
+        }
         try {
-            httpServerSocket = new ServerSocket(80);
-            httpsServerSocket = new ServerSocket(443);
-            displayArea.append("Proxy server started on ports 80 (HTTP) and 443 (HTTPS).\n");
-            displayArea.append("Proxy Server IP Address: " + InetAddress.getLocalHost().getHostAddress() + "\n");
+            handlerExecutor = HandlerExecutor.create(ProxyConfig.THREADS);
+            httpServerSocket = openServerSocket(ProxyConfig.HTTP_PORT);
+            httpsServerSocket = openServerSocket(ProxyConfig.HTTPS_PORT);
+            eventLog.append("Proxy server started on ports " + ProxyConfig.HTTP_PORT + " (HTTP) and " + ProxyConfig.HTTPS_PORT + " (HTTPS) using " + handlerExecutor.getMode() + " threads.\n");
+            eventLog.append("Proxy Server IP Address: " + InetAddress.getLocalHost().getHostAddress() + "\n");
 
             // HTTP Proxy Thread
             httpProxyThread = new Thread(() -> {
                 try {
                     while (running) {
                         Socket clientSocket = httpServerSocket.accept();
-                        new ServerHandler(clientSocket, displayArea, blockedHosts, cache, allRequestLogs).start();
+                        metrics.connectionAccepted();
+                        handlerExecutor.execute(new ServerHandler(clientSocket, eventLog, blockedHosts, cache, cacheStore, memoryCache, allRequestLogs, handlerExecutor, upstreamPool, metrics));
                     }
                 } catch (IOException e) {
                     if (running) { // Only log unexpected errors.
-                        displayArea.append("Error accepting connection on HTTP port: " + e.getMessage() + "\n");
+                        eventLog.append("Error accepting connection on HTTP port: " + e.getMessage() + "\n");
                     }
                 }
             });
@@ -58,11 +89,12 @@ public class ProxyServer extends Thread {
                 try {
                     while (running) {
                         Socket clientSocket = httpsServerSocket.accept();
-                        new ServerHandler(clientSocket, displayArea, blockedHosts, cache, allRequestLogs).start();
+                        metrics.connectionAccepted();
+                        handlerExecutor.execute(new ServerHandler(clientSocket, eventLog, blockedHosts, cache, cacheStore, memoryCache, allRequestLogs, handlerExecutor, upstreamPool, metrics));
                     }
                 } catch (IOException e) {
                     if (running) { // Only log unexpected errors.
-                        displayArea.append("Error accepting connection on HTTPS port: " + e.getMessage() + "\n");
+                        eventLog.append("Error accepting connection on HTTPS port: " + e.getMessage() + "\n");
                     }
                 }
             });
@@ -75,17 +107,62 @@ public class ProxyServer extends Thread {
                 httpProxyThread.join();
                 httpsProxyThread.join();
             } catch (InterruptedException e) {
-                displayArea.append("Proxy server interrupted: " + e.getMessage() + "\n");
+                eventLog.append("Proxy server interrupted: " + e.getMessage() + "\n");
                 Thread.currentThread().interrupt();
             }
 
         } catch (IOException e) {
-            displayArea.append("Could not start the proxy server on ports 80 and 443. Ports may be in use.\n" + e.getMessage() + "\n");
+            eventLog.append("Could not start the proxy server on ports " + ProxyConfig.HTTP_PORT + " and " + ProxyConfig.HTTPS_PORT + ". Ports may be in use.\n" + e.getMessage() + "\n");
         } finally {
             closeServerSockets();
         }
     }
 
+    // Opened through a channel so that accepted sockets expose a SocketChannel for the tunnel relay.
+    private ServerSocket openServerSocket(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        return channel.socket();
+    }
+
+    private void runNioEngine() {
+        try {
+            nioEngine = new NioProxyEngine(eventLog, blockedHosts, cache, memoryCache, allRequestLogs, metrics, ProxyConfig.EVENT_LOOPS);
+            nioEngine.start(ProxyConfig.HTTP_PORT, ProxyConfig.HTTPS_PORT);
+            eventLog.append("Proxy server started on ports " + ProxyConfig.HTTP_PORT + " (HTTP) and " + ProxyConfig.HTTPS_PORT + " (HTTPS) with " + nioEngine.getEventLoopCount() + " NIO event loops.\n");
+            eventLog.append("Proxy Server IP Address: " + InetAddress.getLocalHost().getHostAddress() + "\n");
+            nioEngine.awaitTermination();
+        } catch (IOException e) {
+            eventLog.append("Could not start the proxy server on ports " + ProxyConfig.HTTP_PORT + " and " + ProxyConfig.HTTPS_PORT + ". Ports may be in use.\n" + e.getMessage() + "\n");
+            if (nioEngine != null) {
+                nioEngine.stop();
+            }
+        } catch (InterruptedException e) {
+            eventLog.append("Proxy server interrupted: " + e.getMessage() + "\n");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // JMX is always on; the HTTP endpoint only when a port is configured. Neither is needed to
+    // serve requests, so a failure is reported and the proxy starts anyway.
+    private void startMetrics() {
+        try {
+            metrics.register();
+        } catch (JMException e) {
+            eventLog.append("Could not register metrics with JMX: " + e.getMessage() + "\n");
+        }
+        if (ProxyConfig.METRICS_PORT <= 0) {
+            return;
+        }
+        try {
+            metricsEndpoint = new MetricsEndpoint(metrics, ProxyConfig.METRICS_PORT);
+            metricsEndpoint.start();
+            eventLog.append("Metrics available at http://127.0.0.1:" + metricsEndpoint.getPort() + "/metrics\n");
+        } catch (IOException e) {
+            eventLog.append("Could not start the metrics endpoint on port " + ProxyConfig.METRICS_PORT + ": " + e.getMessage() + "\n");
+        }
+    }
+
     private void closeServerSockets() {
         try {
             if (httpServerSocket != null && !httpServerSocket.isClosed()) {
@@ -95,13 +172,26 @@ public class ProxyServer extends Thread {
                 httpsServerSocket.close();
             }
         } catch (IOException e) {
-            displayArea.append("Error closing server sockets: " + e.getMessage() + "\n");
+            eventLog.append("Error closing server sockets: " + e.getMessage() + "\n");
         }
     }
 
     public void stopServer() {
         running = false;
+        if (nioEngine != null) {
+            nioEngine.stop();
+        }
         closeServerSockets();
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        metrics.unregister();
+        upstreamPool.close();
+        cache.close();
+        accessLog.close();
+        if (accessLog.getDroppedCount() > 0) {
+            eventLog.append("Access log dropped " + accessLog.getDroppedCount() + " entries while its queue was full.\n");
+        }
         if (httpProxyThread != null && httpProxyThread.isAlive()) {
             httpProxyThread.interrupt();
         }
@@ -110,37 +200,53 @@ public class ProxyServer extends Thread {
         }
     }
 
-    private List<RequestLogEntry> getRequestLogsForClient(String clientIP) {
-        return allRequestLogs.stream()
-                .filter(log -> log.getClientIP().equals(clientIP))
-                .collect(Collectors.toList());
-    }
-
-    public void generateReport(String clientIP) {
-        List<RequestLogEntry> requestLogs = getRequestLogsForClient(clientIP);
-        if (requestLogs.isEmpty()) {
-            JOptionPane.showMessageDialog(null, "No data available for the IP: " + clientIP);
+    // Brings back the entries cached before the last shutdown. Checking them against the files
+    // on disk takes longer, so it runs in the background while requests are already served.
+    private void loadCacheIndex() {
+        long start = System.nanoTime();
+        try {
+            cache.load();
+            eventLog.append("Cache index loaded: " + cache.size() + " entries in " + (System.nanoTime() - start) / 1000000 + " ms.\n");
+        } catch (IOException e) {
+            eventLog.append("Failed to load cache index, starting with an empty cache: " + e.getMessage() + "\n");
             return;
         }
+        Thread recovery = new Thread(() -> {
+            try {
+                cache.recover();
+                eventLog.append("Cache index checked: " + cache.getDroppedEntries() + " stale entries dropped, "
+                        + cache.getOrphanFiles() + " orphaned files removed.\n");
+            } catch (IOException e) {
+                eventLog.append("Failed to check cache index: " + e.getMessage() + "\n");
+            }
+        }, "cache-index-recovery");
+        recovery.setDaemon(true);
+        recovery.start();
+    }
 
-        String folderPath = "reports/"; // Define the folder path
-        File folder = new File(folderPath);
-        if (!folder.exists()) {
-            folder.mkdirs(); // Create the folder if it doesn't exist
-        }
+    public ProxyMetrics getMetrics() {
+        return metrics;
+    }
+
+    public MemoryCache getMemoryCache() {
+        return memoryCache;
+    }
 
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String fileName = folderPath + "report_" + clientIP + ".txt"; // Include the folder path in the file name
-        try (PrintWriter writer = new PrintWriter(new FileWriter(fileName))) {
-            writer.println("Date\t\tTime\t\tDomain\tResource Path\tHTTP Method\tStatus Code");
-            for (RequestLogEntry entry : requestLogs) {
-                writer.println(dateFormat.format(entry.getDate()) + "\t" +
-                        entry.getDomain() + "\t" +
-                        entry.getResourcePath() + "\t" +
-                        entry.getMethod() + "\t" +
-                        entry.getStatusCode());
+    public void generateReport(String clientIP) {
+        // Older entries come from the log files, up to where the in-memory window begins
+        List<RequestLogEntry> recent = allRequestLogs.forClient(clientIP);
+        long windowStart = recent.isEmpty() ? Long.MAX_VALUE : recent.get(0).getDate().getTime();
+        // Each report goes to a directory of its own, so earlier reports and their summaries are kept
+        String run = REPORT_RUN_FORMAT.format(Instant.now());
+        ReportGenerator generator = new ReportGenerator(Paths.get("reports", run), ReportGenerator.Format.TSV, 1);
+        try {
+            ReportGenerator.Summary summary = generator.generate(AccessLog.logFiles(accessLog.getDirectory()), windowStart,
+                    recent, clientIP::equals);
+            if (summary.getRequests() == 0) {
+                JOptionPane.showMessageDialog(null, "No data available for the IP: " + clientIP);
+                return;
             }
-            JOptionPane.showMessageDialog(null, "Report generated successfully. Saved as " + fileName);
+            JOptionPane.showMessageDialog(null, "Report generated successfully. Saved as " + generator.clientReportPath(clientIP));
         } catch (IOException e) {
             JOptionPane.showMessageDialog(null, "Error occurred while writing the report: " + e.getMessage());
         }
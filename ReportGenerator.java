@@ -0,0 +1,557 @@
+package CSE471;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Predicate;
+
+// Writes request reports from the access log files without loading them: one file per client
+// (report_<client>.<ext>) with its requests, and summary.<ext> with request, byte and status code
+// totals and the top domains, overall and per client. Entries are read once, in order, and handed
+// to worker threads by client, so formatting and writing run in parallel across clients while each
+// client's rows stay in order. Queues between the reader and the workers are bounded, and a worker
+// appends its clients' buffered rows to their files whenever the buffers reach a fixed size, so
+// memory depends on the number of clients and not on the size of the log.
+//
+// Run headless with: java CSE471.ReportGenerator [--logs dir] [--out dir] [--format tsv|csv|json]
+// [--threads n] [--client ip]...
+public class ReportGenerator {
+    public enum Format {
+        TSV("tsv"), CSV("csv"), JSON("json");
+
+        final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final int BATCH_SIZE = 1024;
+    private static final int QUEUED_BATCHES = 16;          // per worker
+    private static final int BUFFER_CHARS_PER_WORKER = 8 * 1024 * 1024; // rows held before they are written out
+    private static final int TOP_DOMAINS = 10;
+    private static final int CLIENT_TOP_DOMAINS = 5;
+    private static final int TRACKED_DOMAINS = 4096;       // distinct domains counted overall before pruning
+    private static final int CLIENT_TRACKED_DOMAINS = 64;  // and per client
+    private static final List<RequestLogEntry> END = Collections.emptyList();
+
+    private final Path outputDirectory;
+    private final Format format;
+    private final int threads;
+
+    // Request, byte and status code totals and domain counts, overall or for one client
+    public static class Summary {
+        private final String client; // null for the overall summary
+        private long requests;
+        private long bytes;
+        private final TreeMap<Integer, Long> statusCodes = new TreeMap<>();
+        private final TopCounts domains;
+        private int clients;
+
+        Summary(String client, int trackedDomains) {
+            this.client = client;
+            this.domains = new TopCounts(trackedDomains);
+        }
+
+        void add(RequestLogEntry entry) {
+            requests++;
+            if (entry.getBytes() > 0) {
+                bytes += entry.getBytes();
+            }
+            statusCodes.merge(entry.getStatusCode(), 1L, Long::sum);
+            domains.add(entry.getDomain(), 1);
+        }
+
+        void addAll(Summary other) {
+            requests += other.requests;
+            bytes += other.bytes;
+            other.statusCodes.forEach((status, count) -> statusCodes.merge(status, count, Long::sum));
+            domains.addAll(other.domains);
+            clients += other.clients;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public int getClients() {
+            return clients;
+        }
+
+        public Map<Integer, Long> getStatusCodes() {
+            return Collections.unmodifiableMap(statusCodes);
+        }
+
+        public List<Map.Entry<String, Long>> getTopDomains(int count) {
+            return domains.top(count);
+        }
+    }
+
+    // Counts per key that stay bounded: past twice the limit the least frequent keys are dropped,
+    // so counts of domains outside the top are approximate when there are very many of them.
+    static class TopCounts {
+        private final int limit;
+        private final HashMap<String, long[]> counts = new HashMap<>();
+
+        TopCounts(int limit) {
+            this.limit = limit;
+        }
+
+        void add(String key, long count) {
+            counts.computeIfAbsent(key, k -> new long[1])[0] += count;
+            if (counts.size() > limit * 2) {
+                prune();
+            }
+        }
+
+        void addAll(TopCounts other) {
+            other.counts.forEach((key, count) -> add(key, count[0]));
+        }
+
+        List<Map.Entry<String, Long>> top(int count) {
+            List<Map.Entry<String, Long>> sorted = new ArrayList<>(counts.size());
+            counts.forEach((key, value) -> sorted.add(Map.entry(key, value[0])));
+            sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+            return sorted.subList(0, Math.min(count, sorted.size()));
+        }
+
+        // Keeps the keys counted at least as often as the limit-th most frequent one.
+        private void prune() {
+            long[] values = new long[counts.size()];
+            int i = 0;
+            for (long[] count : counts.values()) {
+                values[i++] = count[0];
+            }
+            Arrays.sort(values);
+            long threshold = values[values.length - limit];
+            counts.values().removeIf(count -> count[0] < threshold);
+            if (counts.size() > limit * 3 / 2) {
+                counts.values().removeIf(count -> count[0] <= threshold); // too many ties to keep them all
+            }
+        }
+    }
+
+    // One client's report file and summary. Rows are collected in a buffer and appended to the
+    // file when the worker's buffers are full, so each write covers many rows of the client.
+    private class ClientReport {
+        final Summary summary;
+        final Path path;
+        final StringBuilder rows = new StringBuilder();
+        boolean created;
+
+        ClientReport(String client) {
+            this.summary = new Summary(client, CLIENT_TRACKED_DOMAINS);
+            this.path = clientReportPath(client);
+            switch (format) {
+                case TSV:
+                    rows.append("Time\tDomain\tResource Path\tHTTP Method\tStatus Code\tBytes\n");
+                    break;
+                case CSV:
+                    rows.append("time,domain,resource_path,method,status,bytes\n");
+                    break;
+                default:
+                    rows.append("{\n  \"client\": ").append(jsonString(client)).append(",\n  \"entries\": [");
+            }
+        }
+
+        // Returns the number of chars added to the buffer.
+        int add(RequestLogEntry entry, String time) {
+            int before = rows.length();
+            String bytes = entry.getBytes() < 0 ? "" : Long.toString(entry.getBytes());
+            switch (format) {
+                case TSV:
+                    rows.append(time).append('\t').append(tsvField(entry.getDomain())).append('\t')
+                            .append(tsvField(entry.getResourcePath())).append('\t').append(tsvField(entry.getMethod()))
+                            .append('\t').append(entry.getStatusCode()).append('\t').append(bytes).append('\n');
+                    break;
+                case CSV:
+                    rows.append(time).append(',').append(csvField(entry.getDomain())).append(',')
+                            .append(csvField(entry.getResourcePath())).append(',').append(csvField(entry.getMethod()))
+                            .append(',').append(entry.getStatusCode()).append(',').append(bytes).append('\n');
+                    break;
+                default:
+                    rows.append(summary.requests > 0 ? ",\n    " : "\n    ").append("{\"time\": ").append(jsonString(time))
+                            .append(", \"domain\": ").append(jsonString(entry.getDomain()))
+                            .append(", \"resourcePath\": ").append(jsonString(entry.getResourcePath()))
+                            .append(", \"method\": ").append(jsonString(entry.getMethod()))
+                            .append(", \"status\": ").append(entry.getStatusCode())
+                            .append(", \"bytes\": ").append(bytes.isEmpty() ? "null" : bytes).append('}');
+            }
+            summary.add(entry);
+            return rows.length() - before;
+        }
+
+        void flush() throws IOException {
+            if (rows.length() == 0) {
+                return;
+            }
+            try (Writer writer = created
+                    ? Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.APPEND)
+                    : Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+                writer.append(rows);
+            }
+            created = true;
+            rows.setLength(0);
+            rows.trimToSize(); // idle clients do not keep the room their last rows took
+        }
+
+        void finish() throws IOException {
+            if (format == Format.JSON) {
+                rows.append("\n  ],\n  \"summary\": ");
+                StringWriter summaryJson = new StringWriter();
+                writeJsonSummary(summaryJson, summary, CLIENT_TOP_DOMAINS, "  ");
+                rows.append(summaryJson).append("\n}\n");
+            }
+            flush();
+        }
+    }
+
+    // Handles the clients hashed to it, in the order their entries arrive.
+    private class Worker extends Thread {
+        final BlockingQueue<List<RequestLogEntry>> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        final Map<String, ClientReport> clients = new HashMap<>();
+        final Summary total = new Summary(null, TRACKED_DOMAINS);
+        long bufferedChars;
+        long formattedSecond = Long.MIN_VALUE;
+        String formattedTime;
+        Throwable failure; // passed back to generate(), which rethrows it as a Future would
+
+        Worker(int index) {
+            super("report-worker-" + index);
+            setDaemon(true);
+        }
+
+        // After a failure the worker keeps taking batches without writing them, so the reader is
+        // never left blocked on a full queue.
+        @Override
+        public void run() {
+            try {
+                List<RequestLogEntry> batch;
+                while ((batch = queue.take()) != END) {
+                    if (failure == null) {
+                        write(batch);
+                    }
+                }
+                if (failure == null) {
+                    for (ClientReport report : clients.values()) {
+                        report.finish();
+                    }
+                    total.clients = clients.size();
+                }
+            } catch (InterruptedException e) {
+                failure = new IOException("Report generation interrupted");
+            } catch (IOException | RuntimeException | Error e) {
+                failure = e;
+            }
+        }
+
+        private void write(List<RequestLogEntry> batch) {
+            try {
+                for (RequestLogEntry entry : batch) {
+                    long second = Math.floorDiv(entry.getDate().getTime(), 1000L);
+                    if (second != formattedSecond) { // entries arrive in time order, so most share the previous second
+                        formattedSecond = second;
+                        formattedTime = TIME_FORMAT.format(Instant.ofEpochSecond(second));
+                    }
+                    bufferedChars += clients.computeIfAbsent(entry.getClientIP(), ClientReport::new).add(entry, formattedTime);
+                    total.add(entry);
+                }
+                if (bufferedChars > BUFFER_CHARS_PER_WORKER) {
+                    for (ClientReport report : clients.values()) {
+                        report.flush();
+                    }
+                    bufferedChars = 0;
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                failure = e; // keep draining so the reader is not blocked
+            }
+        }
+    }
+
+    public ReportGenerator(Path outputDirectory, Format format, int threads) {
+        this.outputDirectory = outputDirectory;
+        this.format = format;
+        this.threads = Math.max(1, threads);
+    }
+
+    public Path clientReportPath(String client) {
+        return outputDirectory.resolve("report_" + client.replaceAll("[^0-9A-Za-z._-]", "_") + "." + format.extension);
+    }
+
+    public Path summaryPath() {
+        return outputDirectory.resolve("summary." + format.extension);
+    }
+
+    // Reports the entries of the given log files logged before filesBefore, followed by recent
+    // entries that are not in the files yet (such as the in-memory request log), for the clients
+    // accepted by clientFilter. Returns the overall summary, which is also written to summaryPath().
+    public Summary generate(List<Path> logFiles, long filesBefore, List<RequestLogEntry> recent,
+                            Predicate<String> clientFilter) throws IOException {
+        Files.createDirectories(outputDirectory);
+        Worker[] workers = new Worker[threads];
+        List<List<RequestLogEntry>> pending = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+            pending.add(new ArrayList<>(BATCH_SIZE));
+        }
+        boolean finished = false;
+        try {
+            for (Path file : logFiles) {
+                AccessLog.read(file, entry -> {
+                    if (entry.getDate().getTime() < filesBefore && clientFilter.test(entry.getClientIP())) {
+                        dispatch(entry, workers, pending);
+                    }
+                });
+            }
+            for (RequestLogEntry entry : recent) {
+                if (clientFilter.test(entry.getClientIP())) {
+                    dispatch(entry, workers, pending);
+                }
+            }
+            for (int i = 0; i < threads; i++) {
+                workers[i].queue.put(pending.get(i));
+                workers[i].queue.put(END);
+            }
+            for (Worker worker : workers) {
+                worker.join();
+            }
+            finished = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Report generation interrupted");
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (!finished) {
+                stopWorkers(workers);
+            }
+        }
+
+        Summary total = new Summary(null, TRACKED_DOMAINS);
+        List<Summary> perClient = new ArrayList<>();
+        for (Worker worker : workers) {
+            rethrow(worker.failure);
+            total.addAll(worker.total);
+            for (ClientReport report : worker.clients.values()) {
+                perClient.add(report.summary);
+            }
+        }
+        perClient.sort((a, b) -> a.client.compareTo(b.client));
+        writeSummary(total, perClient);
+        return total;
+    }
+
+    // After the reader failed, whether on a log file, an interrupt or anything else, no END is
+    // coming; interrupts the workers and waits for them so none is left blocked on its queue.
+    private static void stopWorkers(Worker[] workers) {
+        boolean interrupted = Thread.interrupted();
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+        for (Worker worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void rethrow(Throwable failure) throws IOException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new IOException("Report worker failed: " + failure, failure);
+        }
+    }
+
+    private void dispatch(RequestLogEntry entry, Worker[] workers, List<List<RequestLogEntry>> pending) {
+        int index = (entry.getClientIP().hashCode() & Integer.MAX_VALUE) % workers.length;
+        List<RequestLogEntry> batch = pending.get(index);
+        batch.add(entry);
+        if (batch.size() == BATCH_SIZE) {
+            try {
+                workers[index].queue.put(batch); // waits while the worker is behind
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new IOException("Report generation interrupted"));
+            }
+            pending.set(index, new ArrayList<>(BATCH_SIZE));
+        }
+    }
+
+    private void writeSummary(Summary total, List<Summary> perClient) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(summaryPath(), StandardCharsets.UTF_8)) {
+            if (format == Format.JSON) {
+                writer.write("{\n  \"total\": ");
+                writeJsonSummary(writer, total, TOP_DOMAINS, "  ");
+                writer.write(",\n  \"clients\": [");
+                for (int i = 0; i < perClient.size(); i++) {
+                    writer.write(i == 0 ? "\n    " : ",\n    ");
+                    writeJsonSummary(writer, perClient.get(i), CLIENT_TOP_DOMAINS, "    ");
+                }
+                writer.write("\n  ]\n}\n");
+                return;
+            }
+            // One metric per row: client (or "all"), metric, key, value
+            String separator = format == Format.TSV ? "\t" : ",";
+            writer.write(String.join(separator, "client", "metric", "key", "value") + "\n");
+            writeSummaryRows(writer, separator, "all", total, TOP_DOMAINS);
+            writeRow(writer, separator, "all", "clients", "", Long.toString(total.clients));
+            for (Summary summary : perClient) {
+                writeSummaryRows(writer, separator, summary.client, summary, CLIENT_TOP_DOMAINS);
+            }
+        }
+    }
+
+    private void writeSummaryRows(Writer writer, String separator, String client, Summary summary, int topDomains) throws IOException {
+        writeRow(writer, separator, client, "requests", "", Long.toString(summary.requests));
+        writeRow(writer, separator, client, "bytes", "", Long.toString(summary.bytes));
+        for (Map.Entry<Integer, Long> status : summary.statusCodes.entrySet()) {
+            writeRow(writer, separator, client, "status", status.getKey().toString(), status.getValue().toString());
+        }
+        for (Map.Entry<String, Long> domain : summary.getTopDomains(topDomains)) {
+            writeRow(writer, separator, client, "domain", domain.getKey(), domain.getValue().toString());
+        }
+    }
+
+    private void writeRow(Writer writer, String separator, String client, String metric, String key, String value) throws IOException {
+        boolean tsv = format == Format.TSV;
+        writer.write((tsv ? tsvField(client) : csvField(client)) + separator + metric + separator
+                + (tsv ? tsvField(key) : csvField(key)) + separator + value + "\n");
+    }
+
+    private static void writeJsonSummary(Writer writer, Summary summary, int topDomains, String indent) throws IOException {
+        writer.write("{");
+        if (summary.client != null) {
+            writer.write("\"client\": " + jsonString(summary.client) + ", ");
+        } else {
+            writer.write("\"clients\": " + summary.clients + ", ");
+        }
+        writer.write("\"requests\": " + summary.requests + ", \"bytes\": " + summary.bytes + ",\n" + indent + "  \"statusCodes\": {");
+        boolean first = true;
+        for (Map.Entry<Integer, Long> status : summary.statusCodes.entrySet()) {
+            writer.write((first ? "" : ", ") + "\"" + status.getKey() + "\": " + status.getValue());
+            first = false;
+        }
+        writer.write("},\n" + indent + "  \"topDomains\": [");
+        first = true;
+        for (Map.Entry<String, Long> domain : summary.getTopDomains(topDomains)) {
+            writer.write((first ? "" : ", ") + "{\"domain\": " + jsonString(domain.getKey()) + ", \"requests\": " + domain.getValue() + "}");
+            first = false;
+        }
+        writer.write("]}");
+    }
+
+    private static String tsvField(String value) {
+        if (value.indexOf('\t') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return value.replace("\t", " ").replace("\r", " ").replace("\n", " ");
+    }
+
+    // RFC 4180: quote fields containing separators, quotes or line breaks
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder out = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    public static void main(String[] args) {
+        Path logs = Paths.get("logs");
+        Path out = Paths.get("reports");
+        Format format = Format.TSV;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value for " + option);
+                }
+                String value = args[++i];
+                switch (option) {
+                    case "--logs": logs = Paths.get(value); break;
+                    case "--out": out = Paths.get(value); break;
+                    case "--format": format = Format.valueOf(value.toUpperCase()); break;
+                    case "--threads": threads = Integer.parseInt(value); break;
+                    case "--client": clients.add(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java CSE471.ReportGenerator [--logs dir] [--out dir] [--format tsv|csv|json] [--threads n] [--client ip]...");
+            System.exit(2);
+        }
+
+        long start = System.nanoTime();
+        try {
+            ReportGenerator generator = new ReportGenerator(out, format, threads);
+            Summary total = generator.generate(AccessLog.logFiles(logs), Long.MAX_VALUE, Collections.emptyList(),
+                    clients.isEmpty() ? client -> true : clients::contains);
+            System.out.println("Reported " + total.getRequests() + " requests from " + total.getClients() + " clients to "
+                    + out + " in " + (System.nanoTime() - start) / 1000000 + " ms.");
+        } catch (IOException e) {
+            System.err.println("Error occurred while writing the reports: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package CSE471;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+// Request log kept as a ring of primitive columns holding the most recent entries. Client IPs,
+// domains and methods are stored as ids into per-column dictionaries and resource paths as UTF-8
+// in a byte ring, so an entry costs a few dozen bytes instead of five objects. Each entry also
+// records the sequence number of the previous entry from the same client, so a client's entries
+// are found by walking that chain from its latest one instead of scanning the whole log.
+//
+// Entries are dropped oldest first once either capacity entries or maxPathBytes of paths are held.
+// With an AccessLog every entry is also queued for the log files, which keep the full history.
+public class RequestLog {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int capacity;
+    private final int maxPathBytes;
+    private final AccessLog accessLog; // null to keep the log in memory only
+    private long next;   // sequence number of the next entry; entry seq lives in slot seq % capacity
+    private long oldest; // sequence number of the oldest retained entry
+
+    // Columns, grown by doubling up to capacity
+    private long[] times = new long[0];
+    private int[] clients = new int[0];
+    private int[] domains = new int[0];
+    private int[] methods = new int[0];
+    private short[] statuses = new short[0];
+    private long[] byteCounts = new long[0];
+    private long[] pathStarts = new long[0]; // position of the path in the byte ring, counted from the first byte ever written
+    private int[] pathLengths = new int[0];
+    private byte[] pathBytes = new byte[0];   // grown by doubling up to maxPathBytes, then reused from the start
+    private long pathEnd;                     // position after the last path written
+    private long[] previousForClient = new long[0]; // -1 if none
+
+    private final Dictionary clientIds = new Dictionary();
+    private final Dictionary domainIds = new Dictionary();
+    private final Dictionary methodIds = new Dictionary();
+    private long[] latestForClient = new long[16]; // by client id
+
+    // Distinct values of one column, numbered in order of first appearance
+    private static class Dictionary {
+        private final HashMap<String, Integer> ids = new HashMap<>();
+        private final ArrayList<String> values = new ArrayList<>();
+
+        int idOf(String value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                ids.put(value, id);
+                values.add(value);
+            }
+            return id;
+        }
+
+        // -1 if the value was never added
+        int find(String value) {
+            Integer id = ids.get(value);
+            return id == null ? -1 : id;
+        }
+
+        String valueOf(int id) {
+            return values.get(id);
+        }
+    }
+
+    public RequestLog(int capacity, int maxPathBytes) {
+        this(capacity, maxPathBytes, null);
+    }
+
+    public RequestLog(int capacity, int maxPathBytes, AccessLog accessLog) {
+        this.capacity = Math.max(1, capacity);
+        this.maxPathBytes = Math.max(1, maxPathBytes);
+        this.accessLog = accessLog;
+    }
+
+    public void add(long time, String clientIP, String domain, String resourcePath, String method, int statusCode, long bytes) {
+        append(time, clientIP, domain, resourcePath, method, statusCode, bytes);
+        if (accessLog != null) {
+            accessLog.publish(new RequestLogEntry(new Date(time), clientIP, domain, resourcePath, method, statusCode, bytes));
+        }
+    }
+
+    private synchronized void append(long time, String clientIP, String domain, String resourcePath, String method,
+                                     int statusCode, long bytes) {
+        int slot = (int) (next % capacity);
+        if (slot >= times.length) {
+            grow();
+        }
+        int knownClients = clientIds.values.size();
+        int client = clientIds.idOf(clientIP);
+        if (client == knownClients) {
+            if (client == latestForClient.length) {
+                latestForClient = Arrays.copyOf(latestForClient, client * 2);
+            }
+            latestForClient[client] = -1;
+        }
+        times[slot] = time;
+        clients[slot] = client;
+        domains[slot] = domainIds.idOf(domain);
+        methods[slot] = methodIds.idOf(method);
+        statuses[slot] = (short) statusCode;
+        byteCounts[slot] = bytes;
+        byte[] path = resourcePath.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(path.length, maxPathBytes);
+        pathStarts[slot] = pathEnd;
+        pathLengths[slot] = length;
+        writePath(path, length);
+        previousForClient[slot] = latestForClient[client];
+        latestForClient[client] = next;
+        next++;
+        while (oldest < next && !isRetained(oldest)) {
+            oldest++;
+        }
+    }
+
+    public void add(RequestLogEntry entry) {
+        add(entry.getDate().getTime(), entry.getClientIP(), entry.getDomain(), entry.getResourcePath(),
+                entry.getMethod(), entry.getStatusCode(), entry.getBytes());
+    }
+
+    // The retained entries of one client, oldest first. Runs in time proportional to the matches.
+    public synchronized List<RequestLogEntry> forClient(String clientIP) {
+        int client = clientIds.find(clientIP);
+        if (client < 0) {
+            return Collections.emptyList();
+        }
+        ArrayList<RequestLogEntry> result = new ArrayList<>();
+        for (long seq = latestForClient[client]; seq >= oldest; ) {
+            int slot = (int) (seq % capacity);
+            result.add(entryAt(slot));
+            seq = previousForClient[slot];
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    // All retained entries, oldest first.
+    public synchronized List<RequestLogEntry> snapshot() {
+        ArrayList<RequestLogEntry> result = new ArrayList<>(size());
+        for (long seq = oldest; seq < next; seq++) {
+            result.add(entryAt((int) (seq % capacity)));
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return (int) (next - oldest);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // Whether the entry's slot and path bytes have not been reused by later entries.
+    private boolean isRetained(long seq) {
+        return next - seq <= capacity && pathStarts[(int) (seq % capacity)] >= pathEnd - maxPathBytes;
+    }
+
+    private void writePath(byte[] path, int length) {
+        if (pathEnd + length > pathBytes.length && pathBytes.length < maxPathBytes) {
+            long wanted = Math.max(pathEnd + length, (long) pathBytes.length * 2);
+            pathBytes = Arrays.copyOf(pathBytes, (int) Math.min(maxPathBytes, Math.max(INITIAL_CAPACITY * 32, wanted)));
+        }
+        int position = (int) (pathEnd % maxPathBytes);
+        int first = Math.min(length, maxPathBytes - position);
+        System.arraycopy(path, 0, pathBytes, position, first);
+        System.arraycopy(path, first, pathBytes, 0, length - first);
+        pathEnd += length;
+    }
+
+    private String readPath(int slot) {
+        int position = (int) (pathStarts[slot] % maxPathBytes);
+        int length = pathLengths[slot];
+        int first = Math.min(length, maxPathBytes - position);
+        if (first == length) {
+            return new String(pathBytes, position, length, StandardCharsets.UTF_8);
+        }
+        byte[] path = new byte[length];
+        System.arraycopy(pathBytes, position, path, 0, first);
+        System.arraycopy(pathBytes, 0, path, first, length - first);
+        return new String(path, StandardCharsets.UTF_8);
+    }
+
+    private RequestLogEntry entryAt(int slot) {
+        return new RequestLogEntry(new Date(times[slot]), clientIds.valueOf(clients[slot]),
+                domainIds.valueOf(domains[slot]), readPath(slot), methodIds.valueOf(methods[slot]), statuses[slot],
+                byteCounts[slot]);
+    }
+
+    private void grow() {
+        int length = (int) Math.min(capacity, Math.max(INITIAL_CAPACITY, (long) times.length * 2));
+        times = Arrays.copyOf(times, length);
+        clients = Arrays.copyOf(clients, length);
+        domains = Arrays.copyOf(domains, length);
+        methods = Arrays.copyOf(methods, length);
+        statuses = Arrays.copyOf(statuses, length);
+        byteCounts = Arrays.copyOf(byteCounts, length);
+        pathStarts = Arrays.copyOf(pathStarts, length);
+        pathLengths = Arrays.copyOf(pathLengths, length);
+        previousForClient = Arrays.copyOf(previousForClient, length);
+    }
+}
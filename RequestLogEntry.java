@@ -9,14 +9,20 @@ public class RequestLogEntry {
     private String resourcePath;
     private String method;
     private int statusCode;
+    private long bytes; // bytes sent to the client, -1 if not measured
 
     public RequestLogEntry(Date date, String clientIP, String domain, String resourcePath, String method, int statusCode) {
+        this(date, clientIP, domain, resourcePath, method, statusCode, -1);
+    }
+
+    public RequestLogEntry(Date date, String clientIP, String domain, String resourcePath, String method, int statusCode, long bytes) {
         this.date = date;
         this.clientIP = clientIP;
         this.domain = domain;
         this.resourcePath = resourcePath;
         this.method = method;
         this.statusCode = statusCode;
+        this.bytes = bytes;
     }
 
     public Date getDate() {
@@ -42,5 +48,9 @@ public class RequestLogEntry {
     public int getStatusCode() {
         return statusCode;
     }
+
+    public long getBytes() {
+        return bytes;
+    }
 }
 
@@ -1,141 +1,245 @@
 package CSE471;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import javax.swing.JTextArea;
+import java.util.concurrent.atomic.LongAdder;
 
-public class ServerHandler extends Thread {
+public class ServerHandler implements Runnable {
     private Socket clientSocket;
-    private JTextArea displayArea;
-    private Set<String> blockedHosts;
+    private EventLog eventLog;
+    private DomainBlocklist blockedHosts;
     private Map<String, CachedResource> cache;
-
-    private ConcurrentLinkedQueue<RequestLogEntry> requestLogs;
+    private CacheStore cacheStore;
+    private MemoryCache memoryCache;
+
+    private RequestLog requestLogs;
+    private HandlerExecutor executor;
+    private UpstreamPool upstreamPool;
+    private ProxyMetrics metrics;
+    private boolean keepAlive = true; // cleared when the current response leaves the connection unusable
+    private boolean connectionLogged;
+    private boolean acceptsGzip; // whether the current request's Accept-Encoding allows gzip
+    // Status code and bytes sent for the current request, for the request log
+    private int responseStatus;
+    private long responseBytes;
     private static final int MAX_FILE_SIZE = 500 * 1024 * 1024; // 500 MB
     private static final int BUFFER_SIZE = 8192; // 8 KB
-    private static final String LOGIN_PAGE = "<html><body><h2>Login Page</h2><form method='post'>Token: <input type='text' name='token'><input type='submit' value='Submit'></form></body></html>";
-    private static final Map<String, Boolean> clientTokens = new ConcurrentHashMap<>();
-
-    public ServerHandler(Socket clientSocket, JTextArea displayArea, Set<String> blockedHosts,
-                         Map<String, CachedResource> cache, ConcurrentLinkedQueue<RequestLogEntry> requestLogs) {
+    private static final int MAX_FORM_BODY = 8192; // 8 KB, the login form only carries a token
+    private static final int CLIENT_HELLO_BUFFER_SIZE = ClientHelloParser.MAX_HELLO_BYTES + 1024; // largest ClientHello read, with record headers
+    static final String LOGIN_PAGE = "<html><body><h2>Login Page</h2><form method='post'>Token: <input type='text' name='token'><input type='submit' value='Submit'></form></body></html>";
+    static final String SUCCESS_PAGE = "<html><body><h2>Token accepted. You can now access the internet.</h2></body></html>";
+    static final Map<String, Boolean> clientTokens = new ConcurrentHashMap<>();
+    // Headers that only apply to the client's connection and are not forwarded upstream; Expect is answered by the proxy
+    private static final Set<String> HOP_BY_HOP_HEADERS = Set.of("connection", "proxy-connection", "keep-alive",
+            "te", "trailer", "upgrade", "host", "expect");
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    public ServerHandler(Socket clientSocket, EventLog eventLog, DomainBlocklist blockedHosts,
+                         Map<String, CachedResource> cache, CacheStore cacheStore, MemoryCache memoryCache,
+                         RequestLog requestLogs, HandlerExecutor executor,
+                         UpstreamPool upstreamPool, ProxyMetrics metrics) {
         this.clientSocket = clientSocket;
-        this.displayArea = displayArea;
+        this.eventLog = eventLog;
         this.blockedHosts = blockedHosts;
         this.cache = cache;
+        this.cacheStore = cacheStore;
+        this.memoryCache = memoryCache;
         this.requestLogs = requestLogs;
+        this.executor = executor;
+        this.upstreamPool = upstreamPool;
+        this.metrics = metrics;
     }
 
     @Override
     public void run() {
         try {
-            BufferedReader clientInput = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            HttpRequestReader clientInput = new HttpRequestReader(clientSocket.getInputStream());
             OutputStream clientOutput = clientSocket.getOutputStream();
             String clientIP = clientSocket.getInetAddress().getHostAddress();
 
-            if (!clientTokens.containsKey(clientIP)) {
-                String requestLine = clientInput.readLine();
-                String[] tokens = requestLine.split(" ");
-                String method = tokens[0];
-                if (HttpMethods.POST.equalsIgnoreCase(method)) {
-                    handleTokenSubmission(clientInput, clientOutput, clientIP);
-                    return;
-                } else {
-                    serveLoginPage(clientOutput);
-                    return;
-                }
+            // Requests on a persistent connection are handled one at a time, so pipelined
+            // requests are answered in the order they arrived
+            clientSocket.setSoTimeout(ProxyConfig.CLIENT_IDLE_TIMEOUT_MILLIS);
+            // A response head and its body go out as separate writes; with Nagle's algorithm the
+            // body would wait for the client's delayed ACK of the head on a persistent connection
+            clientSocket.setTcpNoDelay(true);
+            while (handleRequest(clientInput, clientOutput, clientIP)) {
+                keepAlive = true;
             }
+        } catch (SocketTimeoutException e) {
+            // idle persistent connection, closed below
+        } catch (IOException e) {
+            eventLog.append("Error processing request: " + e.getMessage() + "\n");
+        } finally {
+            closeResources();
+        }
+    }
 
-            String clientDetails = "Connection from: " + clientIP + ", Port: " + clientSocket.getPort();
-            displayArea.append(clientDetails + "\n");
-
-            String requestLine = clientInput.readLine();
-            if (requestLine == null || requestLine.isEmpty()) {
-                sendBadRequest(clientOutput);
-                return;
-            }
+    // Reads and answers one request. Returns whether the connection can carry another one.
+    private boolean handleRequest(HttpRequestReader clientInput, OutputStream clientOutput, String clientIP) throws IOException {
+        HttpRequestHead request;
+        try {
+            request = clientInput.readHead();
+        } catch (HttpRequestHead.BadRequestException e) {
+            eventLog.append("Rejected request from IP: " + clientIP + ": " + e.getMessage() + "\n");
+            sendError(clientOutput, e.getStatusCode());
+            return false;
+        }
+        if (request == null) {
+            return false;
+        }
+        keepAlive = request.isPersistent();
+        acceptsGzip = CachedResource.acceptsGzip(request.getHeaderList("Accept-Encoding"));
+        String method = request.getMethod();
 
-            String[] tokens = requestLine.split(" ");
-            if (tokens.length < 2) {
-                sendBadRequest(clientOutput);
-                return;
+        if (!clientTokens.containsKey(clientIP)) {
+            if (HttpMethods.POST.equalsIgnoreCase(method)) {
+                handleTokenSubmission(clientInput, request, clientOutput, clientIP);
+            } else {
+                skipRequestBody(clientInput, request);
+                serveLoginPage(clientOutput);
             }
+            return keepAlive;
+        }
 
-            String method = tokens[0];
-            String hostAndPort = tokens[1];
-            boolean isFilteringEnabled = clientTokens.get(clientIP);
+        if (!connectionLogged) {
+            connectionLogged = true;
+            String clientDetails = "Connection from: " + clientIP + ", Port: " + clientSocket.getPort();
+            eventLog.append(clientDetails + "\n");
+        }
 
-            if (HttpMethods.GET1.equalsIgnoreCase(method)) {
-                displayArea.append("Processing HTTP request for " + hostAndPort + " from IP: " + clientIP + "\n");
-                handleHTTPSRequest(hostAndPort, clientOutput, isFilteringEnabled);
-                return;
-            } else {
-                displayArea.append("Processing HTTP request: " + method + " " + tokens[1] + " from IP: " + clientIP + "\n");
-            }
+        metrics.request(method);
 
-            URL url = new URL(tokens[1]);
-            if (isFilteringEnabled && blockedHosts.contains(url.getHost())) {
-                sendBlockedHostMessage(clientOutput);
-                return;
-            }
+        String hostAndPort = request.getTarget();
+        boolean isFilteringEnabled = clientTokens.get(clientIP);
 
-            logRequest(url.getHost(), url.getFile(), method, 200);
+        if (HttpMethods.GET1.equalsIgnoreCase(method)) {
+            eventLog.append("Processing HTTP request for " + hostAndPort + " from IP: " + clientIP + "\n");
+            handleHTTPSRequest(clientInput, hostAndPort, clientOutput, isFilteringEnabled);
+            return false; // the connection was a tunnel
+        } else {
+            eventLog.append("Processing HTTP request: " + method + " " + hostAndPort + " from IP: " + clientIP + "\n");
+        }
 
-            switch (method.toUpperCase()) {
-                case HttpMethods.GET:
-                    handleGET_HEAD(clientOutput, url, HttpMethods.GET);
-                    break;
-                case HttpMethods.HEAD:
-                    handleGET_HEAD(clientOutput, url, HttpMethods.HEAD);
-                    break;
-                case HttpMethods.POST:
-                    handlePostRequest(clientInput, clientOutput, url);
-                    break;
-                case HttpMethods.OPTIONS:
-                    handleOptionsRequest(clientOutput, url);
-                    break;
-                default:
-                    sendBadRequest(clientOutput);
-                    break;
+        URL url = new URL(hostAndPort);
+        boolean forwardsBody = forwardsBody(method);
+        if (!forwardsBody) {
+            skipRequestBody(clientInput, request);
+        }
+        if (isFilteringEnabled && blockedHosts.isBlocked(url.getHost())) {
+            if (forwardsBody) {
+                skipRequestBody(clientInput, request);
             }
-        } catch (IOException e) {
-            displayArea.append("Error processing request: " + e.getMessage() + "\n");
+            metrics.blocked();
+            sendBlockedHostMessage(clientOutput);
+            return keepAlive;
+        }
+
+        responseStatus = 0; // stays 0 if the exchange fails before a response goes out
+        responseBytes = 0;
+        try {
+            dispatch(method, clientInput, request, clientOutput, url);
         } finally {
-            closeResources();
+            logRequest(url.getHost(), url.getFile(), method, responseStatus, responseBytes);
+        }
+        return keepAlive;
+    }
+
+    private void dispatch(String method, HttpRequestReader clientInput, HttpRequestHead request, OutputStream clientOutput,
+                          URL url) throws IOException {
+        switch (method.toUpperCase()) {
+            case HttpMethods.GET:
+                handleGET_HEAD(clientOutput, url, HttpMethods.GET);
+                break;
+            case HttpMethods.HEAD:
+                handleGET_HEAD(clientOutput, url, HttpMethods.HEAD);
+                break;
+            case HttpMethods.POST:
+            case HttpMethods.PUT:
+            case HttpMethods.PATCH:
+            case HttpMethods.DELETE:
+                forwardWithBody(clientInput, request, clientOutput, url);
+                break;
+            case HttpMethods.OPTIONS:
+                handleOptionsRequest(clientOutput, url);
+                break;
+            default:
+                sendBadRequest(clientOutput);
+                break;
+        }
+    }
+
+    // Methods whose request body is forwarded to the origin; others have theirs discarded.
+    private static boolean forwardsBody(String method) {
+        return HttpMethods.POST.equalsIgnoreCase(method) || HttpMethods.PUT.equalsIgnoreCase(method)
+                || HttpMethods.PATCH.equalsIgnoreCase(method) || HttpMethods.DELETE.equalsIgnoreCase(method);
+    }
+
+    // Reads and discards the request body, so the connection is positioned at the next request.
+    private static void skipRequestBody(HttpRequestReader clientInput, HttpRequestHead request) throws IOException {
+        if (!request.hasBody()) {
+            return;
+        }
+        drain(HttpBodyInputStream.forRequest(request, clientInput, false));
+    }
+
+    private static void drain(InputStream body) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (body.read(buffer) != -1) {
+            // discarded
         }
     }
 
-    private void handleHTTPSRequest(String hostAndPort, OutputStream clientOutput, boolean isFilteringEnabled) throws IOException {
+    // The body of a login form: chunks decoded, at most MAX_FORM_BODY bytes kept, the rest discarded.
+    private static String readFormBody(HttpRequestReader clientInput, HttpRequestHead request) throws IOException {
+        if (!request.hasBody()) {
+            return "";
+        }
+        HttpBodyInputStream body = HttpBodyInputStream.forRequest(request, clientInput, true);
+        byte[] form = new byte[MAX_FORM_BODY];
+        int length = 0;
+        int n;
+        while (length < form.length && (n = body.read(form, length, form.length - length)) != -1) {
+            length += n;
+        }
+        drain(body);
+        return new String(form, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private void handleHTTPSRequest(HttpRequestReader clientInput, String hostAndPort, OutputStream clientOutput,
+                                    boolean isFilteringEnabled) throws IOException {
         String[] parts = hostAndPort.split(":");
         String host = parts[0];
         int port = (parts.length > 1) ? Integer.parseInt(parts[1]) : 443;  // Default HTTPS port is 443
 
-        if (isFilteringEnabled && blockedHosts.contains(host)) {
+        if (isFilteringEnabled && blockedHosts.isBlocked(host)) {
+            metrics.blocked();
             sendBlockedHostMessage(clientOutput);
             return;
         }
 
-        try (Socket remoteSocket = new Socket(host, port);
-             InputStream remoteInput = remoteSocket.getInputStream();
-             OutputStream remoteOutput = remoteSocket.getOutputStream();
-             InputStream clientInput = clientSocket.getInputStream()) {
+        long connectStart = System.nanoTime();
+        try (SocketChannel remoteChannel = SocketChannel.open(new InetSocketAddress(host, port))) {
+            metrics.upstreamConnected(System.nanoTime() - connectStart);
 
             // Inform the client that a tunnel has been established
             PrintWriter out = new PrintWriter(clientOutput, true);
@@ -144,100 +248,95 @@ public class ServerHandler extends Thread {
             out.print("\r\n");
             out.flush();
 
-            // Read the initial part of the TLS handshake to get the ClientHello message
-            byte[] clientHello = new byte[4096];
-            int bytesRead = clientInput.read(clientHello);
-            if (bytesRead == -1) {
+            // Read the ClientHello, which may span several records and reads, before anything reaches the remote.
+            // Reads start with any bytes the client sent right behind the CONNECT head.
+            byte[] clientHello = new byte[CLIENT_HELLO_BUFFER_SIZE];
+            int bytesRead = 0;
+            ClientHelloParser helloParser = new ClientHelloParser();
+            ClientHelloParser.Status helloStatus = ClientHelloParser.Status.NEED_MORE;
+            while (helloStatus == ClientHelloParser.Status.NEED_MORE && bytesRead < clientHello.length) {
+                int n = clientInput.read(clientHello, bytesRead, clientHello.length - bytesRead);
+                if (n == -1) {
+                    break;
+                }
+                helloStatus = helloParser.feed(clientHello, bytesRead, n);
+                bytesRead += n;
+            }
+            if (bytesRead == 0) {
                 throw new IOException("Failed to read ClientHello message from client");
             }
 
-            // Extract SNI from the ClientHello message
-            String sniHost = getSNIHost(clientHello, bytesRead);
+            String sniHost = helloParser.getServerName();
             if (sniHost != null) {
-                displayArea.append("Extracted SNI host: " + sniHost + "\n");
+                List<String> protocols = helloParser.getAlpnProtocols();
+                eventLog.append("Extracted SNI host: " + sniHost + (protocols.isEmpty() ? "" : ", ALPN: " + String.join(", ", protocols)) + "\n");
                 // Check if the SNI host is blocked
-                if (isFilteringEnabled && blockedHosts.contains(sniHost)) {
+                if (isFilteringEnabled && blockedHosts.isBlocked(sniHost)) {
+                    metrics.blocked();
                     sendBlockedHostMessage(clientOutput);
                     return;
                 }
             }
 
-            // Relay the initial ClientHello message to the remote server
-            remoteOutput.write(clientHello, 0, bytesRead);
-            remoteOutput.flush();
+            // Relay the ClientHello to the remote server
+            ByteBuffer hello = ByteBuffer.wrap(clientHello, 0, bytesRead);
+            while (hello.hasRemaining()) {
+                remoteChannel.write(hello);
+            }
+            metrics.tunnelBytesClientToRemote().add(bytesRead);
+            // The relay below reads the socket channel directly, so anything still buffered goes first
+            while (clientInput.buffered() > 0) {
+                int n = clientInput.read(clientHello, 0, clientHello.length);
+                ByteBuffer pending = ByteBuffer.wrap(clientHello, 0, n);
+                while (pending.hasRemaining()) {
+                    remoteChannel.write(pending);
+                }
+                metrics.tunnelBytesClientToRemote().add(n);
+            }
 
-            // Relay traffic
-            Thread clientToRemote = new Thread(() -> {
+            // Relay traffic; each direction passes its end of stream on to the other side
+            clientSocket.setSoTimeout(0);
+            SocketChannel clientChannel = clientSocket.getChannel();
+            LongAdder sent = metrics.tunnelBytesClientToRemote();
+            LongAdder received = metrics.tunnelBytesRemoteToClient();
+            metrics.tunnelOpened();
+            Thread clientToRemote = executor.start(() -> {
                 try {
-                    relayData(clientInput, remoteOutput);
+                    if (clientChannel != null) {
+                        TunnelRelay.relay(clientChannel, remoteChannel, sent);
+                    } else {
+                        TunnelRelay.relay(clientInput, remoteChannel.socket(), sent);
+                    }
                 } catch (IOException e) {
-                    displayArea.append("Error relaying data from client to remote: " + e.getMessage() + "\n");
+                    eventLog.append("Error relaying data from client to remote: " + e.getMessage() + "\n");
                 }
             });
-            Thread remoteToClient = new Thread(() -> {
+            Thread remoteToClient = executor.start(() -> {
                 try {
-                    relayData(remoteInput, clientOutput);
+                    if (clientChannel != null) {
+                        TunnelRelay.relay(remoteChannel, clientChannel, received);
+                    } else {
+                        TunnelRelay.relay(remoteChannel.socket().getInputStream(), clientSocket, received);
+                    }
                 } catch (IOException e) {
-                    displayArea.append("Error relaying data from remote to client: " + e.getMessage() + "\n");
+                    eventLog.append("Error relaying data from remote to client: " + e.getMessage() + "\n");
                 }
             });
-            clientToRemote.start();
-            remoteToClient.start();
 
             try {
                 clientToRemote.join();  // Wait for completion of forward thread
                 remoteToClient.join();  // Wait for completion of backward thread
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();  // Handle interrupts properly
+            } finally {
+                metrics.tunnelClosed();
             }
         } catch (IOException e) {
-            displayArea.append("Error setting up CONNECT request: " + e.getMessage() + "\n");
+            eventLog.append("Error setting up CONNECT request: " + e.getMessage() + "\n");
             sendBadRequest(clientOutput);
         }
     }
 
-    private String getSNIHost(byte[] clientHello, int length) {
-        int position = 0;
-        while (position < length - 4) {
-            // Look for the SNI extension (0x00 0x00)
-            if ((clientHello[position] & 0xFF) == 0x00 && (clientHello[position + 1] & 0xFF) == 0x00) {
-                // Skip the next 5 bytes (extension type and length)
-                position += 5;
-                // Ensure we don't go out of bounds
-                if (position + 2 > length) {
-                    return null;
-                }
-                // The next byte indicates the type of name (0x00 for host)
-                if ((clientHello[position] & 0xFF) == 0x00) {
-                    // Ensure we don't go out of bounds
-                    if (position + 3 > length) {
-                        return null;
-                    }
-                    // The next 2 bytes indicate the length of the hostname
-                    int hostLength = (clientHello[position + 1] & 0xFF) << 8 | (clientHello[position + 2] & 0xFF);
-                    position += 3;
-                    // Ensure we don't go out of bounds
-                    if (position + hostLength > length) {
-                        return null;
-                    }
-                    // Extract the hostname
-                    return new String(clientHello, position, hostLength);
-                }
-            }
-            position++;
-        }
-        return null;
-    }
-
-    private void relayData(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int read;
-        while ((read = in.read(buffer)) != -1) {
-            out.write(buffer, 0, read);
-            out.flush();
-        }
-    }
-
     private void serveLoginPage(OutputStream clientOutput) throws IOException {
         PrintWriter out = new PrintWriter(clientOutput, true);
         out.print("HTTP/1.1 200 OK\r\n");
@@ -248,28 +347,23 @@ public class ServerHandler extends Thread {
         out.flush();
     }
 
-    private void handleTokenSubmission(BufferedReader clientInput, OutputStream clientOutput, String clientIP) throws IOException {
-        StringBuilder requestBody = new StringBuilder();
-        while (!clientInput.readLine().isEmpty()) {
-            // Read headers
-        }
-        while (clientInput.ready()) {
-            requestBody.append((char) clientInput.read());
-        }
+    private void handleTokenSubmission(HttpRequestReader clientInput, HttpRequestHead request, OutputStream clientOutput,
+                                       String clientIP) throws IOException {
+        String requestBody = readFormBody(clientInput, request);
 
-        String token = extractTokenFromRequestBody(requestBody.toString());
+        String token = extractTokenFromRequestBody(requestBody);
         if (validateToken(token)) {
             boolean isFilteringEnabled = "51e2cba401".equals(token);
             clientTokens.put(clientIP, isFilteringEnabled);
-            displayArea.append("Token validated for IP: " + clientIP + "\n");
+            eventLog.append("Token validated for IP: " + clientIP + "\n");
             serveSuccessPage(clientOutput);
         } else {
-            displayArea.append("Invalid token for IP: " + clientIP + "\n");
+            eventLog.append("Invalid token for IP: " + clientIP + "\n");
             serveLoginPage(clientOutput);
         }
     }
 
-    private String extractTokenFromRequestBody(String requestBody) {
+    static String extractTokenFromRequestBody(String requestBody) {
         for (String param : requestBody.split("&")) {
             String[] pair = param.split("=");
             if (pair.length == 2 && "token".equals(pair[0])) {
@@ -279,183 +373,359 @@ public class ServerHandler extends Thread {
         return null;
     }
 
-    private boolean validateToken(String token) {
+    static boolean validateToken(String token) {
         return "8a21bce200".equals(token) || "51e2cba401".equals(token);
     }
 
     private void serveSuccessPage(OutputStream clientOutput) throws IOException {
-        String successPage = "<html><body><h2>Token accepted. You can now access the internet.</h2></body></html>";
         PrintWriter out = new PrintWriter(clientOutput, true);
         out.print("HTTP/1.1 200 OK\r\n");
         out.print("Content-Type: text/html\r\n");
-        out.print("Content-Length: " + successPage.length() + "\r\n");
+        out.print("Content-Length: " + SUCCESS_PAGE.length() + "\r\n");
         out.print("\r\n");
-        out.print(successPage);
+        out.print(SUCCESS_PAGE);
         out.flush();
     }
 
     private void handleGET_HEAD(OutputStream clientOutput, URL url, String method) throws IOException {
         String urlString = url.toString();
-        String cacheKey = "cache/" + sanitizeFilePath(urlString) + ".cache";
+        boolean headOnly = method.equals(HttpMethods.HEAD);
+        CachedResource stale = null;
 
         if (cache.containsKey(urlString)) {
             CachedResource resource = cache.get(urlString);
             if (!resource.isExpired()) {
+                metrics.cacheLookup(ProxyMetrics.CacheResult.HIT);
                 try {
-                    byte[] data = resource.getData();
-                    clientOutput.write(data);
-                    clientOutput.flush();
+                    serveCached(resource, urlString, clientOutput, headOnly);
                     logCachedDataSent(urlString, clientSocket.getInetAddress().getHostAddress());
                     return;
+                } catch (CachedResource.PartialResponseException e) {
+                    // Part of the entry may have reached the client, so another response would corrupt the connection
+                    keepAlive = false;
+                    eventLog.append("Failed to send cache entry for URL: " + urlString + "\n");
+                    throw e;
                 } catch (IOException e) {
-                    displayArea.append("Failed to read cache for URL: " + urlString + "\n");
+                    eventLog.append("Failed to read cache for URL: " + urlString + "\n");
                     e.printStackTrace();
                 }
             } else {
-                displayArea.append("Cache expired for URL: " + urlString + "\n");
+                metrics.cacheLookup(ProxyMetrics.CacheResult.EXPIRED);
+                eventLog.append("Cache expired for URL: " + urlString + "\n");
+                if (resource.hasValidators()) {
+                    stale = resource; // revalidate instead of downloading the body again
+                }
             }
         } else {
-            displayArea.append("No cache entry found for URL: " + urlString + ". Fetching from server...\n");
+            metrics.cacheLookup(ProxyMetrics.CacheResult.MISS);
+            eventLog.append("No cache entry found for URL: " + urlString + ". Fetching from server...\n");
         }
 
-        if (method.equals("GET")) {
-            if (url.openConnection() instanceof HttpURLConnection) {
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                connection.setRequestMethod("GET");
-                connection.connect();
-                int contentLength = connection.getContentLength();
-                connection.disconnect();
-
-                if (contentLength > MAX_FILE_SIZE) {
-                    sendBadRequest(clientOutput);
-                    return;
-                }
+        if (headOnly) {
+            // The entry for a URL holds its GET response, so HEAD responses are passed through unstored
+            fetchAndCacheGET_HEAD(url, method, clientOutput, urlString, null, null);
+            return;
+        }
+        // Only one GET per URL goes to the origin; concurrent misses follow that fetch
+        try (CacheFill fill = CacheFill.tryLead(cacheStore, urlString)) {
+            if (fill != null) {
+                fetchAndCacheGET_HEAD(url, method, clientOutput, urlString, fill, stale);
+                return;
             }
         }
-
-        fetchAndCacheGET_HEAD(url, method, clientOutput, urlString, cacheKey);
+        if (followInFlightFetch(urlString, clientOutput)) {
+            return;
+        }
+        try (CacheFill fill = new CacheFill(cacheStore, urlString)) {
+            fetchAndCacheGET_HEAD(url, method, clientOutput, urlString, fill, stale);
+        }
     }
 
-    private void fetchAndCacheGET_HEAD(URL url, String method, OutputStream clientOutput, String urlString, String cacheKey) throws IOException {
-        ByteArrayOutputStream bufferStream = new ByteArrayOutputStream();
-        String sanitizedCacheKey = sanitizeFilePath(cacheKey);
-        Path cacheFilePath = Paths.get("cache", sanitizedCacheKey);
-
-        try (Socket socket = new Socket(url.getHost(), url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
-             InputStream serverInput = socket.getInputStream();
-             OutputStream serverOutput = socket.getOutputStream();
-             PrintWriter writer = new PrintWriter(serverOutput, true)) {
-
-            writer.println(method + " " + url.getFile() + " HTTP/1.1");
-            writer.println("Host: " + url.getHost());
-            writer.println("Connection: close");
-            writer.println();
-
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = serverInput.read(buffer)) != -1) {
-                bufferStream.write(buffer, 0, bytesRead);
+    private boolean followInFlightFetch(String urlString, OutputStream clientOutput) throws IOException {
+        CacheFill leader = CacheFill.inFlight(urlString);
+        if (leader != null) {
+            SocketChannel clientChannel = clientSocket.getChannel();
+            WritableByteChannel target = clientChannel != null ? clientChannel : Channels.newChannel(clientOutput);
+            if (leader.follow(target, ProxyConfig.COALESCE_TIMEOUT_MILLIS)) {
+                keepAlive &= leader.isDelimited();
+                responseStatus = leader.getStatusCode();
+                responseBytes = leader.getSize();
+                eventLog.append("Joined in-flight fetch for URL: " + urlString + "\n");
+                return true;
             }
-            byte[] data = bufferStream.toByteArray();
-            clientOutput.write(data);
-            clientOutput.flush();
-
-            Files.createDirectories(cacheFilePath.getParent());
-            Files.write(cacheFilePath, data);
-            cache.put(urlString, new CachedResource(url, cacheFilePath.toString(), System.currentTimeMillis()));
-            displayArea.append("New data fetched and cached for URL: " + urlString + "\n");
         }
+        // The other fetch finished in the meantime, or revalidated the entry without sending a body
+        CachedResource resource = cache.get(urlString);
+        if (resource != null && !resource.isExpired()) {
+            serveCached(resource, urlString, clientOutput, false);
+            logCachedDataSent(urlString, clientSocket.getInetAddress().getHostAddress());
+            return true;
+        }
+        if (leader != null) {
+            eventLog.append("In-flight fetch failed for URL: " + urlString + ". Fetching from server...\n");
+        }
+        return false;
     }
 
-    private void handlePostRequest(BufferedReader clientInput, OutputStream clientOutput, URL url) throws IOException {
-        List<String> headers = new ArrayList<>();
-        StringBuilder bodyBuilder = new StringBuilder();
-        String contentLength = "0";
-        String line;
-        while (!(line = clientInput.readLine()).isEmpty()) {
-            headers.add(line);
-            if (line.startsWith("Content-Length:")) {
-                contentLength = line.split(":")[1].trim();
+    // Serves a cache hit from the memory tier. Objects small enough for the tier are loaded into it
+    // on a miss; larger ones are streamed from disk with transferTo, so heap use stays constant.
+    // Entries the proxy compressed are sent as stored to clients that accept gzip and inflated on
+    // the way out for the others. Failures once writing to the client has begun are thrown as
+    // PartialResponseException; earlier ones leave the connection ready for another response.
+    private void serveCached(CachedResource resource, String urlString, OutputStream clientOutput, boolean headOnly) throws IOException {
+        responseStatus = resource.getStatusCode();
+        if (resource.isCompressed() && !acceptsGzip) {
+            if (headOnly) {
+                sendToClient(resource.getIdentityHead(), clientOutput);
+            } else {
+                responseBytes = resource.transferDecompressedTo(clientOutput);
             }
+            return;
         }
-
-        if (Integer.parseInt(contentLength) > MAX_FILE_SIZE) {
-            displayArea.append("POST request failed for domain: " + url.toString() + "; Content-Length exceeds limit.\n");
-            sendBadRequest(clientOutput);
+        if (headOnly) {
+            sendToClient(resource.getHead(), clientOutput);
+            return;
+        }
+        keepAlive &= resource.isDelimited();
+        responseBytes = resource.getSize();
+        SocketChannel clientChannel = clientSocket.getChannel();
+        ByteBuffer hot = memoryCache.get(urlString, resource);
+        if (hot == null) {
+            if (!memoryCache.admits(resource.getSize())) {
+                if (clientChannel != null) {
+                    resource.transferTo(clientChannel);
+                } else {
+                    resource.transferTo(clientOutput);
+                }
+                return;
+            }
+            byte[] data = resource.getData();
+            memoryCache.put(urlString, resource, data);
+            sendToClient(data, clientOutput);
             return;
         }
+        try {
+            if (clientChannel != null) {
+                while (hot.hasRemaining()) {
+                    clientChannel.write(hot);
+                }
+            } else {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (hot.hasRemaining()) {
+                    int length = Math.min(buffer.length, hot.remaining());
+                    hot.get(buffer, 0, length);
+                    clientOutput.write(buffer, 0, length);
+                }
+                clientOutput.flush();
+            }
+        } catch (IOException e) {
+            throw new CachedResource.PartialResponseException(e);
+        }
+    }
 
-        int length = Integer.parseInt(contentLength);
-        char[] body = new char[length];
-        clientInput.read(body, 0, length);
-        bodyBuilder.append(body);
+    private void sendToClient(byte[] response, OutputStream clientOutput) throws IOException {
+        responseBytes = response.length;
+        try {
+            clientOutput.write(response);
+            clientOutput.flush();
+        } catch (IOException e) {
+            throw new CachedResource.PartialResponseException(e);
+        }
+    }
 
-        String urlString = url.toString();
-        String cacheKey = "cache/" + urlString.replaceAll("[:/]", "_") + ".cache";
+    // A null fill passes the response through without storing it. With a stale entry the request
+    // is made conditional, and a 304 Not Modified refreshes that entry instead of refetching it.
+    private void fetchAndCacheGET_HEAD(URL url, String method, OutputStream clientOutput, String urlString,
+                                       CacheFill fill, CachedResource stale) throws IOException {
+        List<String> headers = new ArrayList<>();
+        if (stale != null && stale.getETag() != null) {
+            headers.add("If-None-Match: " + stale.getETag());
+        }
+        if (stale != null && stale.getLastModified() != null) {
+            headers.add("If-Modified-Since: " + stale.getLastModified());
+        }
+        long requestTime = System.currentTimeMillis();
+        UpstreamPool.Connection upstream = upstreamPool.exchange(url.getHost(), upstreamPort(url),
+                buildUpstreamRequest(method, url, headers), true);
+        boolean reusable = false;
+        try {
+            HttpResponseHead head = upstream.getResponseHead();
+            HttpBodyInputStream body = HttpBodyInputStream.forResponse(head, method, upstream.getInput());
+            if (stale != null && head.getStatusCode() == 304) {
+                reusable = head.isKeepAlive(); // a 304 never has a body
+                CachedResource refreshed = stale.revalidated(head, requestTime, System.currentTimeMillis());
+                cache.put(urlString, refreshed);
+                eventLog.append("Cache entry revalidated (304 Not Modified) for URL: " + urlString + "\n");
+                serveCached(refreshed, urlString, clientOutput, false);
+                return;
+            }
+            streamAndCache(head, body, clientOutput, url, urlString, fill, requestTime);
+            reusable = body.isComplete() && body.isDelimited() && head.isKeepAlive();
+        } finally {
+            upstreamPool.release(upstream, reusable);
+        }
+    }
 
-        fetchAndCachePOST(clientOutput, url, "POST", urlString, headers, bodyBuilder.toString(), cacheKey);
+    private static int upstreamPort(URL url) {
+        return url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
     }
 
-    private void fetchAndCachePOST(OutputStream clientOutput, URL url, String method, String urlString, List<String> headers, String requestBody, String cacheKey) throws IOException {
-        String sanitizedCacheKey = sanitizeFilePath(cacheKey);
-        Path cacheFilePath = Paths.get("cache", sanitizedCacheKey);
+    // Request head in origin form with CRLF line endings. The upstream connection is kept open so
+    // the pool can reuse it for the next request to the same origin.
+    private static byte[] buildUpstreamRequest(String method, URL url, List<String> headers) {
+        StringBuilder request = new StringBuilder(256);
+        request.append(method).append(' ').append(url.getFile().isEmpty() ? "/" : url.getFile()).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            request.append(':').append(url.getPort());
+        }
+        request.append("\r\nConnection: keep-alive\r\n");
+        for (String header : headers) {
+            request.append(header).append("\r\n");
+        }
+        request.append("\r\n");
+        return request.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
 
-        if (cache.containsKey(urlString)) {
-            CachedResource resource = cache.get(urlString);
-            if (!resource.isExpired()) {
+    // Forwards each upstream chunk to the client as soon as it arrives and, if the response may be
+    // stored, tees it into the cache fill. If the client goes away a storable response keeps
+    // draining the origin, so the entry is still published. Responses larger than MAX_FILE_SIZE,
+    // by Content-Length or by the body bytes actually received, are passed through without storing.
+    private void streamAndCache(HttpResponseHead head, HttpBodyInputStream serverInput, OutputStream clientOutput, URL url,
+                                String urlString, CacheFill fill, long requestTime) throws IOException {
+        long responseTime = System.currentTimeMillis();
+        boolean store = fill != null && CachedResource.isStorable(head);
+        if (store && serverInput.getDeclaredLength() > MAX_FILE_SIZE) {
+            store = false;
+            eventLog.append("Response exceeds cache size limit, passing through for URL: " + urlString + "\n");
+        }
+        if (fill != null && !store) {
+            fill.close(); // lets followers fetch for themselves instead of waiting for this response
+        }
+        if (!serverInput.isDelimited() || !head.isKeepAlive()) {
+            keepAlive = false; // the client finds the end of this response when the connection closes
+        }
+        if (store) {
+            fill.setDelimited(serverInput.isDelimited());
+            fill.setStatusCode(head.getStatusCode());
+            fill.writeHead(head.getRaw());
+            if (ProxyConfig.CACHE_COMPRESSION && CachedResource.isCompressible(head)) {
+                fill.compress(head);
+            }
+        }
+        responseStatus = head.getStatusCode();
+        boolean clientConnected = true;
+        long stored = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        // The head is the first chunk, the body follows in buffer-sized reads
+        byte[] chunk = head.getRaw();
+        int length = chunk.length;
+        do {
+            if (clientConnected) {
                 try {
-                    byte[] data = resource.getData();
-                    clientOutput.write(data);
-                    clientOutput.flush();
-                    displayArea.append("Cache hit for " + urlString + "\n");
-                    return;
+                    clientOutput.write(chunk, 0, length);
+                    responseBytes += length;
                 } catch (IOException e) {
-                    displayArea.append("Failed to read cache for URL: " + urlString + "\n");
+                    if (!store) {
+                        throw e;
+                    }
+                    clientConnected = false;
+                    eventLog.append("Client disconnected, finishing cache fill for URL: " + urlString + "\n");
                 }
-            } else {
-                displayArea.append("Cache expired for URL: " + urlString + "\n");
             }
-        } else {
-            displayArea.append("No cache entry found for URL: " + urlString + ". Fetching from server...\n");
+            if (store && chunk == buffer) { // the head went in with writeHead() and does not count
+                stored += length;
+                if (stored > MAX_FILE_SIZE) {
+                    store = false;
+                    fill.close();
+                    eventLog.append("Response exceeds cache size limit, passing through for URL: " + urlString + "\n");
+                    if (!clientConnected) {
+                        throw new IOException("Client disconnected before the end of an uncacheable response");
+                    }
+                } else {
+                    fill.write(chunk, 0, length);
+                }
+            }
+            chunk = buffer;
+        } while ((length = serverInput.read(buffer)) != -1);
+        if (clientConnected) {
+            clientOutput.flush();
         }
 
-        ByteArrayOutputStream bufferStream = new ByteArrayOutputStream();
-        try (Socket socket = new Socket(url.getHost(), url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
-             InputStream serverInput = socket.getInputStream();
-             OutputStream serverOutput = socket.getOutputStream();
-             PrintWriter writer = new PrintWriter(serverOutput, true)) {
-
-            writer.println(method + " " + url.getFile() + " HTTP/1.1");
-            writer.println("Host: " + url.getHost());
-            writer.println("Connection: close");
-            headers.forEach(header -> writer.println(header));
-            writer.println(); // End of headers
-            writer.print(requestBody);
-            writer.flush();
-
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = serverInput.read(buffer)) != -1) {
-                bufferStream.write(buffer, 0, bytesRead);
+        if (store) {
+            fill.commit();
+            HttpResponseHead storedHead = fill.getStoredHead();
+            cache.put(urlString, new CachedResource(url, fill.getEntryPath().toString(), fill.getBodyPath().toString(),
+                    requestTime, responseTime, storedHead != null ? storedHead : head, fill.getIdentityLength()));
+            eventLog.append("New data fetched and cached for URL: " + urlString + "\n");
+        } else if (fill != null) {
+            cache.remove(urlString);
+            memoryCache.invalidate(urlString);
+            eventLog.append("Response not cacheable for URL: " + urlString + "\n");
+        }
+    }
+
+    // Streams the request body to the origin as it arrives, with its framing as received, so a
+    // chunked body goes upstream chunked and memory per upload is one buffer whatever its size.
+    // These methods are never answered from the cache. A POST response is stored only when it
+    // explicitly says it is the URL's content; otherwise a successful response drops the URL's
+    // entry, since the request may have changed the resource (RFC 9111, 4.4).
+    private void forwardWithBody(HttpRequestReader clientInput, HttpRequestHead request, OutputStream clientOutput,
+                                 URL url) throws IOException {
+        String method = request.getMethod();
+        String urlString = url.toString();
+        boolean chunked = request.hasHeader("Transfer-Encoding");
+        List<String> forwarded = new ArrayList<>();
+        for (String[] header : request.getHeaders()) {
+            String name = header[0].toLowerCase();
+            if (HOP_BY_HOP_HEADERS.contains(name) || (chunked && name.equals("content-length"))) {
+                continue;
             }
-            byte[] data = bufferStream.toByteArray();
-            clientOutput.write(data);
-            clientOutput.flush();
+            forwarded.add(header[0] + ": " + header[1]);
+        }
+        InputStream body = null;
+        if (request.hasBody()) {
+            body = HttpBodyInputStream.forRequest(request, clientInput, false);
+            if ("100-continue".equalsIgnoreCase(request.getHeader("Expect")) && HttpRequestHead.HTTP_1_1.equals(request.getVersion())) {
+                // Answered here rather than by the origin, since the body is only sent once the head is
+                clientOutput.write(CONTINUE);
+                clientOutput.flush();
+            }
+        }
 
-            Files.createDirectories(cacheFilePath.getParent());
-            Files.write(cacheFilePath, data);
-            cache.put(urlString, new CachedResource(url, cacheFilePath.toString(), System.currentTimeMillis()));
-            displayArea.append("New data fetched and cached for URL: " + urlString + "\n");
+        long requestTime = System.currentTimeMillis();
+        // A failed PUT or DELETE is retried only without a body, which cannot be read from the client twice
+        boolean idempotent = HttpMethods.PUT.equalsIgnoreCase(method) || HttpMethods.DELETE.equalsIgnoreCase(method);
+        UpstreamPool.Connection upstream = upstreamPool.exchange(url.getHost(), upstreamPort(url),
+                buildUpstreamRequest(method, url, forwarded), body, idempotent);
+        boolean reusable = false;
+        try {
+            HttpResponseHead head = upstream.getResponseHead();
+            HttpBodyInputStream responseBody = HttpBodyInputStream.forResponse(head, method, upstream.getInput());
+            boolean store = HttpMethods.POST.equalsIgnoreCase(method) && CachedResource.isStorableForPost(head, url);
+            try (CacheFill fill = store ? new CacheFill(cacheStore, urlString) : null) {
+                streamAndCache(head, responseBody, clientOutput, url, urlString, fill, requestTime);
+            }
+            if (!store && head.getStatusCode() < 400 && cache.remove(urlString) != null) {
+                memoryCache.invalidate(urlString); // frees the hot copy now rather than when LRU reaches it
+                eventLog.append("Cache entry invalidated by " + method + " for URL: " + urlString + "\n");
+            }
+            reusable = responseBody.isComplete() && responseBody.isDelimited() && head.isKeepAlive();
+        } finally {
+            upstreamPool.release(upstream, reusable);
         }
     }
 
     private void handleOptionsRequest(OutputStream clientOutput, URL url) throws IOException {
+        keepAlive = false; // the response is sent with Connection: close
         String urlString = url.toString();
-        String cacheKey = "cache/" + urlString.replaceAll("[:/]", "_") + ".cache";
         if (cache.containsKey(urlString) && !cache.get(urlString).isExpired()) {
-            byte[] data = cache.get(urlString).getData();
+            CachedResource resource = cache.get(urlString);
+            byte[] data = resource.getData();
             clientOutput.write(data);
             clientOutput.flush();
+            responseStatus = resource.getStatusCode();
+            responseBytes = data.length;
             logCachedDataSent(urlString, clientSocket.getInetAddress().getHostAddress());
             return;
         }
@@ -471,33 +741,59 @@ public class ServerHandler extends Thread {
 
         clientOutput.write(response);
         clientOutput.flush();
+        responseStatus = 204;
+        responseBytes = response.length;
         connection.disconnect();
 
-        Files.createDirectories(Paths.get("cache"));
-        Files.write(Paths.get(sanitizeFilePath(cacheKey)), response);
-        cache.put(urlString, new CachedResource(url, sanitizeFilePath(cacheKey), System.currentTimeMillis()));
-        displayArea.append("No cache entry found for URL: " + urlString + ". Fetching from server...\n");
+        // Stored without response headers: the whole response is the entry's head and the body is empty
+        Path body = cacheStore.storeBody(new byte[0]);
+        try {
+            Path entry = cacheStore.writeEntry(urlString, body, response);
+            cache.put(urlString, new CachedResource(url, entry.toString(), body.toString(), System.currentTimeMillis()));
+        } finally {
+            cacheStore.release(body);
+        }
+        eventLog.append("No cache entry found for URL: " + urlString + ". Fetching from server...\n");
     }
 
-    private void logRequest(String domain, String resourcePath, String method, int statusCode) {
-        RequestLogEntry entry = new RequestLogEntry(new Date(), clientSocket.getInetAddress().getHostAddress(), domain, resourcePath, method, statusCode);
-        requestLogs.add(entry);
-        displayArea.append("Logged request: " + method + " " + domain + resourcePath + "\n");
+    private void logRequest(String domain, String resourcePath, String method, int statusCode, long bytes) {
+        requestLogs.add(System.currentTimeMillis(), clientSocket.getInetAddress().getHostAddress(), domain, resourcePath, method, statusCode, bytes);
+        eventLog.append("Logged request: " + method + " " + domain + resourcePath + "\n");
     }
 
     private void logCachedDataSent(String url, String clientIP) {
         String urlString = url.toString();
-        displayArea.append("Cache hit for URL: " + urlString + "\n");
+        eventLog.append("Cache hit for URL: " + urlString + "\n");
     }
 
     private void sendBadRequest(OutputStream clientOutput) throws IOException {
-        String response = "HTTP/1.1 400 Bad Request\r\n\r\n";
+        sendError(clientOutput, 400);
+    }
+
+    private void sendError(OutputStream clientOutput, int statusCode) throws IOException {
+        keepAlive = false;
+        String response = "HTTP/1.1 " + statusCode + " " + reasonPhrase(statusCode) + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
         clientOutput.write(response.getBytes());
         clientOutput.flush();
+        responseStatus = statusCode;
+        responseBytes = response.length();
+    }
+
+    static String reasonPhrase(int statusCode) {
+        switch (statusCode) {
+            case 414:
+                return "URI Too Long";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 505:
+                return "HTTP Version Not Supported";
+            default:
+                return "Bad Request";
+        }
     }
 
     private void sendBlockedHostMessage(OutputStream clientOutput) throws IOException {
-        String response = "HTTP/1.1 403 Forbidden\r\n\r\nHost is blocked.";
+        String response = "HTTP/1.1 403 Forbidden\r\nContent-Length: 16\r\n\r\nHost is blocked.";
         clientOutput.write(response.getBytes());
         clientOutput.flush();
     }
@@ -508,11 +804,7 @@ public class ServerHandler extends Thread {
                 clientSocket.close();
             }
         } catch (IOException e) {
-            displayArea.append("Failed to close resources: " + e.getMessage() + "\n");
+            eventLog.append("Failed to close resources: " + e.getMessage() + "\n");
         }
     }
-
-    private String sanitizeFilePath(String filePath) {
-        return filePath.replaceAll("[^a-zA-Z0-9\\-_\\.]", "_");
-    }
 }
\ No newline at end of file
@@ -1,12 +1,18 @@
 package CSE471;
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 
 public class TransparentProxyGUI extends JFrame {
     private static final long serialVersionUID = 1L;
+    private static final int MAX_HOSTS_DISPLAYED = 100;
     private JTextArea displayArea;
-    private Set<String> blockedHosts = new HashSet<>();
+    private EventLog eventLog;
+    private DomainBlocklist blockedHosts = new DomainBlocklist();
     private ProxyServer proxyServer;
     private Map<String, CachedResource> cache = new HashMap<>();
 
@@ -14,7 +20,13 @@ public class TransparentProxyGUI extends JFrame {
         setTitle("Transparent Proxy Application");
         setSize(600, 400);
         setLocationRelativeTo(null);
-        setDefaultCloseOperation(EXIT_ON_CLOSE);
+        setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                exit();
+            }
+        });
         initGUI();
     }
 
@@ -24,25 +36,31 @@ public class TransparentProxyGUI extends JFrame {
         JMenuItem startItem = new JMenuItem("Start");
         JMenuItem stopItem = new JMenuItem("Stop");
         JMenuItem reportItem = new JMenuItem("Report");
+        JMenuItem cacheStatsItem = new JMenuItem("Cache statistics");
         JMenuItem addHostItem = new JMenuItem("Add host to filter");
         JMenuItem removeHostItem = new JMenuItem("Remove host filter");
+        JMenuItem loadBlocklistItem = new JMenuItem("Load blocklist file");
         JMenuItem displayHostsItem = new JMenuItem("Display current filtered hosts");
         JMenuItem exitItem = new JMenuItem("Exit");
 
         startItem.addActionListener(e -> startProxy());
         stopItem.addActionListener(e -> stopProxy());
         reportItem.addActionListener(e -> showReportDialog());
+        cacheStatsItem.addActionListener(e -> showCacheStatistics());
         addHostItem.addActionListener(e -> addHost());
         removeHostItem.addActionListener(e -> removeHost());
+        loadBlocklistItem.addActionListener(e -> loadBlocklist());
         displayHostsItem.addActionListener(e -> displayHosts());
-        exitItem.addActionListener(e -> System.exit(0));
+        exitItem.addActionListener(e -> exit());
 
         fileMenu.add(startItem);
         fileMenu.add(stopItem);
         fileMenu.add(reportItem);
+        fileMenu.add(cacheStatsItem);
         fileMenu.addSeparator();
         fileMenu.add(addHostItem);
         fileMenu.add(removeHostItem);
+        fileMenu.add(loadBlocklistItem);
         fileMenu.add(displayHostsItem);
         fileMenu.addSeparator();
         fileMenu.add(exitItem);
@@ -61,15 +79,16 @@ public class TransparentProxyGUI extends JFrame {
         Color lightBlue = new Color(173, 216, 230); // Light blue color
         displayArea.setBackground(lightBlue);
         displayArea.setFont(new Font("Arial", Font.ITALIC, 14));
+        eventLog = new EventLog(displayArea, ProxyConfig.EVENT_LOG_QUEUE_SIZE, ProxyConfig.EVENT_LOG_MAX_LINES);
         JScrollPane scrollPane = new JScrollPane(displayArea);
         add(scrollPane);
     }
 
     private void startProxy() {
         if (proxyServer == null || !proxyServer.isAlive()) {
-            proxyServer = new ProxyServer(displayArea, blockedHosts, cache);
+            proxyServer = new ProxyServer(eventLog, blockedHosts, cache);
             proxyServer.start();
-            displayArea.append("Proxy server started successfully.\n");
+            eventLog.append("Proxy server started successfully.\n");
         } else {
             JOptionPane.showMessageDialog(this, "Proxy is already running.", "Warning", JOptionPane.WARNING_MESSAGE);
         }
@@ -79,12 +98,24 @@ public class TransparentProxyGUI extends JFrame {
         if (proxyServer != null && proxyServer.isAlive()) {
             proxyServer.stopServer();
             proxyServer = null;
-            displayArea.append("Proxy server stopped.\n");
+            eventLog.append("Proxy server stopped.\n");
         } else {
-            displayArea.append("Proxy is not running or is already closed.\n");
+            eventLog.append("Proxy is not running or is already closed.\n");
         }
     }
 
+    // Shuts the proxy down cleanly, so the access log and cache index are written, then stops the
+    // event log's timer before exiting.
+    private void exit() {
+        if (proxyServer != null && proxyServer.isAlive()) {
+            proxyServer.stopServer();
+            proxyServer = null;
+        }
+        eventLog.close();
+        dispose();
+        System.exit(0);
+    }
+
     private void showReportDialog() {
         String clientIP = JOptionPane.showInputDialog(this, "Enter client IP for report:");
         if (clientIP != null && !clientIP.isEmpty()) {
@@ -92,28 +123,74 @@ public class TransparentProxyGUI extends JFrame {
         }
     }
 
+    private void showCacheStatistics() {
+        if (proxyServer == null) {
+            JOptionPane.showMessageDialog(this, "Proxy is not running.");
+            return;
+        }
+        MemoryCache memoryCache = proxyServer.getMemoryCache();
+        JOptionPane.showMessageDialog(this, "Memory tier: " + memoryCache.getEntryCount() + " entries, "
+                + memoryCache.getSizeBytes() / 1024 + " / " + memoryCache.getMaxBytes() / 1024 + " KB\n"
+                + "Hits: " + memoryCache.getHits() + "\n"
+                + "Misses: " + memoryCache.getMisses() + "\n"
+                + "Evictions: " + memoryCache.getEvictions() + "\n"
+                + "Log events dropped: " + eventLog.getDroppedCount());
+    }
+
+    // Every change recompiles the whole filter, which takes a while for large lists, so changes
+    // run off the event dispatch thread; handlers keep using the previous filter until it is done.
     private void addHost() {
-        String host = JOptionPane.showInputDialog(this, "Enter host to block:");
+        String host = JOptionPane.showInputDialog(this, "Enter host to block (*.example.com blocks its subdomains):");
         if (host != null && !host.isEmpty()) {
-            blockedHosts.add(host);
-            displayArea.append("Blocked host added: " + host + "\n");
+            new Thread(() -> {
+                if (blockedHosts.add(host)) {
+                    eventLog.append("Blocked host added: " + host + "\n");
+                } else {
+                    eventLog.append("Host is invalid or already in filter: " + host + "\n");
+                }
+            }, "blocklist-update").start();
         }
     }
 
     private void removeHost() {
         String host = JOptionPane.showInputDialog(this, "Enter host to remove from filter:");
         if (host != null && !host.isEmpty()) {
-            if (blockedHosts.remove(host)) {
-                displayArea.append("Host removed from filter: " + host + "\n");
-            } else {
-                displayArea.append("Host was not found in filter: " + host + "\n");
-            }
+            new Thread(() -> {
+                if (blockedHosts.remove(host)) {
+                    eventLog.append("Host removed from filter: " + host + "\n");
+                } else {
+                    eventLog.append("Host was not found in filter: " + host + "\n");
+                }
+            }, "blocklist-update").start();
+        }
+    }
+
+    private void loadBlocklist() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
         }
+        Path file = chooser.getSelectedFile().toPath();
+        new Thread(() -> {
+            long start = System.nanoTime();
+            try {
+                int added = blockedHosts.load(file);
+                eventLog.append("Loaded " + added + " new rules from " + file.getFileName() + " in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms, " + blockedHosts.size() + " rules in filter\n");
+            } catch (IOException e) {
+                eventLog.append("Failed to load blocklist " + file + ": " + e.getMessage() + "\n");
+            }
+        }, "blocklist-loader").start();
     }
 
     private void displayHosts() {
-        StringBuilder sb = new StringBuilder("Blocked Hosts:\n");
-        for (String host : blockedHosts) {
+        StringBuilder sb = new StringBuilder("Blocked Hosts (" + blockedHosts.size() + "):\n");
+        int shown = 0;
+        for (String host : blockedHosts.getRules()) {
+            if (shown++ == MAX_HOSTS_DISPLAYED) {
+                sb.append("...\n");
+                break;
+            }
             sb.append(host).append("\n");
         }
         JOptionPane.showMessageDialog(this, sb.toString());
@@ -0,0 +1,107 @@
+package CSE471;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// One direction of a CONNECT tunnel. Bytes move through a direct buffer straight between the two
+// socket channels, so there is no heap copy and no flush per chunk. The window grows while reads
+// keep filling it (bulk downloads) and shrinks again for interactive traffic. Each relay uses a
+// small buffer and, once it grows, a large one whose limit sets the window, so resizing never
+// allocates; both come from pools shared by all tunnels and go back when the relay ends. When the
+// source reaches end of stream the FIN is passed on with shutdownOutput, which lets the peer
+// finish and the opposite relay see its own end of stream instead of waiting for a timeout.
+public class TunnelRelay {
+    static final int MIN_BUFFER_SIZE = 8192;    // 8 KB
+    static final int MAX_BUFFER_SIZE = 131072;  // 128 KB
+    private static final int SHRINK_AFTER = 16; // consecutive small reads before halving the window
+    private static final int POOLED_BUFFERS = 64; // idle buffers kept per size
+
+    private static final BlockingQueue<ByteBuffer> smallBuffers = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+    private static final BlockingQueue<ByteBuffer> largeBuffers = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+
+    // Returns the number of bytes relayed. Each chunk is also added to relayed as it goes, so
+    // metrics see long-lived tunnels before they close.
+    public static long relay(SocketChannel from, SocketChannel to, LongAdder relayed) throws IOException {
+        ByteBuffer small = acquire(smallBuffers, MIN_BUFFER_SIZE);
+        ByteBuffer large = null;
+        ByteBuffer buffer = small;
+        int window = MIN_BUFFER_SIZE;
+        int smallReads = 0;
+        long total = 0;
+        try {
+            int read;
+            while ((read = from.read(buffer)) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    to.write(buffer);
+                }
+                total += read;
+                relayed.add(read);
+
+                if (read == window && window < MAX_BUFFER_SIZE) {
+                    window *= 2;
+                    smallReads = 0;
+                } else if (read < window / 4 && window > MIN_BUFFER_SIZE && ++smallReads >= SHRINK_AFTER) {
+                    window /= 2;
+                    smallReads = 0;
+                }
+                if (window == MIN_BUFFER_SIZE) {
+                    buffer = small;
+                } else {
+                    if (large == null) {
+                        large = acquire(largeBuffers, MAX_BUFFER_SIZE);
+                    }
+                    buffer = large;
+                }
+                buffer.clear().limit(window);
+            }
+            to.shutdownOutput();
+        } catch (ClosedChannelException e) {
+            // The opposite direction failed and closed the tunnel; nothing left to relay
+        } catch (IOException e) {
+            from.close();
+            to.close();
+            throw e;
+        } finally {
+            release(smallBuffers, small);
+            if (large != null) {
+                release(largeBuffers, large);
+            }
+        }
+        return total;
+    }
+
+    private static ByteBuffer acquire(BlockingQueue<ByteBuffer> pool, int size) {
+        ByteBuffer buffer = pool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(size);
+    }
+
+    // A full pool drops the buffer and leaves it to the garbage collector.
+    private static void release(BlockingQueue<ByteBuffer> pool, ByteBuffer buffer) {
+        buffer.clear();
+        pool.offer(buffer);
+    }
+
+    // Fallback for sockets that were not created from a channel.
+    public static long relay(InputStream from, Socket to, LongAdder relayed) throws IOException {
+        OutputStream out = to.getOutputStream();
+        byte[] buffer = new byte[MIN_BUFFER_SIZE];
+        long total = 0;
+        int read;
+        while ((read = from.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            total += read;
+            relayed.add(read);
+        }
+        to.shutdownOutput();
+        return total;
+    }
+}
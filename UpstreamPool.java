@@ -0,0 +1,359 @@
+package CSE471;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keep-alive connections to origin servers, pooled per host and port. A connection is returned
+// with release() once its response was read to the end of its framing; the most recently used
+// idle connection is handed out first, so the others age out and are closed by the sweeper.
+// Connects and reads give up after their timeouts with an UpstreamTimeoutException.
+public class UpstreamPool implements Closeable {
+    private static final int BUFFER_SIZE = 8192; // 8 KB
+
+    private final int maxPerHost;
+    private final int maxIdlePerHost;
+    private final long idleTimeoutMillis;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+    private final ProxyMetrics metrics;
+    private volatile boolean closed;
+
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+
+    // An origin did not accept the connection or send the next bytes in time. Kept apart from
+    // SocketTimeoutException, which handlers take for their own client going idle.
+    public static class UpstreamTimeoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public UpstreamTimeoutException(String message, SocketTimeoutException cause) {
+            super(message, cause);
+        }
+    }
+
+    // Connections to one origin: permits bound the ones in use, idle holds the reusable ones
+    private static class Route {
+        final Semaphore permits;
+        final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+        final AtomicInteger idleCount = new AtomicInteger();
+
+        Route(int maxPerHost) {
+            this.permits = new Semaphore(maxPerHost);
+        }
+    }
+
+    public static class Connection implements Closeable {
+        private final Route route;
+        private final SocketChannel channel;
+        private final Socket socket;
+        private final InputStream input;
+        private final OutputStream output;
+        private boolean reused;
+        private long idleSince;
+        private HttpResponseHead responseHead;
+
+        private Connection(Route route, SocketChannel channel, int readTimeoutMillis) throws IOException {
+            this.route = route;
+            this.channel = channel;
+            this.socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(readTimeoutMillis);
+            this.input = new BufferedInputStream(new TimeoutInputStream(socket.getInputStream(), readTimeoutMillis), BUFFER_SIZE);
+            this.output = socket.getOutputStream();
+        }
+
+        public InputStream getInput() {
+            return input;
+        }
+
+        public OutputStream getOutput() {
+            return output;
+        }
+
+        // True if an earlier exchange already ran on this connection.
+        public boolean isReused() {
+            return reused;
+        }
+
+        // Sends the request and reads the final response head, skipping interim 1xx responses.
+        // The body is left in getInput().
+        public HttpResponseHead exchange(byte[] request) throws IOException {
+            send(request, null);
+            return readResponseHead();
+        }
+
+        // Sends the request head, then copies body in BUFFER_SIZE pieces. Each write blocks until
+        // the origin has taken in enough of the earlier ones, so a slow origin slows the client
+        // down instead of the body piling up in the proxy.
+        public void send(byte[] head, InputStream body) throws IOException {
+            output.write(head);
+            if (body != null) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = body.read(buffer)) != -1) {
+                    output.write(buffer, 0, n);
+                }
+            }
+            output.flush();
+        }
+
+        // Reads the final response head, skipping interim 1xx responses. The body is left in getInput().
+        public HttpResponseHead readResponseHead() throws IOException {
+            HttpResponseHead head = HttpResponseHead.read(input);
+            while (head.getStatusCode() / 100 == 1 && head.getStatusCode() != 101) {
+                head = HttpResponseHead.read(input);
+            }
+            responseHead = head;
+            return head;
+        }
+
+        // Head of the response read by the last exchange().
+        public HttpResponseHead getResponseHead() {
+            return responseHead;
+        }
+
+        // An idle connection must have nothing to read. A non-blocking peek sees the origin's FIN
+        // (or stray bytes) without waiting, so closed keep-alive connections are not handed out.
+        private boolean isHealthy() {
+            if (!channel.isOpen()) {
+                return false;
+            }
+            try {
+                if (input.available() > 0) {
+                    return false;
+                }
+                channel.configureBlocking(false);
+                int n;
+                try {
+                    n = channel.read(ByteBuffer.allocate(1));
+                } finally {
+                    channel.configureBlocking(true);
+                }
+                return n == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // nothing left to release
+            }
+        }
+    }
+
+    // Reports a read timeout on an origin socket as an UpstreamTimeoutException.
+    private static class TimeoutInputStream extends FilterInputStream {
+        private final int readTimeoutMillis;
+
+        TimeoutInputStream(InputStream in, int readTimeoutMillis) {
+            super(in);
+            this.readTimeoutMillis = readTimeoutMillis;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return in.read();
+            } catch (SocketTimeoutException e) {
+                throw timedOut(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return in.read(b, off, len);
+            } catch (SocketTimeoutException e) {
+                throw timedOut(e);
+            }
+        }
+
+        private UpstreamTimeoutException timedOut(SocketTimeoutException e) {
+            return new UpstreamTimeoutException("Origin sent nothing for " + readTimeoutMillis + " ms", e);
+        }
+    }
+
+    public UpstreamPool(int maxPerHost, int maxIdlePerHost, long idleTimeoutMillis, int connectTimeoutMillis,
+                        int readTimeoutMillis, ProxyMetrics metrics) {
+        this.maxPerHost = maxPerHost;
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.metrics = metrics;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "upstream-pool-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        sweeper.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Returns a healthy idle connection to host:port or opens a new one. Waits up to
+    // idleTimeoutMillis if maxPerHost connections to the origin are already in use. The permit
+    // taken here is given back if no connection comes of it, including on a connect timeout.
+    public Connection acquire(String host, int port) throws IOException {
+        if (closed) {
+            throw new IOException("Upstream pool is closed");
+        }
+        Route route = routes.computeIfAbsent(host.toLowerCase() + ":" + port, key -> new Route(maxPerHost));
+        try {
+            if (!route.permits.tryAcquire(idleTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Too many connections to " + host + ":" + port);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + host);
+        }
+        try {
+            Connection connection;
+            while ((connection = route.idle.pollFirst()) != null) {
+                route.idleCount.decrementAndGet();
+                if (System.currentTimeMillis() - connection.idleSince < idleTimeoutMillis && connection.isHealthy()) {
+                    connection.reused = true;
+                    reused.increment();
+                    return connection;
+                }
+                connection.close();
+            }
+            long start = System.nanoTime();
+            connection = new Connection(route, connect(host, port), readTimeoutMillis);
+            metrics.upstreamConnected(System.nanoTime() - start);
+            opened.increment();
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            route.permits.release();
+            throw e;
+        }
+    }
+
+    private SocketChannel connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            return channel;
+        } catch (SocketTimeoutException e) {
+            channel.close();
+            throw new UpstreamTimeoutException("Timed out connecting to " + host + ":" + port, e);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Sends request on a pooled connection and reads the response head. If a reused connection
+    // fails before the head arrives, the origin most likely closed it while idle, so idempotent
+    // requests are retried once on a new connection. A timed out origin is not retried.
+    public Connection exchange(String host, int port, byte[] request, boolean idempotent) throws IOException {
+        return exchange(host, port, request, null, idempotent);
+    }
+
+    // As above, streaming body after the request head. A body read from the client cannot be sent
+    // twice, so requests with one are never retried.
+    public Connection exchange(String host, int port, byte[] head, InputStream body, boolean idempotent) throws IOException {
+        Connection connection = acquire(host, port);
+        try {
+            exchange(connection, head, body);
+            return connection;
+        } catch (IOException e) {
+            release(connection, false);
+            if (!connection.reused || !idempotent || body != null || e instanceof UpstreamTimeoutException) {
+                throw e;
+            }
+        }
+        connection = acquire(host, port);
+        try {
+            exchange(connection, head, null);
+            return connection;
+        } catch (IOException e) {
+            release(connection, false);
+            throw e;
+        }
+    }
+
+    // The response head nearly always arrives in the first packet, so the time from the end of
+    // the request until it is read is recorded as the time to first byte.
+    private void exchange(Connection connection, byte[] head, InputStream body) throws IOException {
+        connection.send(head, body);
+        long start = System.nanoTime();
+        connection.readResponseHead();
+        metrics.upstreamFirstByte(System.nanoTime() - start);
+    }
+
+    // Hands the connection back. Only pass reusable = true when its last response was read to the
+    // end of its framing and neither side asked to close; anything else is closed here.
+    public void release(Connection connection, boolean reusable) {
+        Route route = connection.route;
+        if (reusable && !closed && route.idleCount.incrementAndGet() <= maxIdlePerHost) {
+            connection.idleSince = System.currentTimeMillis();
+            route.idle.offerFirst(connection);
+        } else {
+            if (reusable) {
+                route.idleCount.decrementAndGet();
+            }
+            connection.close();
+        }
+        route.permits.release();
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Route route : routes.values()) {
+            Iterator<Connection> it = route.idle.descendingIterator(); // oldest first
+            while (it.hasNext()) {
+                Connection connection = it.next();
+                if (now - connection.idleSince >= idleTimeoutMillis && route.idle.removeLastOccurrence(connection)) {
+                    route.idleCount.decrementAndGet();
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    public long getOpenedCount() {
+        return opened.sum();
+    }
+
+    public long getReusedCount() {
+        return reused.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        sweeper.shutdownNow();
+        for (Route route : routes.values()) {
+            Connection connection;
+            while ((connection = route.idle.pollFirst()) != null) {
+                route.idleCount.decrementAndGet();
+                connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package CSE471;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+// Fuzzes ClientHelloParser with mutated ClientHellos. The seeds are the benchmark's ClientHellos
+// and ones the JDK's own TLS client sends. Each round mutates a seed and checks that the parser
+// does not throw. It also checks that feeding the input in random slices gives the same result as
+// feeding it whole. Seeds re-split into records of random sizes must still parse to their name.
+//
+//   javac -encoding UTF-8 -d out *.java benchmarks/*.java
+//   java -cp out CSE471.ClientHelloFuzz [--iterations n] [--seed n]
+public class ClientHelloFuzz {
+    private static final int[] INTERESTING_BYTES = {0x00, 0x01, 0x7F, 0x80, 0xFF};
+    private static final int[] INTERESTING_U16 = {0x0000, 0x0001, 0x00FF, 0x0100, 0x3FFF, 0x4000, 0x4100, 0x7FFF, 0xFFFF};
+
+    // A corpus entry and the server name it carries, null if none.
+    private static class Seed {
+        final byte[] bytes;
+        final String serverName;
+
+        Seed(byte[] bytes, String serverName) {
+            this.bytes = bytes;
+            this.serverName = serverName;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long iterations = 200000;
+        long seed = System.nanoTime();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--iterations": iterations = Long.parseLong(args[++i]); break;
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+        List<Seed> corpus = corpus();
+        Random random = new Random(seed);
+        ClientHelloParser whole = new ClientHelloParser();
+        ClientHelloParser split = new ClientHelloParser();
+        int failures = 0;
+        for (Seed entry : corpus) {
+            feedWhole(whole, entry.bytes);
+            if (!serverName(whole).equals(expected(entry))) {
+                failures += fail("seed", entry.bytes, expected(entry), serverName(whole));
+            }
+        }
+
+        long[] statusCounts = new long[ClientHelloParser.Status.values().length];
+        for (long i = 0; i < iterations; i++) {
+            Seed entry = corpus.get(random.nextInt(corpus.size()));
+            boolean reframed = random.nextInt(8) == 0;
+            byte[] input = reframed ? reframe(entry.bytes, random) : mutate(entry.bytes, random);
+            String wholeOutcome;
+            String splitOutcome;
+            try {
+                wholeOutcome = feedWhole(whole, input);
+                splitOutcome = feedSplit(split, input, random);
+            } catch (RuntimeException e) {
+                failures += fail("iteration " + i, input, "no exception", e.toString());
+                continue;
+            }
+            if (!wholeOutcome.equals(splitOutcome)) {
+                failures += fail("iteration " + i, input, wholeOutcome + " (whole)", splitOutcome + " (split)");
+            } else if (reframed && !serverName(whole).equals(expected(entry))) {
+                failures += fail("iteration " + i + ", reframed", input, expected(entry), serverName(whole));
+            }
+            statusCounts[whole.getStatus().ordinal()]++;
+        }
+
+        System.out.printf("%d inputs from %d seeds, seed %d: %d complete, %d invalid, %d incomplete, %d failures%n",
+                iterations, corpus.size(), seed, statusCounts[ClientHelloParser.Status.COMPLETE.ordinal()],
+                statusCounts[ClientHelloParser.Status.INVALID.ordinal()],
+                statusCounts[ClientHelloParser.Status.NEED_MORE.ordinal()], failures);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static List<Seed> corpus() throws Exception {
+        List<Seed> corpus = new ArrayList<>();
+        corpus.add(new Seed(ProxyBenchmarks.clientHello(0), "www.example.com"));
+        corpus.add(new Seed(ProxyBenchmarks.clientHello(8192), "www.example.com"));
+        corpus.add(new Seed(jdkClientHello("www.example.com", "TLSv1.3", "h2", "http/1.1"), "www.example.com"));
+        corpus.add(new Seed(jdkClientHello("api.example.org", "TLSv1.2"), "api.example.org"));
+        corpus.add(new Seed(jdkClientHello(null, "TLSv1.3"), null));
+        return corpus;
+    }
+
+    // The first flight of a JDK TLS client: one ClientHello record.
+    private static byte[] jdkClientHello(String host, String protocol, String... alpn) throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        SSLEngine engine = host == null ? context.createSSLEngine() : context.createSSLEngine(host, 443);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(new String[] {protocol});
+        if (host != null) {
+            parameters.setServerNames(List.of(new SNIHostName(host)));
+        }
+        parameters.setApplicationProtocols(alpn);
+        engine.setSSLParameters(parameters);
+        ByteBuffer out = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        engine.wrap(ByteBuffer.allocate(0), out);
+        out.flip();
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+        return bytes;
+    }
+
+    private static String expected(Seed entry) {
+        return ClientHelloParser.Status.COMPLETE + " " + entry.serverName;
+    }
+
+    private static String feedWhole(ClientHelloParser parser, byte[] input) {
+        parser.reset();
+        parser.feed(input, 0, input.length);
+        return outcome(parser);
+    }
+
+    private static String feedSplit(ClientHelloParser parser, byte[] input, Random random) {
+        parser.reset();
+        int offset = 0;
+        while (offset < input.length && parser.getStatus() == ClientHelloParser.Status.NEED_MORE) {
+            int length = Math.min(input.length - offset, 1 + random.nextInt(random.nextBoolean() ? 8 : 2048));
+            parser.feed(input, offset, length);
+            offset += length;
+        }
+        return outcome(parser);
+    }
+
+    private static String serverName(ClientHelloParser parser) {
+        return parser.getStatus() + " " + parser.getServerName();
+    }
+
+    private static String outcome(ClientHelloParser parser) {
+        String outcome = serverName(parser);
+        List<String> protocols = parser.getAlpnProtocols();
+        return protocols.isEmpty() ? outcome : outcome + " " + protocols;
+    }
+
+    // One to four mutations: bit flips, interesting bytes and lengths, truncation, insertion, deletion.
+    private static byte[] mutate(byte[] seed, Random random) {
+        byte[] bytes = seed.clone();
+        int mutations = 1 + random.nextInt(4);
+        for (int m = 0; m < mutations && bytes.length > 2; m++) {
+            int position = random.nextInt(bytes.length);
+            switch (random.nextInt(6)) {
+                case 0:
+                    bytes[position] ^= 1 << random.nextInt(8);
+                    break;
+                case 1:
+                    bytes[position] = (byte) INTERESTING_BYTES[random.nextInt(INTERESTING_BYTES.length)];
+                    break;
+                case 2:
+                    int value = INTERESTING_U16[random.nextInt(INTERESTING_U16.length)];
+                    position = Math.min(position, bytes.length - 2);
+                    bytes[position] = (byte) (value >> 8);
+                    bytes[position + 1] = (byte) value;
+                    break;
+                case 3:
+                    bytes = Arrays.copyOf(bytes, position);
+                    break;
+                case 4:
+                    byte[] inserted = new byte[1 + random.nextInt(16)];
+                    random.nextBytes(inserted);
+                    byte[] longer = new byte[bytes.length + inserted.length];
+                    System.arraycopy(bytes, 0, longer, 0, position);
+                    System.arraycopy(inserted, 0, longer, position, inserted.length);
+                    System.arraycopy(bytes, position, longer, position + inserted.length, bytes.length - position);
+                    bytes = longer;
+                    break;
+                default:
+                    int removed = Math.min(1 + random.nextInt(16), bytes.length - position);
+                    byte[] shorter = new byte[bytes.length - removed];
+                    System.arraycopy(bytes, 0, shorter, 0, position);
+                    System.arraycopy(bytes, position + removed, shorter, position, shorter.length - position);
+                    bytes = shorter;
+                    break;
+            }
+        }
+        return bytes;
+    }
+
+    // The same handshake message in records of random sizes, which the parser must accept.
+    private static byte[] reframe(byte[] records, Random random) {
+        ByteBuffer in = ByteBuffer.wrap(records);
+        ByteBuffer message = ByteBuffer.allocate(records.length);
+        while (in.remaining() >= 5) {
+            in.position(in.position() + 3);
+            int length = in.getShort() & 0xFFFF;
+            message.put(records, in.position(), length);
+            in.position(in.position() + length);
+        }
+        message.flip();
+        ByteBuffer out = ByteBuffer.allocate(message.remaining() * 6 + 5);
+        while (message.hasRemaining()) {
+            int length = Math.min(message.remaining(), 1 + random.nextInt(random.nextBoolean() ? 16 : 4096));
+            out.put((byte) 22).put((byte) 3).put((byte) 1).putShort((short) length);
+            out.put(message.array(), message.position(), length);
+            message.position(message.position() + length);
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static int fail(String where, byte[] input, String expected, String actual) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : input) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        System.out.println("FAIL " + where + ": expected " + expected + ", got " + actual);
+        System.out.println("  input " + hex);
+        return 1;
+    }
+}
@@ -0,0 +1,786 @@
+package CSE471;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+// Microbenchmarks for the proxy's hot paths. There is no build tool in this project, so instead of
+// JMH this is a small harness of its own: each benchmark runs in a fresh JVM, warms up, then runs
+// timed iterations and reports the mean and spread per operation. Results are printed as a table
+// and written as JSON so runs can be compared over time.
+//
+//   javac -encoding UTF-8 -d out *.java benchmarks/*.java
+//   java -cp out CSE471.ProxyBenchmarks [--filter regex] [--forks n] [--warmup n] [--iterations n]
+//        [--time millis] [--json file] [--list]
+public class ProxyBenchmarks {
+    private static final String RESULT_PREFIX = "@result ";
+
+    // Values returned by operations end up here, so the JIT cannot drop the work that made them.
+    static Object sink;
+
+    // One benchmark's state, created in the JVM that runs it.
+    interface Fixture extends AutoCloseable {
+        Object run() throws Exception;
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    static class Benchmark {
+        final String name;
+        final Map<String, String> params;
+        final long bytesPerOp; // > 0 reports throughput in MB/s instead of ns/op
+        final Callable<Fixture> setUp;
+
+        Benchmark(String name, Map<String, String> params, long bytesPerOp, Callable<Fixture> setUp) {
+            this.name = name;
+            this.params = params;
+            this.bytesPerOp = bytesPerOp;
+            this.setUp = setUp;
+        }
+
+        String id() {
+            StringBuilder id = new StringBuilder(name);
+            params.forEach((key, value) -> id.append(' ').append(key).append('=').append(value));
+            return id.toString();
+        }
+
+        String unit() {
+            return bytesPerOp > 0 ? "MB/s" : "ns/op";
+        }
+    }
+
+    static class Result {
+        final Benchmark benchmark;
+        final List<Double> samples;
+
+        Result(Benchmark benchmark, List<Double> samples) {
+            this.benchmark = benchmark;
+            this.samples = samples;
+        }
+
+        double mean() {
+            return samples.stream().mapToDouble(Double::doubleValue).average().orElse(Double.NaN);
+        }
+
+        double stddev() {
+            double mean = mean();
+            double sum = 0;
+            for (double sample : samples) {
+                sum += (sample - mean) * (sample - mean);
+            }
+            return samples.size() > 1 ? Math.sqrt(sum / (samples.size() - 1)) : 0;
+        }
+    }
+
+    static List<Benchmark> benchmarks() {
+        List<Benchmark> list = new ArrayList<>();
+        for (int padding : new int[] {0, 8192}) {
+            list.add(new Benchmark("clientHello.parse", params("bytes", String.valueOf(clientHello(padding).length)), 0, () -> {
+                byte[] hello = clientHello(padding);
+                ClientHelloParser parser = new ClientHelloParser();
+                return () -> {
+                    parser.reset();
+                    parser.feed(hello, 0, hello.length);
+                    return parser.getServerName();
+                };
+            }));
+            // The byte-pair scanner the parser replaced, over the single 4096-byte read it was given
+            list.add(new Benchmark("clientHello.scan", params("bytes", String.valueOf(clientHello(padding).length)), 0, () -> {
+                byte[] hello = clientHello(padding);
+                int length = Math.min(hello.length, 4096);
+                return () -> scanServerName(hello, length);
+            }));
+        }
+        for (int rules : new int[] {1000, 1000000}) {
+            list.add(new Benchmark("blocklist.isBlocked", params("rules", String.valueOf(rules)), 0, () -> blocklist(rules)));
+        }
+        // The file name the cache used to derive from a URL with a regex, as a baseline for entryPath
+        String cacheKey = "http://www.example.com/static/js/app.min.js?v=20240101&lang=en";
+        list.add(new Benchmark("cacheKey.sanitize", params(), 0,
+                () -> () -> ("cache/" + cacheKey + ".cache").replaceAll("[^a-zA-Z0-9\\-_\\.]", "_")));
+        list.add(new Benchmark("cacheKey.entryPath", params(), 0, () -> {
+            CacheStore store = new CacheStore(Paths.get("cache"));
+            return () -> store.entryPath(cacheKey);
+        }));
+        // Content hashing a fill pays on every body chunk it writes
+        list.add(new Benchmark("cacheFill.digest", params("bytes", "8192"), 0, () -> {
+            byte[] chunk = new byte[8192];
+            new Random(8192).nextBytes(chunk);
+            MessageDigest digest = CacheStore.newDigest();
+            return () -> {
+                digest.update(chunk, 0, chunk.length);
+                return digest;
+            };
+        }));
+        // The same request over and over on one connection, as a persistent client sends it
+        byte[] requestHead = ("GET http://www.example.com/index.html?page=2 HTTP/1.1\r\n"
+                + "Host: www.example.com\r\n"
+                + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:121.0) Gecko/20100101 Firefox/121.0\r\n"
+                + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+                + "Accept-Language: en-US,en;q=0.5\r\n"
+                + "Accept-Encoding: gzip, deflate\r\n"
+                + "Connection: keep-alive\r\n"
+                + "Cookie: session=0123456789abcdef; theme=dark\r\n"
+                + "Upgrade-Insecure-Requests: 1\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        list.add(new Benchmark("requestHead.readLine", params("headers", "8"), 0, () -> {
+            // The BufferedReader path ServerHandler used before HttpRequestReader, kept as the baseline
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new RepeatingInputStream(requestHead), StandardCharsets.ISO_8859_1));
+            return () -> {
+                String[] tokens = reader.readLine().split(" ");
+                List<String> headers = new ArrayList<>();
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    headers.add(line);
+                }
+                return tokens.length + headers.size();
+            };
+        }));
+        list.add(new Benchmark("requestHead.parse", params("headers", "8"), 0, () -> {
+            HttpRequestReader reader = new HttpRequestReader(new RepeatingInputStream(requestHead));
+            return () -> {
+                HttpRequestHead head = reader.readHead();
+                return head.getHeaderCount() + (head.isPersistent() ? 1 : 0);
+            };
+        }));
+        for (int size : new int[] {4096, 262144}) {
+            list.add(new Benchmark("cache.getData", params("bytes", String.valueOf(size)), 0, () -> {
+                CachedFile file = new CachedFile(size);
+                return new Fixture() {
+                    public Object run() throws IOException {
+                        return file.resource.getData();
+                    }
+
+                    public void close() throws IOException {
+                        file.close();
+                    }
+                };
+            }));
+            list.add(new Benchmark("cache.memoryHit", params("bytes", String.valueOf(size)), 0, () -> {
+                CachedFile file = new CachedFile(size);
+                MemoryCache memoryCache = new MemoryCache(64L * 1024 * 1024, 4 * 1024 * 1024);
+                memoryCache.put(file.key, file.resource, file.resource.getData());
+                return new Fixture() {
+                    public Object run() {
+                        return memoryCache.get(file.key, file.resource);
+                    }
+
+                    public void close() throws IOException {
+                        file.close();
+                    }
+                };
+            }));
+        }
+        // A cache hit on a 64 KB HTML page stored as received, stored gzipped and sent as stored, and
+        // stored gzipped but inflated for a client without gzip; "sent" is the body bytes on the wire
+        int pageSize = 65536;
+        String gzipSize = String.valueOf(gzipSize(htmlPage(pageSize)));
+        for (String[] variant : new String[][] {{"identity", "false", String.valueOf(pageSize)}, {"gzip", "true", gzipSize},
+                {"inflate", "true", String.valueOf(pageSize)}}) {
+            boolean inflate = variant[0].equals("inflate");
+            list.add(new Benchmark("cache.serveText", params("bytes", String.valueOf(pageSize), "encoding", variant[0], "sent", variant[2]), 0, () -> {
+                CachedPage page = new CachedPage(htmlPage(pageSize), Boolean.parseBoolean(variant[1]));
+                WritableByteChannel channel = Channels.newChannel(OutputStream.nullOutputStream());
+                return new Fixture() {
+                    public Object run() throws IOException {
+                        return inflate ? page.resource.transferDecompressedTo(OutputStream.nullOutputStream())
+                                : page.resource.transferTo(channel);
+                    }
+
+                    public void close() throws IOException {
+                        page.close();
+                    }
+                };
+            }));
+        }
+        // What storing the page costs at commit, with and without compression; the body is the same
+        // each time, so after the first commit the store finds it already on disk
+        for (boolean compress : new boolean[] {false, true}) {
+            list.add(new Benchmark("cacheFill.commit", params("bytes", String.valueOf(pageSize), "compress", String.valueOf(compress)), 0, () -> {
+                CachedPage page = new CachedPage(htmlPage(pageSize), compress);
+                return new Fixture() {
+                    public Object run() throws IOException {
+                        return page.store(compress);
+                    }
+
+                    public void close() throws IOException {
+                        page.close();
+                    }
+                };
+            }));
+        }
+        int relayBytes = 64 * 1024 * 1024;
+        list.add(new Benchmark("tunnelRelay.loopback", params("bytes", String.valueOf(relayBytes)), relayBytes, () -> new LoopbackRelay(relayBytes)));
+        for (int entries : new int[] {100000, 1000000}) {
+            list.add(new Benchmark("requestLog.forClient", params("entries", String.valueOf(entries), "clients", "1000"), 0, () -> {
+                RequestLog log = requestLog(entries, 1000);
+                Random random = new Random(7);
+                return () -> log.forClient(clientIP(random.nextInt(1000)));
+            }));
+        }
+        list.add(new Benchmark("requestLog.add", params("capacity", "1000000"), 0, () -> {
+            RequestLog log = new RequestLog(1000000, 64 * 1024 * 1024);
+            long[] counter = new long[1];
+            return () -> {
+                long i = counter[0]++;
+                log.add(i, clientIP((int) (i % 1000)), "www.example" + (i % 50) + ".com", "/page/" + (i % 5000), "GET", 200, 1024);
+                return log;
+            };
+        }));
+        list.add(new Benchmark("metrics.record", params(), 0, () -> {
+            // What one proxied request adds to the metrics: method, cache lookup, connect and first byte
+            ProxyMetrics metrics = new ProxyMetrics();
+            long[] counter = new long[1];
+            return () -> {
+                long i = counter[0]++;
+                metrics.request(HttpMethods.GET);
+                metrics.cacheLookup(ProxyMetrics.CacheResult.MISS);
+                metrics.upstreamConnected(200000 + (i & 0xFFFF) * 16);
+                metrics.upstreamFirstByte(1000000 + (i & 0xFFFF) * 64);
+                return metrics;
+            };
+        }));
+        list.add(new Benchmark("metrics.scrape", params(), 0, () -> {
+            ProxyMetrics metrics = new ProxyMetrics();
+            for (int i = 0; i < 100000; i++) {
+                metrics.upstreamFirstByte(1000000 + i * 64L);
+            }
+            return metrics::toPrometheus;
+        }));
+        return list;
+    }
+
+    // A ClientHello in one record, or with padding split over several records, named "www.example.com".
+    static byte[] clientHello(int padding) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(3);
+        body.write(3);
+        body.write(new byte[32], 0, 32); // random
+        body.write(32);
+        body.write(new byte[32], 0, 32); // session ID
+        writeU16(body, 32);
+        for (int i = 0; i < 16; i++) {
+            writeU16(body, 0x1301 + i);
+        }
+        body.write(1);
+        body.write(0);
+        ByteArrayOutputStream extensions = new ByteArrayOutputStream();
+        writeU16(extensions, 10); // supported_groups, before server_name as browsers send it
+        writeU16(extensions, 6);
+        writeU16(extensions, 4);
+        writeU16(extensions, 0x001D);
+        writeU16(extensions, 0x0017);
+        byte[] host = "www.example.com".getBytes(StandardCharsets.US_ASCII);
+        writeU16(extensions, 0); // server_name
+        writeU16(extensions, host.length + 5);
+        writeU16(extensions, host.length + 3);
+        extensions.write(0);
+        writeU16(extensions, host.length);
+        extensions.write(host, 0, host.length);
+        writeU16(extensions, 16); // application_layer_protocol_negotiation
+        writeU16(extensions, 14);
+        writeU16(extensions, 12);
+        extensions.write(2);
+        extensions.write("h2".getBytes(StandardCharsets.US_ASCII), 0, 2);
+        extensions.write(8);
+        extensions.write("http/1.1".getBytes(StandardCharsets.US_ASCII), 0, 8);
+        if (padding > 0) {
+            writeU16(extensions, 21); // padding, standing in for large post-quantum key shares
+            writeU16(extensions, padding);
+            extensions.write(new byte[padding], 0, padding);
+        }
+        writeU16(body, extensions.size());
+        body.write(extensions.toByteArray(), 0, extensions.size());
+
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        message.write(1);
+        message.write(body.size() >> 16);
+        writeU16(message, body.size() & 0xFFFF);
+        message.write(body.toByteArray(), 0, body.size());
+        byte[] bytes = message.toByteArray();
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (int offset = 0; offset < bytes.length; offset += 4096) {
+            int length = Math.min(4096, bytes.length - offset);
+            records.write(22);
+            records.write(3);
+            records.write(1);
+            writeU16(records, length);
+            records.write(bytes, offset, length);
+        }
+        return records.toByteArray();
+    }
+
+    // The SNI lookup before ClientHelloParser: takes the first 00 00 byte pair for the server_name
+    // extension, whatever structure it is in.
+    static String scanServerName(byte[] clientHello, int length) {
+        int position = 0;
+        while (position < length - 4) {
+            if (clientHello[position] == 0 && clientHello[position + 1] == 0) {
+                position += 5;
+                if (position + 2 > length) {
+                    return null;
+                }
+                if (clientHello[position] == 0) {
+                    if (position + 3 > length) {
+                        return null;
+                    }
+                    int hostLength = (clientHello[position + 1] & 0xFF) << 8 | (clientHello[position + 2] & 0xFF);
+                    position += 3;
+                    if (position + hostLength > length) {
+                        return null;
+                    }
+                    return new String(clientHello, position, hostLength, StandardCharsets.ISO_8859_1);
+                }
+            }
+            position++;
+        }
+        return null;
+    }
+
+    private static void writeU16(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    // Hosts to look up: a quarter each of exact hits, wildcard hits, and two kinds of miss.
+    static Fixture blocklist(int rules) {
+        DomainBlocklist blocklist = new DomainBlocklist();
+        List<String> list = new ArrayList<>(rules);
+        for (int i = 0; i < rules; i++) {
+            list.add((i % 4 == 0 ? "*." : "") + "host" + i + ".example" + (i % 10) + ".com");
+        }
+        blocklist.addAll(list);
+        Random random = new Random(3);
+        String[] hosts = new String[4096];
+        for (int i = 0; i < hosts.length; i++) {
+            int rule = random.nextInt(rules);
+            switch (i % 4) {
+                case 0: hosts[i] = "host" + (rule | 1) + ".example" + ((rule | 1) % 10) + ".com"; break;
+                case 1: hosts[i] = "www.cdn.host" + (rule & ~3) + ".example" + ((rule & ~3) % 10) + ".com"; break;
+                case 2: hosts[i] = "miss" + i + ".example.org"; break;
+                default: hosts[i] = "a.b.c.miss" + i + ".example" + (i % 10) + ".com";
+            }
+        }
+        int[] next = new int[1];
+        return () -> blocklist.isBlocked(hosts[next[0]++ & (hosts.length - 1)]);
+    }
+
+    static RequestLog requestLog(int entries, int clients) {
+        RequestLog log = new RequestLog(entries, 64 * 1024 * 1024);
+        Random random = new Random(5);
+        for (int i = 0; i < entries; i++) {
+            log.add(i, clientIP(random.nextInt(clients)), "www.example" + random.nextInt(50) + ".com",
+                    "/page/" + random.nextInt(5000), "GET", 200, 1024);
+        }
+        return log;
+    }
+
+    static String clientIP(int client) {
+        return "10.0." + (client >> 8) + "." + (client & 0xFF);
+    }
+
+    // Repetitive markup, about as compressible as a real page.
+    static byte[] htmlPage(int size) {
+        StringBuilder page = new StringBuilder(size + 64);
+        Random random = new Random(size);
+        while (page.length() < size) {
+            page.append("<li class=\"item\"><a href=\"/products/").append(random.nextInt(100000))
+                    .append("\">Product ").append(random.nextInt(1000)).append("</a></li>\n");
+        }
+        page.setLength(size);
+        return page.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // A gzip member is the raw deflate stream plus a 10-byte header and an 8-byte trailer.
+    static long gzipSize(byte[] body) {
+        Deflater deflater = new Deflater(ProxyConfig.CACHE_COMPRESSION_LEVEL, true);
+        deflater.setInput(body);
+        deflater.finish();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            deflater.deflate(buffer);
+        }
+        long size = deflater.getBytesWritten() + 18;
+        deflater.end();
+        return size;
+    }
+
+    // A text response stored through a CacheFill, as a handler stores it.
+    static class CachedPage implements AutoCloseable {
+        final Path directory;
+        final CacheStore store;
+        final HttpResponseHead head;
+        final byte[] body;
+        final CachedResource resource;
+
+        CachedPage(byte[] body, boolean compress) throws IOException {
+            directory = Files.createTempDirectory("proxy-bench");
+            store = new CacheStore(directory);
+            this.body = body;
+            head = HttpResponseHead.read(new ByteArrayInputStream(("HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=utf-8\r\n"
+                    + "Cache-Control: max-age=600\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+            resource = store(compress);
+        }
+
+        CachedResource store(boolean compress) throws IOException {
+            String key = "http://www.example.com/page.html";
+            try (CacheFill fill = new CacheFill(store, key)) {
+                fill.writeHead(head.getRaw());
+                fill.write(body, 0, body.length);
+                if (compress) {
+                    fill.compress(head);
+                }
+                fill.commit();
+                HttpResponseHead stored = fill.getStoredHead();
+                CachedResource resource = new CachedResource(new URL(key), fill.getEntryPath().toString(), fill.getBodyPath().toString(),
+                        0, 0, stored != null ? stored : head, fill.getIdentityLength());
+                store.retain(fill.getBodyPath()); // held by this page, as the index would
+                return resource;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    // A cached response on disk, as the handlers store it.
+    static class CachedFile implements AutoCloseable {
+        final Path directory;
+        final String key;
+        final CachedResource resource;
+
+        CachedFile(int size) throws IOException {
+            directory = Files.createTempDirectory("proxy-bench");
+            key = "http://www.example.com/object-" + size;
+            CacheStore store = new CacheStore(directory);
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            byte[] head = ("HTTP/1.1 200 OK\r\nContent-Length: " + size + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            Path body = store.storeBody(data);
+            Path entry = store.writeEntry(key, body, head);
+            resource = new CachedResource(new URL(key), entry.toString(), body.toString(), System.currentTimeMillis());
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    // Endless stream of the same bytes, returned in reads of at most one TCP segment.
+    static class RepeatingInputStream extends InputStream {
+        private static final int SEGMENT = 1460;
+        private final byte[] data;
+        private int position;
+
+        RepeatingInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            int b = data[position] & 0xFF;
+            position = (position + 1) % data.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) {
+            int n = Math.min(Math.min(length, SEGMENT), data.length - position);
+            System.arraycopy(data, position, b, offset, n);
+            position = (position + n) % data.length;
+            return n;
+        }
+    }
+
+    // One CONNECT tunnel direction over loopback: a writer thread sends the payload into one
+    // connection, TunnelRelay moves it to a second one, and a reader thread drains that.
+    static class LoopbackRelay implements Fixture {
+        private final int bytes;
+        private final ServerSocketChannel server;
+
+        LoopbackRelay(int bytes) throws IOException {
+            this.bytes = bytes;
+            this.server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+
+        @Override
+        public Object run() throws Exception {
+            try (SocketChannel writer = SocketChannel.open(server.getLocalAddress());
+                 SocketChannel from = server.accept();
+                 SocketChannel reader = SocketChannel.open(server.getLocalAddress());
+                 SocketChannel to = server.accept()) {
+                Thread write = new Thread(() -> {
+                    ByteBuffer chunk = ByteBuffer.allocateDirect(64 * 1024);
+                    try {
+                        for (long sent = 0; sent < bytes; sent += chunk.capacity()) {
+                            chunk.clear();
+                            while (chunk.hasRemaining()) {
+                                writer.write(chunk);
+                            }
+                        }
+                        writer.shutdownOutput();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                long[] received = new long[1];
+                Thread read = new Thread(() -> {
+                    ByteBuffer chunk = ByteBuffer.allocateDirect(64 * 1024);
+                    try {
+                        int n;
+                        while ((n = reader.read(chunk)) != -1) {
+                            received[0] += n;
+                            chunk.clear();
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                write.start();
+                read.start();
+                long relayed = TunnelRelay.relay(from, to, new LongAdder());
+                write.join();
+                read.join();
+                if (relayed != bytes || received[0] != bytes) {
+                    throw new IllegalStateException("relayed " + relayed + ", received " + received[0] + " of " + bytes);
+                }
+                return relayed;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+
+    private static Map<String, String> params(String... keysAndValues) {
+        Map<String, String> params = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2) {
+            params.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return params;
+    }
+
+    // Runs the operation for about the given time per iteration; returns ns/op, or MB/s.
+    static List<Double> measure(Benchmark benchmark, int warmup, int iterations, long iterationMillis) throws Exception {
+        List<Double> samples = new ArrayList<>();
+        try (Fixture fixture = benchmark.setUp.call()) {
+            for (int i = 0; i < warmup + iterations; i++) {
+                long deadline = System.nanoTime() + iterationMillis * 1_000_000L;
+                long ops = 0;
+                long batch = 1;
+                long start = System.nanoTime();
+                long now;
+                do {
+                    for (long k = 0; k < batch; k++) {
+                        sink = fixture.run();
+                    }
+                    ops += batch;
+                    now = System.nanoTime();
+                    if (batch < 1 << 20 && now - start < (deadline - start) / 100) {
+                        batch *= 2; // check the clock less often for fast operations
+                    }
+                } while (now < deadline);
+                double nanosPerOp = (double) (now - start) / ops;
+                if (i >= warmup) {
+                    samples.add(benchmark.bytesPerOp > 0 ? benchmark.bytesPerOp / nanosPerOp * 1e9 / (1024 * 1024) : nanosPerOp);
+                }
+            }
+        }
+        return samples;
+    }
+
+    // Runs one benchmark in a new JVM with the same class path, so earlier benchmarks do not
+    // leave their profile, heap or JIT state behind.
+    static List<Double> fork(Benchmark benchmark, int warmup, int iterations, long iterationMillis) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        // ProxyConfig settings given to this JVM apply in the benchmark JVMs too
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("proxy.")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ProxyBenchmarks.class.getName());
+        command.add("--child");
+        command.add(benchmark.id());
+        command.add("--warmup");
+        command.add(String.valueOf(warmup));
+        command.add("--iterations");
+        command.add(String.valueOf(iterations));
+        command.add("--time");
+        command.add(String.valueOf(iterationMillis));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        List<Double> samples = new ArrayList<>();
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    for (String sample : line.substring(RESULT_PREFIX.length()).trim().split(" ")) {
+                        samples.add(Double.parseDouble(sample));
+                    }
+                } else {
+                    System.out.println("  | " + line);
+                }
+            }
+        }
+        if (process.waitFor() != 0) {
+            throw new IOException("Benchmark JVM exited with " + process.exitValue() + ": " + benchmark.id());
+        }
+        return samples;
+    }
+
+    static void writeJson(Path file, List<Result> results, int forks) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("{\n");
+            out.write("  \"timestamp\": \"" + Instant.now() + "\",\n");
+            out.write("  \"jdk\": \"" + System.getProperty("java.version") + "\",\n");
+            out.write("  \"os\": \"" + System.getProperty("os.name") + " " + System.getProperty("os.arch") + "\",\n");
+            out.write("  \"cpus\": " + Runtime.getRuntime().availableProcessors() + ",\n");
+            out.write("  \"forks\": " + forks + ",\n");
+            out.write("  \"results\": [");
+            for (int i = 0; i < results.size(); i++) {
+                Result result = results.get(i);
+                Benchmark benchmark = result.benchmark;
+                out.write(i == 0 ? "\n" : ",\n");
+                out.write("    {\"benchmark\": \"" + benchmark.name + "\", \"params\": {");
+                int p = 0;
+                for (Map.Entry<String, String> param : benchmark.params.entrySet()) {
+                    out.write((p++ == 0 ? "" : ", ") + "\"" + param.getKey() + "\": \"" + param.getValue() + "\"");
+                }
+                out.write("}, \"unit\": \"" + benchmark.unit() + "\", \"score\": " + format(result.mean())
+                        + ", \"stddev\": " + format(result.stddev()) + ", \"samples\": [");
+                for (int s = 0; s < result.samples.size(); s++) {
+                    out.write((s == 0 ? "" : ", ") + format(result.samples.get(s)));
+                }
+                out.write("]}");
+            }
+            out.write("\n  ]\n}\n");
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Pattern filter = Pattern.compile(".*");
+        int forks = 1;
+        int warmup = 3;
+        int iterations = 5;
+        long iterationMillis = 1000;
+        Path json = Paths.get("benchmark-results.json");
+        String child = null;
+        boolean listOnly = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--filter": filter = Pattern.compile(args[++i]); break;
+                case "--forks": forks = Integer.parseInt(args[++i]); break;
+                case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+                case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+                case "--time": iterationMillis = Long.parseLong(args[++i]); break;
+                case "--json": json = Paths.get(args[++i]); break;
+                case "--child": child = args[++i]; break;
+                case "--list": listOnly = true; break;
+                default:
+                    System.err.println("Usage: ProxyBenchmarks [--filter regex] [--forks n] [--warmup n] [--iterations n] [--time millis] [--json file] [--list]");
+                    System.exit(2);
+            }
+        }
+
+        if (child != null) {
+            for (Benchmark benchmark : benchmarks()) {
+                if (benchmark.id().equals(child)) {
+                    StringBuilder line = new StringBuilder(RESULT_PREFIX);
+                    for (double sample : measure(benchmark, warmup, iterations, iterationMillis)) {
+                        line.append(sample).append(' ');
+                    }
+                    System.out.println(line);
+                    return;
+                }
+            }
+            throw new IllegalArgumentException("No such benchmark: " + child);
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (Benchmark benchmark : benchmarks()) {
+            if (!filter.matcher(benchmark.id()).find()) {
+                continue;
+            }
+            if (listOnly) {
+                System.out.println(benchmark.id());
+                continue;
+            }
+            System.out.println("Running " + benchmark.id());
+            List<Double> samples = new ArrayList<>();
+            if (forks == 0) {
+                samples.addAll(measure(benchmark, warmup, iterations, iterationMillis));
+            }
+            for (int f = 0; f < forks; f++) {
+                samples.addAll(fork(benchmark, warmup, iterations, iterationMillis));
+            }
+            Result result = new Result(benchmark, samples);
+            results.add(result);
+            System.out.printf("  %12.1f +- %.1f %s%n", result.mean(), result.stddev(), benchmark.unit());
+        }
+        if (listOnly) {
+            return;
+        }
+
+        System.out.println();
+        System.out.printf("%-58s %14s %10s  %s%n", "Benchmark", "Score", "Stddev", "Unit");
+        for (Result result : results) {
+            System.out.printf("%-58s %14.1f %10.1f  %s%n", result.benchmark.id(), result.mean(), result.stddev(), result.benchmark.unit());
+        }
+        writeJson(json, results, forks);
+        System.out.println("Results written to " + json);
+    }
+}
@@ -0,0 +1,696 @@
+package CSE471;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import javax.swing.JTextArea;
+
+// End-to-end load test on one machine, without network access. Starts the proxy in this JVM on
+// local ports, a local HTTP origin and a local TLS origin (with a throwaway certificate made by
+// keytool), then runs client threads that replay a mix of requests through the proxy for a fixed
+// time and report throughput, latency and time-to-first-byte percentiles per kind of request,
+// together with the heap and thread counts sampled while the test ran.
+//
+// Kinds of request: "cached" GETs of a fixed set of cacheable objects, "miss" GETs of objects the
+// origin marks no-store, "post" requests forwarded to the origin, and "tunnel" CONNECTs to the TLS
+// origin with a full handshake and one request inside.
+//
+// The proxy writes cache/ and logs/ under the working directory, so run it from a scratch directory:
+//
+//   javac -encoding UTF-8 -d out *.java loadtest/*.java
+//   java -Djava.awt.headless=true -cp out CSE471.LoadTest [--threads 16] [--duration 30] [--warmup 5]
+//        [--mix cached=60,miss=20,post=10,tunnel=10] [--objects 100] [--body-bytes 4096]
+//        [--post-bytes 1024] [--origin-delay-ms 0] [--keep-alive true] [--http-port 18080] [--https-port 18443]
+//
+// The heap figures are for the whole JVM and so include the clients and origins; thread counts
+// leave out the load test's own threads (named "loadtest-").
+public class LoadTest {
+    private static final String THREAD_PREFIX = "loadtest-";
+    private static final String TOKEN_BODY = "token=8a21bce200"; // a valid token with filtering off
+    private static final String TLS_HOST = "origin.test";
+    private static final char[] KEYSTORE_PASSWORD = "loadtest".toCharArray();
+
+    private enum Kind {
+        CACHED, MISS, POST, TUNNEL
+    }
+
+    // Options
+    private int threads = 16;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private final Map<Kind, Integer> mix = new LinkedHashMap<>();
+    private int objects = 100;
+    private int bodyBytes = 4096;
+    private int postBytes = 1024;
+    private int originDelayMillis;
+    private boolean keepAlive = true;
+    private int httpPort = 18080;
+    private int httpsPort = 18443;
+
+    private HttpServer origin;
+    private SSLServerSocket tlsOrigin;
+    private SSLContext clientTls;
+    private int originPort;
+    private byte[] objectBody;
+    private byte[] postBody;
+    private final AtomicLong missCounter = new AtomicLong();
+    private volatile boolean recording;
+    private volatile boolean running = true;
+
+    // Sampled while the test runs
+    private long heapPeak;
+    private int threadPeak;
+
+    // Latencies of one kind of request on one client thread, in nanoseconds.
+    private static class Recorder {
+        long[] latencies = new long[4096];
+        long[] firstBytes = new long[4096];
+        int count;
+        long errors;
+
+        void record(long latency, long firstByte) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+                firstBytes = Arrays.copyOf(firstBytes, count * 2);
+            }
+            latencies[count] = latency;
+            firstBytes[count] = firstByte;
+            count++;
+        }
+    }
+
+    private static class Response {
+        int status;
+        long firstByteNanos;
+        boolean close;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        test.parse(args);
+        test.run();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        mix.put(Kind.CACHED, 60);
+        mix.put(Kind.MISS, 20);
+        mix.put(Kind.POST, 10);
+        mix.put(Kind.TUNNEL, 10);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--threads": threads = Integer.parseInt(value); break;
+                case "--duration": durationSeconds = Integer.parseInt(value); break;
+                case "--warmup": warmupSeconds = Integer.parseInt(value); break;
+                case "--objects": objects = Integer.parseInt(value); break;
+                case "--body-bytes": bodyBytes = Integer.parseInt(value); break;
+                case "--post-bytes": postBytes = Integer.parseInt(value); break;
+                case "--origin-delay-ms": originDelayMillis = Integer.parseInt(value); break;
+                case "--keep-alive": keepAlive = Boolean.parseBoolean(value); break;
+                case "--http-port": httpPort = Integer.parseInt(value); break;
+                case "--https-port": httpsPort = Integer.parseInt(value); break;
+                case "--mix":
+                    mix.clear();
+                    for (String part : value.split(",")) {
+                        String[] pair = part.split("=");
+                        mix.put(Kind.valueOf(pair[0].trim().toUpperCase()), Integer.parseInt(pair[1].trim()));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        // Read by ProxyConfig when it is first used, so this has to come before anything touches it
+        System.setProperty("proxy.httpPort", String.valueOf(httpPort));
+        System.setProperty("proxy.httpsPort", String.valueOf(httpsPort));
+        // The proxy's /metrics endpoint stays off unless asked for with -Dproxy.metricsPort; the report reads the counters directly
+        if (System.getProperty("proxy.metricsPort") == null) {
+            System.setProperty("proxy.metricsPort", "0");
+        }
+
+        objectBody = new byte[bodyBytes];
+        Arrays.fill(objectBody, (byte) 'x');
+        postBody = new byte[postBytes];
+        Arrays.fill(postBody, (byte) 'p');
+        startOrigin();
+        startTlsOrigin();
+
+        EventLog eventLog = new EventLog(new JTextArea(), ProxyConfig.EVENT_LOG_QUEUE_SIZE, ProxyConfig.EVENT_LOG_MAX_LINES);
+        ProxyServer proxy = new ProxyServer(eventLog, new DomainBlocklist(), new HashMap<>());
+        proxy.start();
+        awaitPort(httpPort);
+        awaitPort(httpsPort);
+        System.out.println("Proxy on ports " + httpPort + "/" + httpsPort + " (engine " + ProxyConfig.ENGINE
+                + ", threads " + ProxyConfig.THREADS + "), origin on " + originPort + ", TLS origin on " + tlsOrigin.getLocalPort());
+
+        authorize();
+        warmCache();
+
+        List<Map<Kind, Recorder>> recorders = new ArrayList<>();
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Map<Kind, Recorder> own = new HashMap<>();
+            for (Kind kind : Kind.values()) {
+                own.put(kind, new Recorder());
+            }
+            recorders.add(own);
+            Thread client = new Thread(() -> clientLoop(own), THREAD_PREFIX + "client-" + i);
+            clients.add(client);
+        }
+        Thread sampler = new Thread(this::sampleLoop, THREAD_PREFIX + "sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        System.out.println("Warming up for " + warmupSeconds + " s with " + threads + " client threads, mix " + mix);
+        clients.forEach(Thread::start);
+        Thread.sleep(warmupSeconds * 1000L);
+        recording = true;
+        heapPeak = 0;
+        threadPeak = 0;
+        long start = System.nanoTime();
+        System.out.println("Measuring for " + durationSeconds + " s");
+        Thread.sleep(durationSeconds * 1000L);
+        recording = false;
+        long elapsed = System.nanoTime() - start;
+        running = false;
+        for (Thread client : clients) {
+            client.join(10000);
+        }
+        long heapEnd = usedHeap();
+        int threadsEnd = proxyThreads();
+
+        report(recorders, elapsed, heapEnd, threadsEnd, eventLog, proxy.getMetrics());
+        proxy.stopServer();
+        eventLog.close();
+        origin.stop(0);
+        tlsOrigin.close();
+    }
+
+    // Local origin: cacheable objects, no-store objects, and a POST endpoint that echoes the length.
+    private void startOrigin() throws IOException {
+        origin = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        AtomicInteger originThreads = new AtomicInteger();
+        origin.setExecutor(Executors.newFixedThreadPool(Math.max(8, threads * 2),
+                r -> daemon(r, THREAD_PREFIX + "origin-" + originThreads.incrementAndGet())));
+        origin.createContext("/", exchange -> {
+            try {
+                if (originDelayMillis > 0) {
+                    Thread.sleep(originDelayMillis);
+                }
+                byte[] body = objectBody;
+                String path = exchange.getRequestURI().getPath();
+                if ("POST".equals(exchange.getRequestMethod())) {
+                    try (InputStream in = exchange.getRequestBody()) {
+                        long n = in.transferTo(OutputStream.nullOutputStream());
+                        body = ("received " + n + "\n").getBytes(StandardCharsets.US_ASCII);
+                    }
+                    exchange.getResponseHeaders().set("Cache-Control", "no-store");
+                } else if (path.startsWith("/cached/")) {
+                    exchange.getResponseHeaders().set("Cache-Control", "max-age=86400");
+                } else {
+                    exchange.getResponseHeaders().set("Cache-Control", "no-store");
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+        origin.start();
+        originPort = origin.getAddress().getPort();
+    }
+
+    // Local TLS origin behind CONNECT: answers one HTTP request per connection.
+    private void startTlsOrigin() throws Exception {
+        Path directory = Files.createTempDirectory("loadtest-tls");
+        Path keystore = directory.resolve("origin.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "origin", "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=" + TLS_HOST,
+                "-ext", "san=dns:" + TLS_HOST + ",ip:127.0.0.1", "-validity", "2", "-storetype", "PKCS12",
+                "-keystore", keystore.toString(), "-storepass", new String(KEYSTORE_PASSWORD))
+                .redirectErrorStream(true).start();
+        byte[] output = keytool.getInputStream().readAllBytes();
+        if (keytool.waitFor() != 0) {
+            throw new IOException("keytool failed: " + new String(output, StandardCharsets.UTF_8));
+        }
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keystore)) {
+            store.load(in, KEYSTORE_PASSWORD);
+        }
+        Files.delete(keystore);
+        Files.delete(directory);
+
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, KEYSTORE_PASSWORD);
+        SSLContext serverTls = SSLContext.getInstance("TLS");
+        serverTls.init(keys.getKeyManagers(), null, null);
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+        clientTls = SSLContext.getInstance("TLS");
+        clientTls.init(null, trust.getTrustManagers(), null);
+
+        tlsOrigin = (SSLServerSocket) serverTls.getServerSocketFactory().createServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        AtomicInteger tlsThreads = new AtomicInteger();
+        ExecutorService handlers = Executors.newCachedThreadPool(r -> daemon(r, THREAD_PREFIX + "tls-" + tlsThreads.incrementAndGet()));
+        Thread acceptor = daemon(() -> {
+            while (!tlsOrigin.isClosed()) {
+                try {
+                    Socket socket = tlsOrigin.accept();
+                    handlers.execute(() -> answerTls(socket));
+                } catch (IOException e) {
+                    // closed at the end of the test
+                }
+            }
+        }, THREAD_PREFIX + "tls-accept");
+        acceptor.start();
+    }
+
+    private void answerTls(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            while (!readLine(in).isEmpty()) {
+                // skip the request head
+            }
+            OutputStream out = s.getOutputStream();
+            out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + objectBody.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(objectBody);
+            out.flush();
+        } catch (IOException e) {
+            // the client gave up; counted on its side
+        }
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void awaitPort(int port) throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close(); // only checks that it accepts
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Proxy did not start listening on port " + port, e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // The proxy asks every client IP for a token before serving it.
+    private void authorize() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), httpPort)) {
+            byte[] body = TOKEN_BODY.getBytes(StandardCharsets.US_ASCII);
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST / HTTP/1.1\r\nHost: proxy\r\nContent-Length: " + body.length + "\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.write(body);
+            out.flush();
+            Response response = readResponse(new BufferedInputStream(socket.getInputStream()));
+            if (response.status != 200) {
+                throw new IOException("Token submission failed with status " + response.status);
+            }
+        }
+    }
+
+    private void warmCache() throws IOException {
+        HttpClient client = new HttpClient();
+        try {
+            for (int i = 0; i < objects; i++) {
+                client.request(get("/cached/" + i));
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    private void clientLoop(Map<Kind, Recorder> recorders) {
+        Kind[] kinds = mix.keySet().toArray(new Kind[0]);
+        int[] cumulative = new int[kinds.length];
+        int total = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            total += mix.get(kinds[i]);
+            cumulative[i] = total;
+        }
+        HttpClient http = new HttpClient();
+        while (running) {
+            int pick = ThreadLocalRandom.current().nextInt(total);
+            Kind kind = kinds[0];
+            for (int i = 0; i < kinds.length; i++) {
+                if (pick < cumulative[i]) {
+                    kind = kinds[i];
+                    break;
+                }
+            }
+            long start = System.nanoTime();
+            try {
+                Response response;
+                switch (kind) {
+                    case CACHED:
+                        response = http.request(get("/cached/" + ThreadLocalRandom.current().nextInt(objects)));
+                        break;
+                    case MISS:
+                        response = http.request(get("/miss/" + missCounter.incrementAndGet()));
+                        break;
+                    case POST:
+                        response = http.request(post("/post"));
+                        break;
+                    default:
+                        response = tunnel();
+                }
+                long end = System.nanoTime();
+                if (recording) {
+                    if (response.status == 200) {
+                        recorders.get(kind).record(end - start, response.firstByteNanos - start);
+                    } else {
+                        recorders.get(kind).errors++;
+                    }
+                }
+            } catch (IOException e) {
+                http.close();
+                if (recording) {
+                    recorders.get(kind).errors++;
+                }
+            }
+        }
+        http.close();
+    }
+
+    private byte[] get(String path) {
+        return ("GET http://127.0.0.1:" + originPort + path + " HTTP/1.1\r\nHost: 127.0.0.1:" + originPort + "\r\n"
+                + (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] post(String path) {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        byte[] head = ("POST http://127.0.0.1:" + originPort + path + " HTTP/1.1\r\nHost: 127.0.0.1:" + originPort + "\r\n"
+                + "Content-Type: application/octet-stream\r\nContent-Length: " + postBody.length + "\r\n"
+                + (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        request.write(head, 0, head.length);
+        request.write(postBody, 0, postBody.length);
+        return request.toByteArray();
+    }
+
+    // CONNECT through the HTTPS port, TLS handshake with the origin, one request inside.
+    private Response tunnel() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), httpsPort)) {
+            socket.setSoTimeout(30000);
+            String target = "127.0.0.1:" + tlsOrigin.getLocalPort();
+            OutputStream out = socket.getOutputStream();
+            out.write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            String status = readLine(in);
+            while (!readLine(in).isEmpty()) {
+                // skip the rest of the CONNECT response head
+            }
+            if (!status.contains(" 200 ")) {
+                Response failed = new Response();
+                failed.status = parseStatus(status);
+                return failed;
+            }
+            try (SSLSocket tls = (SSLSocket) clientTls.getSocketFactory().createSocket(socket, TLS_HOST, tlsOrigin.getLocalPort(), true)) {
+                SSLParameters parameters = tls.getSSLParameters();
+                parameters.setServerNames(List.of(new SNIHostName(TLS_HOST)));
+                parameters.setApplicationProtocols(new String[] {"http/1.1"});
+                tls.setSSLParameters(parameters);
+                tls.startHandshake();
+                OutputStream tlsOut = tls.getOutputStream();
+                tlsOut.write(("GET / HTTP/1.1\r\nHost: " + TLS_HOST + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                tlsOut.flush();
+                return readResponse(new BufferedInputStream(tls.getInputStream()));
+            }
+        }
+    }
+
+    // One persistent connection to the proxy's HTTP port, reopened whenever the proxy closes it.
+    private class HttpClient {
+        private Socket socket;
+        private InputStream in;
+        private boolean reused;
+
+        Response request(byte[] request) throws IOException {
+            if (socket == null) {
+                socket = new Socket(InetAddress.getLoopbackAddress(), httpPort);
+                socket.setSoTimeout(30000);
+                socket.setTcpNoDelay(true);
+                in = new BufferedInputStream(socket.getInputStream());
+                reused = false;
+            }
+            Response response;
+            try {
+                socket.getOutputStream().write(request);
+                response = readResponse(in);
+            } catch (EOFException e) {
+                // A kept-alive connection the proxy closed while idle; try once on a new one
+                close();
+                if (!reused) {
+                    throw e;
+                }
+                return request(request);
+            }
+            reused = true;
+            if (response.close || !keepAlive) {
+                close();
+            }
+            return response;
+        }
+
+        void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // already gone
+                }
+                socket = null;
+            }
+        }
+    }
+
+    // Reads one response: status line, headers, and a body framed by Content-Length, chunked
+    // encoding, or the end of the connection.
+    private static Response readResponse(InputStream in) throws IOException {
+        Response response = new Response();
+        int first = in.read();
+        if (first == -1) {
+            throw new EOFException("Connection closed before the response");
+        }
+        response.firstByteNanos = System.nanoTime();
+        String statusLine = (char) first + readLine(in);
+        response.status = parseStatus(statusLine);
+        long contentLength = -1;
+        boolean chunked = false;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding") && value.toLowerCase().contains("chunked")) {
+                chunked = true;
+            } else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")) {
+                response.close = true;
+            }
+        }
+        if (chunked) {
+            long size;
+            while ((size = Long.parseLong(readLine(in).split(";")[0].trim(), 16)) > 0) {
+                skip(in, size + 2);
+            }
+            while (!readLine(in).isEmpty()) {
+                // trailers
+            }
+        } else if (contentLength >= 0) {
+            skip(in, contentLength);
+        } else {
+            while (in.read() != -1) {
+                // read to the end of the connection
+            }
+            response.close = true;
+        }
+        return response;
+    }
+
+    private static int parseStatus(String statusLine) {
+        String[] parts = statusLine.split(" ");
+        try {
+            return parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void skip(InputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("Connection closed inside the response body");
+                }
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException("Connection closed inside the response head");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private void sampleLoop() {
+        while (true) {
+            heapPeak = Math.max(heapPeak, usedHeap());
+            threadPeak = Math.max(threadPeak, proxyThreads());
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    // Live platform threads other than the load test's own and the JVM's main thread.
+    private static int proxyThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!thread.getName().startsWith(THREAD_PREFIX) && !thread.getName().equals("main")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void report(List<Map<Kind, Recorder>> recorders, long elapsedNanos, long heapEnd, int threadsEnd, EventLog eventLog,
+                        ProxyMetrics metrics) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.printf("%-8s %9s %7s %9s %9s %9s %9s %9s %10s %10s %10s%n", "Kind", "Requests", "Errors", "Req/s",
+                "p50 ms", "p99 ms", "p99.9 ms", "max ms", "TTFB p50", "TTFB p99", "TTFB p99.9");
+        List<long[]> allLatencies = new ArrayList<>();
+        List<long[]> allFirstBytes = new ArrayList<>();
+        long allErrors = 0;
+        for (Kind kind : mix.keySet()) {
+            List<long[]> latencies = new ArrayList<>();
+            List<long[]> firstBytes = new ArrayList<>();
+            long errors = 0;
+            for (Map<Kind, Recorder> own : recorders) {
+                Recorder recorder = own.get(kind);
+                latencies.add(Arrays.copyOf(recorder.latencies, recorder.count));
+                firstBytes.add(Arrays.copyOf(recorder.firstBytes, recorder.count));
+                errors += recorder.errors;
+            }
+            allLatencies.addAll(latencies);
+            allFirstBytes.addAll(firstBytes);
+            allErrors += errors;
+            printRow(kind.name().toLowerCase(), merge(latencies), merge(firstBytes), errors, seconds);
+        }
+        printRow("all", merge(allLatencies), merge(allFirstBytes), allErrors, seconds);
+        long maxHeap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax();
+        System.out.println();
+        System.out.printf("Heap used (whole JVM): peak %d MB, at end %d MB, max %d MB%n", heapPeak >> 20, heapEnd >> 20, maxHeap >> 20);
+        System.out.printf("Proxy threads: peak %d, at end %d%n", threadPeak, threadsEnd);
+        System.out.printf("Proxy log events dropped: %d%n", eventLog.getDroppedCount());
+        // The proxy's own view over the whole run, warmup included
+        System.out.printf("Proxy metrics: cache hit ratio %.3f (%d hits, %d misses, %d expired), upstream connect p50/p99 %.2f/%.2f ms, "
+                        + "upstream TTFB p50/p99 %.2f/%.2f ms, tunnel bytes %d out / %d in%n",
+                metrics.getCacheHitRatio(), metrics.getCacheHits(), metrics.getCacheMisses(), metrics.getCacheExpired(),
+                metrics.getUpstreamConnectP50Micros() / 1e3, metrics.getUpstreamConnectP99Micros() / 1e3,
+                metrics.getUpstreamFirstByteP50Micros() / 1e3, metrics.getUpstreamFirstByteP99Micros() / 1e3,
+                metrics.getTunnelBytesClientToRemote(), metrics.getTunnelBytesRemoteToClient());
+    }
+
+    private static long[] merge(List<long[]> parts) {
+        int size = 0;
+        for (long[] part : parts) {
+            size += part.length;
+        }
+        long[] merged = new long[size];
+        int offset = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, merged, offset, part.length);
+            offset += part.length;
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    private static void printRow(String name, long[] latencies, long[] firstBytes, long errors, double seconds) {
+        System.out.printf("%-8s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %10.2f %10.2f %10.2f%n", name, latencies.length, errors,
+                latencies.length / seconds, percentile(latencies, 50), percentile(latencies, 99), percentile(latencies, 99.9),
+                latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1e6,
+                percentile(firstBytes, 50), percentile(firstBytes, 99), percentile(firstBytes, 99.9));
+    }
+
+    // Nearest-rank percentile of sorted nanosecond values, in milliseconds.
+    private static double percentile(long[] sorted, double percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)] / 1e6;
+    }
+}